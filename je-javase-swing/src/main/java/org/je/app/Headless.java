@@ -3,8 +3,11 @@ package org.je.app;
 import java.io.InputStream;
 import java.util.ArrayList;
 
+import javax.microedition.midlet.MIDlet;
+
 import org.je.DisplayComponent;
 import org.je.MIDletBridge;
+import org.je.MIDletContext;
 import org.je.app.ui.Message;
 import org.je.app.ui.noui.NoUiDisplayComponent;
 import org.je.app.util.DeviceEntry;
@@ -92,7 +95,19 @@ public class Headless {
 		Headless app = new Headless();
 
 		app.emulator.initParams(params, null, J2SEDevice.class);
-		app.emulator.initMIDlet(true);
+		MIDlet midlet = app.emulator.initMIDlet(true);
+		if (midlet != null) {
+			MIDletContext midletContext = MIDletBridge.getMIDletContext(midlet);
+			if (midletContext != null) {
+				// Block until MIDlet is destroyed and all its threads and timers are gone
+				try {
+					midletContext.awaitTermination();
+				} catch (InterruptedException e) {
+					return;
+				}
+				Logger.debug("MIDlet terminated");
+			}
+		}
 	}
 
 }
@@ -6,17 +6,19 @@ import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import javax.net.ssl.*;
 import org.je.util.NetEventBus;
 import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
+import org.je.util.net.mock.MockRules;
+import org.je.util.net.mock.MockServer;
 
 /**
  * Consolidated Network Tools launcher for the emulator.
- * Provides panels for monitor, traffic shaping, connection testing, DNS overrides,
+ * Provides panels for monitor, traffic shaping, connection testing, DNS overrides and cache,
  * mock server, TLS scenarios, packet capture, offline mode, metrics, and UDP.
  */
 public class NetworkTools extends JFrame {
@@ -69,8 +71,12 @@ public class NetworkTools extends JFrame {
 
     // ---------- Panels ----------
     static class MonitorPanel extends JPanel {
+        private static final int MAX_ROWS = NetEventBus.CAPACITY;
         private final DefaultTableModel model;
-        private int lastIndex = 0;
+        private final JLabel lostLabel = new JLabel();
+        private final java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss.SSS");
+        private long cursor = 0;
+        private long lost = 0;
         private javax.swing.Timer timer;
         MonitorPanel() {
             setLayout(new BorderLayout());
@@ -83,13 +89,16 @@ public class NetworkTools extends JFrame {
             JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
             JButton clear = new JButton("Clear");
             top.add(clear);
+            top.add(lostLabel);
             add(top, BorderLayout.NORTH);
             add(new JScrollPane(table), BorderLayout.CENTER);
 
             clear.addActionListener(e -> {
                 NetEventBus.clear();
                 model.setRowCount(0);
-                lastIndex = 0;
+                cursor = NetEventBus.head();
+                lost = 0;
+                lostLabel.setText("");
             });
 
             // Prime existing events and start live updates
@@ -98,12 +107,22 @@ public class NetworkTools extends JFrame {
             timer.start();
         }
         private void appendNewEvents() {
-            java.util.List<NetEventBus.NetEvent> all = NetEventBus.snapshot();
-            for (int i = lastIndex; i < all.size(); i++) {
-                NetEventBus.NetEvent ev = all.get(i);
-                model.addRow(new Object[]{ new java.text.SimpleDateFormat("HH:mm:ss.SSS").format(new Date(ev.ts)), ev.type, ev.direction, ev.target, ev.info });
+            NetEventBus.Batch batch = NetEventBus.readSince(cursor);
+            cursor = batch.nextSeq;
+            for (NetEventBus.NetEvent ev : batch.events) {
+                model.addRow(new Object[]{ timeFormat.format(new Date(ev.ts)), ev.type, ev.direction, ev.target, ev.info });
+            }
+            // Table keeps no more than the bus does
+            int excess = model.getRowCount() - MAX_ROWS;
+            if (excess > 0) {
+                // One bulk delete, removeRow(0) shifts the vector on every call
+                model.getDataVector().subList(0, excess).clear();
+                model.fireTableRowsDeleted(0, excess - 1);
+            }
+            if (batch.lost > 0) {
+                lost += batch.lost;
+                lostLabel.setText(lost + " events dropped");
             }
-            lastIndex = all.size();
         }
         @Override public void addNotify() { super.addNotify(); if (timer != null) timer.start(); }
         @Override public void removeNotify() { if (timer != null) timer.stop(); super.removeNotify(); }
@@ -117,6 +136,7 @@ public class NetworkTools extends JFrame {
             gbc.insets = new Insets(5,5,5,5); gbc.anchor = GridBagConstraints.WEST;
 
             JSpinner bw = new JSpinner(new SpinnerNumberModel(NetConfig.Traffic.bandwidthKbps, 0, 1_000_000, 16));
+            JSpinner up = new JSpinner(new SpinnerNumberModel(NetConfig.Traffic.uplinkKbps, 0, 1_000_000, 16));
             JSpinner lat = new JSpinner(new SpinnerNumberModel(NetConfig.Traffic.latencyMs, 0, 60_000, 10));
             JSpinner jit = new JSpinner(new SpinnerNumberModel(NetConfig.Traffic.jitterMs, 0, 60_000, 5));
             JSpinner loss = new JSpinner(new SpinnerNumberModel(NetConfig.Traffic.packetLossPct, 0, 100, 1));
@@ -124,18 +144,20 @@ public class NetworkTools extends JFrame {
 
             int r=0;
             add(new JLabel("Bandwidth (kbps, 0=unlimited)"), pos(gbc,0,r)); add(bw, pos(gbc,1,r++));
-            add(new JLabel("Latency (ms)"), pos(gbc,0,r)); add(lat, pos(gbc,1,r++));
+            add(new JLabel("Uplink (kbps, 0=same)"), pos(gbc,0,r)); add(up, pos(gbc,1,r++));
+            add(new JLabel("Latency (ms, one way)"), pos(gbc,0,r)); add(lat, pos(gbc,1,r++));
             add(new JLabel("Jitter (ms)"), pos(gbc,0,r)); add(jit, pos(gbc,1,r++));
             add(new JLabel("Packet Loss (%)"), pos(gbc,0,r)); add(loss, pos(gbc,1,r++));
             add(apply, pos(gbc,0,r,2));
 
             apply.addActionListener(e -> {
                 NetConfig.Traffic.bandwidthKbps = (Integer) bw.getValue();
+                NetConfig.Traffic.uplinkKbps = (Integer) up.getValue();
                 NetConfig.Traffic.latencyMs = (Integer) lat.getValue();
                 NetConfig.Traffic.jitterMs = (Integer) jit.getValue();
                 NetConfig.Traffic.packetLossPct = (Integer) loss.getValue();
                 NetConfig.savePreferencesAsync();
-                JOptionPane.showMessageDialog(this, "Traffic profile applied (affects future I/O when integrated).", "Traffic", JOptionPane.INFORMATION_MESSAGE);
+                JOptionPane.showMessageDialog(this, "Traffic profile applied.", "Traffic", JOptionPane.INFORMATION_MESSAGE);
             });
         }
     }
@@ -210,6 +232,10 @@ public class NetworkTools extends JFrame {
 
     static class DnsPanel extends JPanel {
         private final DefaultTableModel model;
+        private final DefaultTableModel cacheModel;
+        private final JLabel statsLabel = new JLabel();
+        private final java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss");
+        private final javax.swing.Timer timer;
         DnsPanel() {
             setLayout(new BorderLayout(6,6));
             model = new DefaultTableModel(new Object[]{"Host", "IP"}, 0);
@@ -220,7 +246,29 @@ public class NetworkTools extends JFrame {
             JButton add = new JButton("Add"); JButton del = new JButton("Delete"); JButton clear = new JButton("Clear");
             controls.add(new JLabel("Host:")); controls.add(host); controls.add(new JLabel("IP:")); controls.add(ip); controls.add(add); controls.add(del); controls.add(clear);
             add(controls, BorderLayout.NORTH);
-            add(new JScrollPane(table), BorderLayout.CENTER);
+
+            cacheModel = new DefaultTableModel(new Object[]{"Cached host", "Address", "Lookup (ms)", "Expires"}, 0) {
+                public boolean isCellEditable(int r, int c) { return false; }
+            };
+            JTable cacheTable = new JTable(cacheModel);
+            cacheTable.setAutoCreateRowSorter(true);
+            JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(table), new JScrollPane(cacheTable));
+            split.setResizeWeight(0.5);
+            add(split, BorderLayout.CENTER);
+
+            JPanel cacheControls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            JSpinner ttl = new JSpinner(new SpinnerNumberModel(NetConfig.Dns.positiveTtlSeconds, 0, 86_400, 10));
+            JSpinner negativeTtl = new JSpinner(new SpinnerNumberModel(NetConfig.Dns.negativeTtlSeconds, 0, 86_400, 5));
+            JCheckBox prefetch = new JCheckBox("Prefetch JAD hosts", NetConfig.Dns.prefetch);
+            JButton apply = new JButton("Apply"); JButton flush = new JButton("Flush");
+            cacheControls.add(new JLabel("TTL (s):")); cacheControls.add(ttl);
+            cacheControls.add(new JLabel("Negative TTL (s):")); cacheControls.add(negativeTtl);
+            cacheControls.add(prefetch); cacheControls.add(apply); cacheControls.add(flush);
+            JPanel south = new JPanel(new BorderLayout());
+            south.add(cacheControls, BorderLayout.NORTH);
+            statsLabel.setBorder(new EmptyBorder(0,6,4,6));
+            south.add(statsLabel, BorderLayout.SOUTH);
+            add(south, BorderLayout.SOUTH);
 
             add.addActionListener(e -> {
                 String h = host.getText().trim(); String a = ip.getText().trim();
@@ -232,6 +280,16 @@ public class NetworkTools extends JFrame {
                 }
             });
             clear.addActionListener(e -> { NetConfig.Dns.clear(); NetConfig.savePreferencesAsync(); reload(); });
+            apply.addActionListener(e -> {
+                NetConfig.Dns.positiveTtlSeconds = (Integer) ttl.getValue();
+                NetConfig.Dns.negativeTtlSeconds = (Integer) negativeTtl.getValue();
+                NetConfig.Dns.prefetch = prefetch.isSelected();
+                NetConfig.savePreferencesAsync();
+            });
+            flush.addActionListener(e -> { NetConfig.Dns.flush(); refreshCache(); });
+
+            refreshCache();
+            timer = new javax.swing.Timer(1000, e -> refreshCache());
         }
         private void reload() {
             model.setRowCount(0);
@@ -239,67 +297,79 @@ public class NetworkTools extends JFrame {
                 model.addRow(new Object[]{e.getKey(), e.getValue()});
             }
         }
+        private void refreshCache() {
+            cacheModel.setRowCount(0);
+            long now = System.currentTimeMillis();
+            for (NetConfig.Dns.Entry e : NetConfig.Dns.entries()) {
+                String expires = e.expires > now ? timeFormat.format(new Date(e.expires)) : "expired";
+                cacheModel.addRow(new Object[]{ e.host, e.address != null ? e.address.getHostAddress() : "unknown",
+                        String.format("%.1f", e.lookupNanos / 1e6), expires });
+            }
+            NetConfig.Dns.Stats st = NetConfig.Dns.stats();
+            long requests = st.hits + st.negativeHits + st.lookups + st.coalesced;
+            statsLabel.setText(String.format("%d requests: %d hits, %d negative hits, %d lookups (%d failed, avg %.1f ms), %d coalesced, %d prefetched",
+                    requests, st.hits, st.negativeHits, st.lookups, st.failures, st.averageLookupMs(), st.coalesced, st.prefetched));
+        }
+        @Override public void addNotify() { super.addNotify(); timer.start(); }
+        @Override public void removeNotify() { timer.stop(); super.removeNotify(); }
     }
 
     static class MockServerPanel extends JPanel {
-        private com.sun.net.httpserver.HttpServer server;
-        private final JTextField port = new JTextField("8081", 6);
-        private final JTextArea response = new JTextArea(6, 60);
-        private final JTextField path = new JTextField("/", 10);
+        private MockServer server;
+        private final JTextArea rules = new JTextArea(12, 60);
+        private final JLabel status = new JLabel("Stopped");
         private final JButton start = new JButton("Start");
         private final JButton stop = new JButton("Stop");
+        private final javax.swing.Timer timer;
+        /** Directory of the loaded rules file, for route files */
+        private java.io.File baseDir;
         MockServerPanel() {
             setLayout(new BorderLayout(6,6));
             JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
-            top.add(new JLabel("Port:")); top.add(port);
-            top.add(new JLabel("Path:")); top.add(path);
-            top.add(start); top.add(stop);
+            JButton load = new JButton("Load...");
+            top.add(load); top.add(start); top.add(stop); top.add(status);
             add(top, BorderLayout.NORTH);
-            response.setText("Hello from Mock Server\n");
-            add(new JScrollPane(response), BorderLayout.CENTER);
+            rules.setText(MockRules.DEFAULT_RULES);
+            rules.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            add(new JScrollPane(rules), BorderLayout.CENTER);
+            load.addActionListener(e -> onLoad());
             start.addActionListener(this::onStart);
             stop.addActionListener(e -> onStop());
             stop.setEnabled(false);
+            timer = new javax.swing.Timer(1000, e -> { if (server != null) status.setText(server.toString()); });
+        }
+        private void onLoad() {
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            java.io.File f = chooser.getSelectedFile();
+            try {
+                rules.setText(new String(java.nio.file.Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+                rules.setCaretPosition(0);
+                baseDir = f.getAbsoluteFile().getParentFile();
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(this, "Failed to load: "+ex.getMessage(), "Mock", JOptionPane.ERROR_MESSAGE);
+            }
         }
         private void onStart(ActionEvent e) {
             try {
-                int p = Integer.parseInt(port.getText().trim());
-                server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress("127.0.0.1", p), 0);
-                String route = path.getText().trim();
-                server.createContext(route, exchange -> {
-                    byte[] body = response.getText().getBytes(StandardCharsets.UTF_8);
-                    exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
-                    exchange.sendResponseHeaders(200, body.length);
-                    try (OutputStream os = exchange.getResponseBody()) { os.write(body); }
-                });
-                // Use bounded thread pool to prevent resource exhaustion
-                java.util.concurrent.ThreadPoolExecutor executor = new java.util.concurrent.ThreadPoolExecutor(
-                    2, 8, 60L, java.util.concurrent.TimeUnit.SECONDS,
-                    new java.util.concurrent.LinkedBlockingQueue<>(50),
-                    r -> {
-                        Thread t = new Thread(r, "MockServer-Worker");
-                        t.setDaemon(true);
-                        return t;
-                    }
-                );
-                server.setExecutor(executor);
+                server = new MockServer(MockRules.parse(new java.io.StringReader(rules.getText()), baseDir));
                 server.start();
-                start.setEnabled(false); stop.setEnabled(true);
-                JOptionPane.showMessageDialog(this, "Mock server running on 127.0.0.1:"+p, "Mock", JOptionPane.INFORMATION_MESSAGE);
-            } catch (IOException | NumberFormatException ex) {
+                start.setEnabled(false); stop.setEnabled(true); rules.setEditable(false);
+                status.setText(server.toString());
+                timer.start();
+            } catch (IOException ex) {
+                server = null;
                 JOptionPane.showMessageDialog(this, "Failed to start: "+ex.getMessage(), "Mock", JOptionPane.ERROR_MESSAGE);
             }
         }
         private void onStop() {
-            if (server != null) { 
-                server.stop(0); 
-                // Shutdown executor to clean up threads
-                if (server.getExecutor() instanceof java.util.concurrent.ThreadPoolExecutor) {
-                    ((java.util.concurrent.ThreadPoolExecutor) server.getExecutor()).shutdown();
-                }
-                server = null; 
+            timer.stop();
+            if (server != null) {
+                server.stop();
+                server = null;
             }
-            start.setEnabled(true); stop.setEnabled(false);
+            status.setText("Stopped");
+            start.setEnabled(true); stop.setEnabled(false); rules.setEditable(true);
         }
     }
 
@@ -331,7 +401,11 @@ public class NetworkTools extends JFrame {
             if (fd.getFile()==null) return;
             java.io.File f = new java.io.File(fd.getDirectory(), fd.getFile());
             try (java.io.PrintWriter pw = new java.io.PrintWriter(new java.io.OutputStreamWriter(new java.io.FileOutputStream(f), StandardCharsets.UTF_8))) {
-                for (NetEventBus.NetEvent ev : NetEventBus.snapshot()) {
+                long dropped = NetEventBus.overflowCount();
+                if (dropped > 0) {
+                    pw.printf("# %d older events dropped, last %d kept%n", dropped, NetEventBus.CAPACITY);
+                }
+                for (NetEventBus.NetEvent ev : NetEventBus.readSince(0).events) {
                     pw.printf("%tF %<tT.%<tL | %s | %s | %s | %s%n", new Date(ev.ts), ev.type, ev.direction, ev.target, ev.info);
                 }
             } catch (Exception ex) {
@@ -362,14 +436,78 @@ public class NetworkTools extends JFrame {
 
     static class MetricsPanel extends JPanel {
         private final JLabel count = new JLabel("0 events");
+        private final DefaultTableModel hostModel;
+        private final DefaultTableModel connectionModel;
+        private final java.text.SimpleDateFormat timeFormat = new java.text.SimpleDateFormat("HH:mm:ss");
+        private final javax.swing.Timer timer;
         MetricsPanel() {
-            setLayout(new FlowLayout(FlowLayout.LEFT));
-            JButton refresh = new JButton("Refresh");
-            add(new JLabel("Events seen:")); add(count); add(refresh);
-            refresh.addActionListener(e -> update());
+            setLayout(new BorderLayout(6,6));
+            hostModel = new DefaultTableModel(new Object[]{"Protocol", "Host", "Conns", "Failed", "Requests", "Bytes in", "Bytes out",
+                    "Connect p50", "Connect p99", "TTFB p50", "TTFB p90", "TTFB p99", "TTFB max", "Shaping (ms)"}, 0) {
+                public boolean isCellEditable(int r, int c) { return false; }
+            };
+            connectionModel = new DefaultTableModel(new Object[]{"#", "Protocol", "Host", "Opened", "State", "Connect", "Requests",
+                    "Bytes in", "Bytes out", "TTFB avg", "TTFB max", "Shaping (ms)"}, 0) {
+                public boolean isCellEditable(int r, int c) { return false; }
+            };
+            JTable hostTable = new JTable(hostModel);
+            hostTable.setAutoCreateRowSorter(true);
+            JTable connectionTable = new JTable(connectionModel);
+            connectionTable.setAutoCreateRowSorter(true);
+            JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, new JScrollPane(hostTable), new JScrollPane(connectionTable));
+            split.setResizeWeight(0.5);
+            add(split, BorderLayout.CENTER);
+
+            JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            JButton reset = new JButton("Reset");
+            JButton csv = new JButton("Export CSV");
+            JButton json = new JButton("Export JSON");
+            controls.add(new JLabel("Events seen:")); controls.add(count);
+            controls.add(reset); controls.add(csv); controls.add(json);
+            JLabel hint = new JLabel("Times in ms. TTFB is measured before shaping, compare it with the shaping delay added by the emulator.");
+            hint.setBorder(new EmptyBorder(0,6,4,6));
+            JPanel south = new JPanel(new BorderLayout());
+            south.add(controls, BorderLayout.NORTH);
+            south.add(hint, BorderLayout.SOUTH);
+            add(south, BorderLayout.SOUTH);
+            reset.addActionListener(e -> { NetMetrics.reset(); update(); });
+            csv.addActionListener(e -> doExport("network_metrics.csv", NetMetrics.toCsv()));
+            json.addActionListener(e -> doExport("network_metrics.json", NetMetrics.toJson()));
             update();
+            timer = new javax.swing.Timer(1000, e -> update());
+        }
+        private void update() {
+            long dropped = NetEventBus.overflowCount();
+            count.setText(NetEventBus.published() + " events" + (dropped > 0 ? " (" + dropped + " no longer kept)" : ""));
+            hostModel.setRowCount(0);
+            for (NetMetrics.HostStats h : NetMetrics.hosts()) {
+                hostModel.addRow(new Object[]{ h.getProtocol(), h.getHost(), h.getConnections(), h.getFailures(), h.getRequests(),
+                        h.getBytesIn(), h.getBytesOut(), ms(h.getConnectP50Ms()), ms(h.getConnectP99Ms()), ms(h.getTtfbP50Ms()),
+                        ms(h.getTtfbP90Ms()), ms(h.getTtfbP99Ms()), ms(h.getTtfbMaxMs()), ms(h.getDelayMs()) });
+            }
+            connectionModel.setRowCount(0);
+            for (NetMetrics.Recorder r : NetMetrics.connections()) {
+                connectionModel.addRow(new Object[]{ r.getId(), r.getProtocol(), r.getHost(), timeFormat.format(new Date(r.getOpened())),
+                        r.getClosed() == 0 ? "open" : "closed", r.getConnectMs() < 0 ? "" : ms(r.getConnectMs()), r.getRequests(),
+                        r.getBytesIn(), r.getBytesOut(), ms(r.getTtfbMeanMs()), ms(r.getTtfbMaxMs()), ms(r.getDelayMs()) });
+            }
+        }
+        private static String ms(double ms) { return String.format("%.1f", ms); }
+        private void doExport(String name, String content) {
+            java.awt.FileDialog fd = new java.awt.FileDialog((Frame) SwingUtilities.getWindowAncestor(this), "Save Metrics", java.awt.FileDialog.SAVE);
+            fd.setFile(name); fd.setVisible(true);
+            if (fd.getFile()==null) return;
+            java.io.File f = new java.io.File(fd.getDirectory(), fd.getFile());
+            try {
+                java.nio.file.Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            } catch (Exception ex) {
+                JOptionPane.showMessageDialog(this, "Failed to export: "+ex.getMessage(), "Metrics", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            JOptionPane.showMessageDialog(this, "Exported.", "Metrics", JOptionPane.INFORMATION_MESSAGE);
         }
-    private void update() { count.setText(Integer.toString(NetEventBus.count()) + " events"); }
+        @Override public void addNotify() { super.addNotify(); timer.start(); }
+        @Override public void removeNotify() { timer.stop(); super.removeNotify(); }
     }
 
     static class UdpPanel extends JPanel {
@@ -19,7 +19,6 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.List;
 import org.je.util.NetEventBus;
 
 /**
@@ -60,7 +59,9 @@ public class StatusBar extends JPanel {
     private static final int NETWORK_UPDATE_INTERVAL_MS = 2000; // Update every 2 seconds to reduce load
     private static final int NETWORK_HIDE_DELAY_MS = 5000; // Hide after 5 seconds of inactivity
     private static final int NETWORK_ACTIVITY_WINDOW_MS = 3000; // Consider events from last 3 seconds
-    private final AtomicLong lastEventCount = new AtomicLong(0);
+    /** NetEventBus cursor and events of the activity window */
+    private long netEventCursor = NetEventBus.head();
+    private final java.util.ArrayDeque<NetEventBus.NetEvent> recentNetEvents = new java.util.ArrayDeque<>();
     private final AtomicLong lastNetworkUpdateTime = new AtomicLong(System.currentTimeMillis());
     private final AtomicReference<String> currentSpeedText = new AtomicReference<>("");
     private volatile boolean networkMeterVisible = false;
@@ -539,26 +540,27 @@ public class StatusBar extends JPanel {
         if (!networkMeterEnabled) return; // Respect network meter enabled flag
         
         try {
-            List<NetEventBus.NetEvent> events = NetEventBus.snapshot();
+            NetEventBus.Batch batch = NetEventBus.readSince(netEventCursor);
+            netEventCursor = batch.nextSeq;
             long currentTime = System.currentTimeMillis();
-            long eventCount = events.size();
             
             // Check if there are new events
-            boolean hasNewEvents = eventCount > lastEventCount.get();
-            lastEventCount.set(eventCount);
+            boolean hasNewEvents = !batch.events.isEmpty();
             
             // Calculate bandwidth from recent events using actual byte counts
             long bytesInThisPeriod = 0;
             long bytesOutThisPeriod = 0;
             long cutoffTime = currentTime - NETWORK_ACTIVITY_WINDOW_MS;
             
-            // Only analyze recent events to avoid processing entire history
-            // Start from a reasonable point to avoid scanning thousands of old events
-            int startIndex = Math.max(0, (int)(eventCount - 100)); // Only check last 100 events max
+            // Only the new events are read, the window keeps the last 100 events max
+            recentNetEvents.addAll(batch.events);
+            while (recentNetEvents.size() > 100
+                    || (!recentNetEvents.isEmpty() && recentNetEvents.peekFirst().ts < cutoffTime)) {
+                recentNetEvents.pollFirst();
+            }
             
             // Analyze recent events for bandwidth calculation
-            for (int i = startIndex; i < eventCount; i++) {
-                NetEventBus.NetEvent event = events.get(i);
+            for (NetEventBus.NetEvent event : recentNetEvents) {
                 if (event.ts >= cutoffTime) {
                     long eventBytes = event.bytes > 0 ? event.bytes : estimateBytesFromEvent(event);
                     
@@ -688,8 +690,8 @@ public class StatusBar extends JPanel {
     private void hideNetworkMeter() {
         if (networkMeterVisible) {
             networkMeterVisible = false;
-            // Clear accumulated network events to free memory
-            org.je.util.NetEventBus.clear();
+            // Bus is bounded, events stay available to NetworkTools
+            recentNetEvents.clear();
             SwingUtilities.invokeLater(() -> {
                 networkMeterLabel.setVisible(false);
                 revalidate();
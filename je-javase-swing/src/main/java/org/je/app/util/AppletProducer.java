@@ -1,6 +1,5 @@
 package org.je.app.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
@@ -11,6 +10,10 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
@@ -19,7 +22,6 @@ import java.util.jar.Manifest;
 
 import org.je.DisplayComponent;
 import org.je.MIDletBridge;
-import org.je.app.classloader.ClassPreprocessor;
 import org.je.app.classloader.ExtensionsClassLoader;
 import org.je.app.classloader.InstrumentationConfig;
 import org.je.app.ui.Message;
@@ -80,50 +82,40 @@ public class AppletProducer {
 	}
 
 	public static void createMidlet(URL midletInputUrl, File midletOutputFile) throws IOException {
-		JarInputStream jis = null;
 		JarInputStream ijis = null;
 		JarOutputStream jos = null;
 		InstrumentationConfig config = new InstrumentationConfig();
 		config.setEnhanceThreadCreation(true);
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 		try {
-			jis = new JarInputStream(midletInputUrl.openStream());
-			Manifest manifest = jis.getManifest();
-			if (manifest == null) {
+			MIDletInstrumenter.JarContent content = MIDletInstrumenter.readJar(midletInputUrl);
+			Map instrumented = MIDletInstrumenter.instrumentClasses(content, config, executor);
+			if (content.getManifest() == null) {
 				jos = new JarOutputStream(new FileOutputStream(midletOutputFile));
 			} else {
-				jos = new JarOutputStream(new FileOutputStream(midletOutputFile), manifest);
+				jos = new JarOutputStream(new FileOutputStream(midletOutputFile), content.getManifest());
 			}
 		
-			byte[] inputBuffer = new byte[1024];
-			JarEntry jarEntry;
-			while ((jarEntry = jis.getNextJarEntry()) != null) {
-				if (jarEntry.isDirectory() == false) {
-					String name = jarEntry.getName();
-					int size = 0;
-					int read;
-					int length = inputBuffer.length;
-					while ((read = jis.read(inputBuffer, size, length)) > 0) {
-						size += read;
-						
-						length = 1024;
-						if (size + length > inputBuffer.length) {
-							byte[] newInputBuffer = new byte[size + length];
-							System.arraycopy(inputBuffer, 0, newInputBuffer, 0, inputBuffer.length);
-							inputBuffer = newInputBuffer;
-						}
-					}
-					
-					byte[] outputBuffer = inputBuffer;
-					int outputSize = size;
-					if (name.endsWith(".class")) {					
-				        outputBuffer = ClassPreprocessor.instrument(new ByteArrayInputStream(inputBuffer, 0, size), config);
-				        outputSize = outputBuffer.length;
+			// Applet runs without MIDletClassLoader, classes are replaced in place
+			for (Iterator i = content.getEntries().entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				String name = (String) entry.getKey();
+				byte[] outputBuffer = (byte[]) entry.getValue();
+				Future future = (Future) instrumented.get(name);
+				if (future != null) {
+					byte[] bytes = MIDletInstrumenter.getInstrumented(name, future);
+					if (bytes == null) {
+						throw new IOException("Unable to instrument " + name);
 					}
-					jos.putNextEntry(new JarEntry(name));
-					jos.write(outputBuffer, 0, outputSize);
+					outputBuffer = bytes;
 				}
+				jos.putNextEntry(new JarEntry(name));
+				jos.write(outputBuffer);
 			}
 			
+			byte[] inputBuffer = new byte[1024];
+			JarEntry jarEntry;
+
 			URL url = AppletProducer.class.getResource("/je-injected.jar");
 			if (url != null) {
 				ijis = new JarInputStream(url.openStream());
@@ -140,7 +132,7 @@ public class AppletProducer {
 				Logger.error("Cannot find je-injected.jar resource in classpath");
 			}
 		} finally {
-			IOUtils.closeQuietly(jis);
+			executor.shutdownNow();
 			IOUtils.closeQuietly(ijis);
 			IOUtils.closeQuietly(jos);
 		}
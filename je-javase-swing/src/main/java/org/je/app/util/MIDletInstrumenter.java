@@ -0,0 +1,346 @@
+package org.je.app.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.je.app.classloader.ClassPreprocessor;
+import org.je.app.classloader.InstrumentationConfig;
+import org.je.app.classloader.ThreadHierarchy;
+import org.je.app.classloader.PreinstrumentedJar;
+import org.je.log.Logger;
+import org.je.util.JadProperties;
+
+/**
+ * Batch ahead of time instrumentation of MIDlet suites.
+ *
+ * Every class of every input jar is instrumented concurrently. Output jars
+ * keep original entries and carry instrumented classes in PreinstrumentedJar
+ * layout, MIDletClassLoader loads them without running ASM. Jad files are
+ * rewritten next to the jars with updated MIDlet-Jar-URL and MIDlet-Jar-Size.
+ *
+ * Instrumentation flags must match the emulator launch options, otherwise the
+ * instrumented classes are ignored.
+ */
+public class MIDletInstrumenter {
+
+	/**
+	 * Jar entries in original order, entry name to content
+	 */
+	public static class JarContent {
+
+		Manifest manifest;
+
+		final Map entries = new LinkedHashMap();
+
+		public Manifest getManifest() {
+			return manifest;
+		}
+
+		public Map getEntries() {
+			return entries;
+		}
+
+	}
+
+	private static class Job {
+
+		File input;
+
+		URL jarUrl;
+
+		File outputJar;
+
+		File outputJad;
+
+		JarContent content;
+
+		/**
+		 * Class entry name to Future of instrumented bytes
+		 */
+		Map instrumented;
+
+	}
+
+	public static JarContent readJar(URL jarUrl) throws IOException {
+		JarContent content = new JarContent();
+		JarInputStream jis = null;
+		try {
+			jis = new JarInputStream(jarUrl.openStream());
+			content.manifest = jis.getManifest();
+			JarEntry jarEntry;
+			while ((jarEntry = jis.getNextJarEntry()) != null) {
+				String name = jarEntry.getName();
+				// Already processed jar is instrumented again from originals
+				if (jarEntry.isDirectory() || PreinstrumentedJar.isInstrumentedEntry(name)) {
+					continue;
+				}
+				content.entries.put(name, IOUtils.toByteArray(jis));
+			}
+		} finally {
+			IOUtils.closeQuietly(jis);
+		}
+		return content;
+	}
+
+	/**
+	 * Submit instrumentation of every class in jar.
+	 *
+	 * @return class entry name to Future of instrumented bytes
+	 */
+	public static Map instrumentClasses(final JarContent content, final InstrumentationConfig config,
+			ExecutorService executor) {
+		// Calls on Thread subclasses of this jar are found from its own classes
+		final ThreadHierarchy hierarchy = new ThreadHierarchy(new ThreadHierarchy.ClassBytes() {
+			public byte[] get(String resource) {
+				return (byte[]) content.entries.get(resource);
+			}
+		});
+		Map result = new LinkedHashMap();
+		for (Iterator i = content.entries.entrySet().iterator(); i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			String name = (String) entry.getKey();
+			if (!name.endsWith(".class")) {
+				continue;
+			}
+			final byte[] original = (byte[]) entry.getValue();
+			result.put(name, executor.submit(new Callable() {
+				public Object call() {
+					return ClassPreprocessor.instrument(original, config, hierarchy);
+				}
+			}));
+		}
+		return result;
+	}
+
+	/**
+	 * @return instrumented bytes or <code>null</code> if class can't be
+	 *         instrumented
+	 */
+	public static byte[] getInstrumented(String name, Future future) throws IOException {
+		try {
+			return (byte[]) future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			Logger.warn("Unable to instrument " + name + ", " + e.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Write jar in PreinstrumentedJar layout
+	 *
+	 * @return number of instrumented classes
+	 */
+	public static int writeJar(JarContent content, Map instrumented, InstrumentationConfig config, File output)
+			throws IOException {
+		JarOutputStream jos = null;
+		int count = 0;
+		try {
+			if (content.manifest == null) {
+				jos = new JarOutputStream(new FileOutputStream(output));
+			} else {
+				jos = new JarOutputStream(new FileOutputStream(output), content.manifest);
+			}
+			for (Iterator i = content.entries.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				jos.putNextEntry(new JarEntry((String) entry.getKey()));
+				jos.write((byte[]) entry.getValue());
+			}
+			for (Iterator i = instrumented.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				String name = (String) entry.getKey();
+				byte[] bytes = getInstrumented(name, (Future) entry.getValue());
+				if (bytes == null) {
+					// MIDletClassLoader instruments this class at runtime
+					continue;
+				}
+				jos.putNextEntry(new JarEntry(PreinstrumentedJar.entryName(name)));
+				jos.write(bytes);
+				count++;
+			}
+			jos.putNextEntry(new JarEntry(PreinstrumentedJar.INDEX));
+			PreinstrumentedJar.createIndex(config, count).store(jos, "JarEngine instrumented classes");
+		} finally {
+			IOUtils.closeQuietly(jos);
+		}
+		return count;
+	}
+
+	private static Job createJob(File input, File outputDir) throws IOException {
+		Job job = new Job();
+		job.input = input;
+		if (input.getName().toLowerCase().endsWith(".jad")) {
+			JadProperties jad = new JadProperties();
+			InputStream is = new FileInputStream(input);
+			try {
+				jad.read(is);
+			} finally {
+				IOUtils.closeQuietly(is);
+			}
+			String jarUrl = jad.getJarURL();
+			if (jarUrl == null) {
+				throw new IOException("Cannot find MIDlet-Jar-URL property in " + input);
+			}
+			try {
+				job.jarUrl = new URL(jarUrl);
+			} catch (MalformedURLException e) {
+				job.jarUrl = new File(input.getAbsoluteFile().getParentFile(), jarUrl).toURI().toURL();
+			}
+			job.outputJad = new File(outputDir, input.getName());
+		} else {
+			job.jarUrl = input.toURI().toURL();
+		}
+		String path = job.jarUrl.getPath();
+		job.outputJar = new File(outputDir, path.substring(path.lastIndexOf('/') + 1));
+		return job;
+	}
+
+	/**
+	 * Copy jad replacing jar location and size
+	 */
+	private static void writeJad(File input, File output, File jar) throws IOException {
+		BufferedReader reader = null;
+		Writer writer = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+			writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("MIDlet-Jar-URL:")) {
+					line = "MIDlet-Jar-URL: " + jar.getName();
+				} else if (line.startsWith("MIDlet-Jar-Size:")) {
+					line = "MIDlet-Jar-Size: " + jar.length();
+				}
+				writer.write(line);
+				writer.write("\n");
+			}
+		} finally {
+			IOUtils.closeQuietly(reader);
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	public static void main(String args[]) {
+		File outputDir = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		InstrumentationConfig config = new InstrumentationConfig();
+		config.setEnhanceThreadCreation(true);
+		List inputs = new ArrayList();
+
+		List params = new ArrayList();
+		for (int i = 0; i < args.length; i++) {
+			params.add(args[i]);
+		}
+
+		Iterator argsIterator = params.iterator();
+		while (argsIterator.hasNext()) {
+			String arg = (String) argsIterator.next();
+			argsIterator.remove();
+
+			if ((arg.equals("--help")) || (arg.equals("-help"))) {
+				System.out.println(usage());
+				System.exit(0);
+			} else if (arg.equals("--output")) {
+				outputDir = new File((String) argsIterator.next());
+				argsIterator.remove();
+			} else if (arg.equals("--threads")) {
+				threads = Integer.parseInt((String) argsIterator.next());
+				argsIterator.remove();
+			} else if (arg.equals("--enhanceCatchBlock")) {
+				config.setEnhanceCatchBlock(Boolean.valueOf((String) argsIterator.next()).booleanValue());
+				argsIterator.remove();
+			} else if (arg.equals("--virtualThreads")) {
+				config.setVirtualThreads(Boolean.valueOf((String) argsIterator.next()).booleanValue());
+				argsIterator.remove();
+			} else {
+				inputs.add(new File(arg));
+			}
+		}
+
+		if ((outputDir == null) || inputs.isEmpty() || (threads < 1)) {
+			System.out.println(usage());
+			System.exit(0);
+		}
+		if ((!outputDir.isDirectory()) && (!outputDir.mkdirs())) {
+			System.out.println("Unable to create output directory " + outputDir);
+			System.exit(1);
+		}
+
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List jobs = new ArrayList();
+		int failed = 0;
+		try {
+			// Submit classes of all jars first so the pool is never idle
+			for (Iterator i = inputs.iterator(); i.hasNext();) {
+				File input = (File) i.next();
+				try {
+					Job job = createJob(input, outputDir);
+					job.content = readJar(job.jarUrl);
+					job.instrumented = instrumentClasses(job.content, config, executor);
+					jobs.add(job);
+				} catch (IOException e) {
+					System.out.println("Error reading " + input + ": " + e.getMessage());
+					failed++;
+				}
+			}
+			for (Iterator i = jobs.iterator(); i.hasNext();) {
+				Job job = (Job) i.next();
+				try {
+					int count = writeJar(job.content, job.instrumented, config, job.outputJar);
+					if (job.outputJad != null) {
+						writeJad(job.input, job.outputJad, job.outputJar);
+					}
+					System.out.println(job.outputJar + ": " + count + " of " + job.instrumented.size()
+							+ " classes instrumented");
+				} catch (IOException e) {
+					System.out.println("Error writing " + job.outputJar + ": " + e.getMessage());
+					failed++;
+				}
+				// Release memory of written jar
+				job.content = null;
+				job.instrumented = null;
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println("Instrumented " + (inputs.size() - failed) + " of " + inputs.size() + " suites in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		System.exit((failed == 0) ? 0 : 1);
+	}
+
+	private static String usage() {
+		return "--output {output directory} \n" +
+			   "[--threads {number of threads}] \n" +
+			   "[--enhanceCatchBlock true|false] \n" +
+			   "[--virtualThreads true|false] \n" +
+			   "{jad or jar file} ...";
+	}
+
+}
@@ -216,6 +216,9 @@ public class CookieRecordStoreManager implements RecordStoreManager {
 		}*/
 	}
 
+	public void closeRecordStore(RecordStoreImpl recordStoreImpl) {
+	}
+
 	public int getSizeAvailable(RecordStoreImpl recordStoreImpl) {
 		int size = MAX_COOKIE_SIZE * MAX_SPLIT_COOKIES;
 
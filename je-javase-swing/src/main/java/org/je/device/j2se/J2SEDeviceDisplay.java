@@ -12,6 +12,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -28,6 +29,7 @@ import org.je.MIDletAccess;
 import org.je.MIDletBridge;
 import org.je.app.ui.swing.SwingDisplayComponent;
 import org.je.app.util.IOUtils;
+import org.je.app.util.MIDletResourceLoader;
 import org.je.device.Device;
 import org.je.device.DeviceFactory;
 import org.je.device.EmulatorContext;
@@ -610,6 +612,19 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl
 		if (midlet == null) {
 			midlet = getClass();
 		}
+		ByteBuffer buffer = null;
+		if (!(midlet instanceof Class)) {
+			// Indexed MIDlet jar, no stream copy
+			buffer = MIDletResourceLoader.getResourceBuffer(midlet.getClass(), str);
+		}
+		if (buffer != null) {
+			if (buffer.hasArray()) {
+				return getImage(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			}
+			byte[] imageBytes = new byte[buffer.remaining()];
+			buffer.get(imageBytes);
+			return getImage(imageBytes, 0, imageBytes.length);
+		}
 		InputStream is = midlet.getClass().getResourceAsStream(str);
 
 		if (is == null) {
@@ -629,8 +644,12 @@ public class J2SEDeviceDisplay implements DeviceDisplayImpl
 		while ((num = is.read(imageBytes)) != -1) {
 			ba.write(imageBytes, 0, num);
 		}
+		byte[] data = ba.toByteArray();
+		return getImage(data, 0, data.length);
+	}
 
-		java.awt.Image image = Toolkit.getDefaultToolkit().createImage(ba.toByteArray());
+	private Image getImage(byte[] data, int offset, int length) throws IOException {
+		java.awt.Image image = Toolkit.getDefaultToolkit().createImage(data, offset, length);
 
 		ImageFilter filter = null;
 		if (isColor()) {
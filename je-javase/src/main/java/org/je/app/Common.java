@@ -1,6 +1,7 @@
 package org.je.app;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,6 +47,7 @@ import org.je.app.ui.ResponseInterfaceListener;
 import org.je.app.util.DeviceEntry;
 import org.je.app.util.FileRecordStoreManager;
 import org.je.app.util.IOUtils;
+import org.je.app.util.JarCache;
 import org.je.app.util.MIDletResourceLoader;
 import org.je.app.util.MIDletSystemProperties;
 import org.je.app.util.MIDletThread;
@@ -67,6 +69,7 @@ import org.je.util.Base64Coder;
 import org.je.util.JadMidletEntry;
 import org.je.util.JadProperties;
 import org.je.util.MemoryRecordStoreManager;
+import org.je.util.net.NetConfig;
 
 public class Common implements MicroEmulator, CommonInterface {
 
@@ -111,8 +114,6 @@ public class Common implements MicroEmulator, CommonInterface {
     private volatile int themeFgColor = -1;
     private volatile int themeSecondaryColor = -1;
 
-    private Object destroyNotify = new Object();
-
     private boolean exitOnMIDletDestroy = false;
 
     public Common(EmulatorContext context) {
@@ -210,10 +211,6 @@ public class Common implements MicroEmulator, CommonInterface {
         } catch (Exception e) {
             Logger.error("Error during enhanced MIDlet cleanup", e);
         }
-        
-        synchronized (destroyNotify) {
-            destroyNotify.notifyAll();
-        }
     }
 
     public Launcher getLauncher() {
@@ -321,25 +318,20 @@ public class Common implements MicroEmulator, CommonInterface {
                         }
                         Logger.debug("AutoTests start class", midletClassName);
                         MIDlet m = loadMidlet(midletClass, MIDletBridge.getMIDletAccess());
+                        if (m == null) {
+                            break;
+                        }
+                        MIDletContext context = MIDletBridge.getMIDletContext(m);
                         try {
                             MIDletBridge.getMIDletAccess(m).startApp();
                         } catch (MIDletStateChangeException e) {
                             Logger.error(e);
                         }
-                        // TODO Proper test If this is still active conetex.
-                        if (MIDletBridge.getMIDletContext() == MIDletBridge.getMIDletContext(m)) {
-                            synchronized (destroyNotify) {
-                                try {
-                                    destroyNotify.wait();
-                                } catch (InterruptedException e) {
-                                    return;
-                                }
-                            }
-                        }
-                        while (MIDletThread.hasRunningThreads(MIDletBridge.getMIDletContext(m))) {
-                            // Use a more efficient approach to check for running threads
-                            // Instead of sleeping, we can use a short yield to allow other threads to run
-                            Thread.yield();
+                        // Wait for MIDlet destroy, its threads and timers
+                        try {
+                            context.awaitTermination();
+                        } catch (InterruptedException e) {
+                            return;
                         }
                         Logger.debug("AutoTests ends");
                     } while (true);
@@ -360,6 +352,10 @@ public class Common implements MicroEmulator, CommonInterface {
         InputStream is = null;
         try {
             URL url = new URL(jad.getJarURL());
+            JarCache cache = JarCache.getDefault();
+            if (cache != null) {
+                return IOUtils.getCanonicalFileClassLoaderURL(cache.get(url));
+            }
             URLConnection conn = url.openConnection();
             if (url.getUserInfo() != null) {
                 String userInfo = new String(Base64Coder.encode(url.getUserInfo().getBytes("UTF-8")));
@@ -617,7 +613,8 @@ public class Common implements MicroEmulator, CommonInterface {
                 }
             }
             // Support Basic Authentication; Copy jar file to tmp directory
-            if (url.getUserInfo() != null) {
+            // or take remote jar from download cache
+            if ((url.getUserInfo() != null) || JarCache.isCacheable(url)) {
                 String tmpURL = saveJar2TmpFile(jarUrl, true);
                 if (tmpURL == null) {
                     return;
@@ -629,6 +626,8 @@ public class Common implements MicroEmulator, CommonInterface {
                 }
             }
             midletClassLoader.addURL(url);
+            midletClassLoader.indexJar(url);
+            midletClassLoader.preinstrument(url);
 
             Launcher.removeMIDletEntries();
 
@@ -665,15 +664,22 @@ public class Common implements MicroEmulator, CommonInterface {
             }
             setSuiteName(jad.getSuiteName());
 
+            // Servers named in the JAD are usually contacted right after start
+            if (NetConfig.Dns.prefetch) {
+                NetConfig.Dns.prefetch(jad.getMainAttributes().values());
+            }
+
+            // MIDlet classes are loaded on launch, not to run instrumentation
+            // and static initializers of every suite entry up front
             for (Enumeration e = jad.getMidletEntries().elements(); e.hasMoreElements();) {
                 JadMidletEntry jadEntry = (JadMidletEntry) e.nextElement();
-                Class midletClass = midletClassLoader.loadClass(jadEntry.getClassName());
-                Launcher.addMIDletEntry(new MIDletEntry(jadEntry.getName(), midletClass));
+                Launcher.addMIDletEntry(new MIDletEntry(jadEntry.getName(), jadEntry.getClassName(), midletClassLoader));
             }
             // Auto-start first MIDlet if available
             if (Launcher.midletEntries != null && Launcher.midletEntries.size() > 0) {
                 MIDletEntry entry = (MIDletEntry) Launcher.midletEntries.elementAt(0);
                 initMIDlet(true, entry);
+                warmUpMIDletEntries(Launcher.midletEntries);
             } else {
                 startLauncher(MIDletBridge.getMIDletContext());
             }
@@ -929,6 +935,12 @@ public class Common implements MicroEmulator, CommonInterface {
                             paramRecordStoreManager = new FileRecordStoreManager();
                         } else if (tmpRms.equals("memory")) {
                             paramRecordStoreManager = new MemoryRecordStoreManager();
+                        } else if (tmpRms.equals(FileRecordStoreManager.DURABILITY_NONE)
+                                || tmpRms.equals(FileRecordStoreManager.DURABILITY_ON_CLOSE)
+                                || tmpRms.equals(FileRecordStoreManager.DURABILITY_INTERVAL)
+                                || tmpRms.equals(FileRecordStoreManager.DURABILITY_FSYNC_EACH)) {
+                            FileRecordStoreManager.durability = tmpRms;
+                            paramRecordStoreManager = new FileRecordStoreManager();
                         }
                     }
                 } else if ((arg.equals("--classpath")) || (arg.equals("-classpath")) || (arg.equals("-cp"))) {
@@ -947,6 +959,36 @@ public class Common implements MicroEmulator, CommonInterface {
                     MIDletClassLoader.traceSystemClassLoading = true;
                 } else if (arg.equals("--enhanceCatchBlock")) {
                     MIDletClassLoader.enhanceCatchBlock = true;
+                } else if (arg.equals("--classCache")) {
+                    MIDletClassLoader.cacheInstrumentedClasses = Boolean.valueOf((String) argsIterator.next()).booleanValue();
+                    argsIterator.remove();
+                } else if (arg.equals("--jarCache")) {
+                    JarCache.enabled = Boolean.valueOf((String) argsIterator.next()).booleanValue();
+                    argsIterator.remove();
+                } else if (arg.equals("--preinstrument")) {
+                    MIDletClassLoader.preinstrumentClasses = Boolean.valueOf((String) argsIterator.next()).booleanValue();
+                    argsIterator.remove();
+                } else if (arg.equals("--httpCache")) {
+                    String mode = (String) argsIterator.next();
+                    argsIterator.remove();
+                    if (mode.equals("replay-timed")) {
+                        mode = NetConfig.Http.CACHE_REPLAY;
+                        NetConfig.Http.replayTiming = true;
+                    }
+                    if (mode.equals(NetConfig.Http.CACHE_OFF) || mode.equals(NetConfig.Http.CACHE_MEMORY)
+                            || mode.equals(NetConfig.Http.CACHE_RECORD) || mode.equals(NetConfig.Http.CACHE_REPLAY)) {
+                        NetConfig.Http.cacheMode = mode;
+                    } else {
+                        Logger.warn("Unknown HTTP cache mode " + mode);
+                    }
+                } else if (arg.equals("--nioSockets")) {
+                    NetConfig.Sockets.nio = Boolean.valueOf((String) argsIterator.next()).booleanValue();
+                    argsIterator.remove();
+                } else if (arg.equals("--httpArchive")) {
+                    NetConfig.Http.archive = (String) argsIterator.next();
+                    argsIterator.remove();
+                } else if (arg.equals("--virtualThreads")) {
+                    MIDletThread.setVirtualThreads(true);
                 } else if (arg.equals("--quiet")) {
                     StdOutAppender.enabled = false;
                 } else if (arg.equals("--headless")) {
@@ -1077,7 +1119,10 @@ public class Common implements MicroEmulator, CommonInterface {
         JadProperties properties = new JadProperties();
 
         URL url = new URL(urlString);
-        if (url.getUserInfo() == null) {
+        JarCache cache = JarCache.isCacheable(url) ? JarCache.getDefault() : null;
+        if (cache != null) {
+            properties.read(new FileInputStream(cache.get(url)));
+        } else if (url.getUserInfo() == null) {
             properties.read(url.openStream());
         } else {
             URLConnection cn = url.openConnection();
@@ -1174,7 +1219,17 @@ public class Common implements MicroEmulator, CommonInterface {
     }
     
     public MIDlet initMIDlet(boolean startMidlet, MIDletEntry entry) {
-        MIDlet midlet = loadMidlet(entry.getMIDletClass(), MIDletBridge.getMIDletAccess());
+        Class midletClass;
+        try {
+            midletClass = entry.getMIDletClass();
+        } catch (ClassNotFoundException e) {
+            Message.error("Error starting MIDlet", "Unable to find MIDlet class " + entry.getClassName(), e);
+            return null;
+        }
+        MIDlet midlet = loadMidlet(midletClass, MIDletBridge.getMIDletAccess());
+        if (midlet == null) {
+            return null;
+        }
         if (startMidlet) {
             try {
                 MIDletBridge.getMIDletAccess(midlet).startApp();
@@ -1186,6 +1241,34 @@ public class Common implements MicroEmulator, CommonInterface {
         return midlet;
     }
 
+    /**
+     * Load classes of MIDlets not launched yet on background daemon thread,
+     * so switching MIDlet in the launcher does not wait for class loading.
+     * Classes are not initialized.
+     */
+    private static void warmUpMIDletEntries(final Vector entries) {
+        final Object[] snapshot = entries.toArray();
+        Thread thread = new Thread("MIDletEntryWarmUp") {
+            public void run() {
+                for (int i = 0; i < snapshot.length; i++) {
+                    MIDletEntry entry = (MIDletEntry) snapshot[i];
+                    if (entry.isLoaded()) {
+                        continue;
+                    }
+                    try {
+                        entry.getMIDletClass();
+                    } catch (Throwable e) {
+                        // Reported when the MIDlet is launched
+                        Logger.debug("Unable to load MIDlet class " + entry.getClassName(), e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
     /**
      * Notify the emulator to stop gracefully.
      */
@@ -1197,10 +1280,11 @@ public class Common implements MicroEmulator, CommonInterface {
     }
 
     public static String usage() {
-        return "[--rms (file | memory)] \n" + "[--id EmulatorID ] \n"
+        return "[--rms (file | memory | none | on-close | interval | fsync-each)] \n" + "[--id EmulatorID ] \n"
                 + "[--impl {JSR implementation class name}]\n" + "[(--classpath|-cp) <JSR CLASSPATH>]\n" + "[(--appclasspath|--appcp) <MIDlet CLASSPATH>]\n"
                 + "[--appclass <library class name>]\n" + "[--appclassloader strict|relaxed|delegating|system] \n" + "[-Xautotest:<JAD file url>\n"
-                + "[--quit]\n" + "[--logCallLocation true|false]\n" + "[--traceClassLoading\n[--traceSystemClassLoading]\n[--enhanceCatchBlock]\n]"
+                + "[--quit]\n" + "[--logCallLocation true|false]\n" + "[--traceClassLoading\n[--traceSystemClassLoading]\n[--enhanceCatchBlock]\n[--classCache true|false]\n[--preinstrument true|false]\n[--jarCache true|false]\n[--virtualThreads]\n]"
+                + "[--httpCache off|cache|record|replay|replay-timed] [--httpArchive {file}]\n" + "[--nioSockets true|false]\n"
                 + "[--resizableDevice {width} {height}]\n"
                 + "(({MIDlet class name} [--propertiesjad {jad file location}]) | {jad file location} | {jar file location})";
     }
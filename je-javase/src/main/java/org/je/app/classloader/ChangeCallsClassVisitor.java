@@ -19,6 +19,8 @@ public class ChangeCallsClassVisitor extends ClassAdapter {
 
 	InstrumentationConfig config;
 
+	ThreadHierarchy hierarchy;
+
 	static final Map javaVersion = new HashMap();
 
 	static {
@@ -31,8 +33,13 @@ public class ChangeCallsClassVisitor extends ClassAdapter {
 	}
 
 	public ChangeCallsClassVisitor(ClassVisitor cv, InstrumentationConfig config) {
+		this(cv, config, null);
+	}
+
+	public ChangeCallsClassVisitor(ClassVisitor cv, InstrumentationConfig config, ThreadHierarchy hierarchy) {
 		super(cv);
 		this.config = config;
+		this.hierarchy = hierarchy;
 	}
 
 	public void visit(final int version, final int access, final String name, final String signature, String superName,
@@ -55,7 +62,8 @@ public class ChangeCallsClassVisitor extends ClassAdapter {
 
 	public MethodVisitor visitMethod(final int access, final String name, final String desc, final String signature,
 			final String[] exceptions) {
-		return new ChangeCallsMethodVisitor(super.visitMethod(access, name, desc, signature, exceptions), config);
+		return new ChangeCallsMethodVisitor(super.visitMethod(access, name, desc, signature, exceptions), config,
+				hierarchy);
 	}
 
 }
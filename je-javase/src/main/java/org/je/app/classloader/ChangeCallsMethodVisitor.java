@@ -28,6 +28,8 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 	private HashMap catchInfo;
 	
 	private InstrumentationConfig config;
+
+	private ThreadHierarchy hierarchy;
 	
 	private static class CatchInformation {
 		
@@ -42,8 +44,24 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 	}
 	
 	public ChangeCallsMethodVisitor(MethodVisitor mv, InstrumentationConfig config) {
+		this(mv, config, null);
+	}
+
+	public ChangeCallsMethodVisitor(MethodVisitor mv, InstrumentationConfig config, ThreadHierarchy hierarchy) {
 		super(mv);
 		this.config = config;
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * Calls on MIDlet Thread subclasses, e.g. gameThread.join(), are compiled
+	 * with the subclass as owner
+	 */
+	private boolean isThread(String owner) {
+		if (owner.equals("java/lang/Thread") || owner.equals(codeName(MIDletThread.class))) {
+			return true;
+		}
+		return (hierarchy != null) && hierarchy.isThread(owner);
 	}
 
 	public static String codeName(Class klass) {
@@ -81,6 +99,11 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 				mv.visitMethodInsn(opcode, NEW_SYSTEM_PROPERTIES_CLASS, name, desc);
 				return;
 			}
+			if ((config.isVirtualThreads()) && (name.equals("currentThread")) && (owner.equals("java/lang/Thread"))) {
+				// MIDlet code compares Thread.currentThread() with its own Thread objects
+				mv.visitMethodInsn(opcode, codeName(MIDletThread.class), "currentMIDletThread", desc);
+				return;
+			}
 			break;
 		case INVOKEVIRTUAL:
 			if ((name.equals("getResourceAsStream")) && (owner.equals("java/lang/Class"))) {
@@ -93,6 +116,14 @@ public class ChangeCallsMethodVisitor extends MethodAdapter implements Opcodes {
 				// INVOKEVIRTUAL java/lang/Throwable.printStackTrace()V
 				mv.visitMethodInsn(INVOKESTATIC, INJECTED_CLASS, name, "(Ljava/lang/Throwable;)V");
 				return;
+			} else if ((config.isVirtualThreads()) && ((name.equals("isAlive")) || (name.equals("join")))
+					&& (isThread(owner))) {
+				// Thread.isAlive() and Thread.join() are final and can't be forwarded to virtual thread
+				// INVOKEVIRTUAL java/lang/Thread.join(J)V -> INVOKESTATIC MIDletThread.join(Ljava/lang/Thread;J)V
+				if (desc.equals("()Z") || desc.equals("()V") || desc.equals("(J)V")) {
+					mv.visitMethodInsn(INVOKESTATIC, codeName(MIDletThread.class), name, "(Ljava/lang/Thread;" + desc.substring(1));
+					return;
+				}
 			}
 			break;
 		case INVOKESPECIAL:
@@ -15,10 +15,20 @@ import org.objectweb.asm.ClassWriter;
 public class ClassPreprocessor {
 
 	public static byte[] instrument(final InputStream classInputStream, InstrumentationConfig config) {
+		return instrument(classInputStream, config, null);
+	}
+
+	/**
+	 * @param hierarchy
+	 *            MIDlet classes extending Thread, <code>null</code> when only
+	 *            Thread itself is known
+	 */
+	public static byte[] instrument(final InputStream classInputStream, InstrumentationConfig config,
+			ThreadHierarchy hierarchy) {
 		try {
 			ClassReader cr = new ClassReader(classInputStream);
 			ClassWriter cw = new ClassWriter(0);
-			ClassVisitor cv = new ChangeCallsClassVisitor(cw, config);
+			ClassVisitor cv = new ChangeCallsClassVisitor(cw, config, hierarchy);
 			cr.accept(cv, 0);
 			return cw.toByteArray();
 		} catch (IOException e) {
@@ -27,4 +37,16 @@ public class ClassPreprocessor {
 		} 
     }
 	
+	public static byte[] instrument(final byte[] classBytes, InstrumentationConfig config) {
+		return instrument(classBytes, config, null);
+	}
+
+	public static byte[] instrument(final byte[] classBytes, InstrumentationConfig config, ThreadHierarchy hierarchy) {
+		ClassReader cr = new ClassReader(classBytes);
+		ClassWriter cw = new ClassWriter(0);
+		ClassVisitor cv = new ChangeCallsClassVisitor(cw, config, hierarchy);
+		cr.accept(cv, 0);
+		return cw.toByteArray();
+	}
+	
 }
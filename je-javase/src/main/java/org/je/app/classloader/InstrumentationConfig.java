@@ -8,6 +8,8 @@ public class InstrumentationConfig {
 	private boolean enhanceThreadCreation = false;
 	
 	private boolean enhanceCatchBlock = false;
+	
+	private boolean virtualThreads = false;
 
 	public boolean isEnhanceCatchBlock() {
 		return this.enhanceCatchBlock;
@@ -24,5 +26,21 @@ public class InstrumentationConfig {
 	public void setEnhanceThreadCreation(boolean enhanceThreadCreation) {
 		this.enhanceThreadCreation = enhanceThreadCreation;
 	}
+
+	public boolean isVirtualThreads() {
+		return this.virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * All flags affecting generated bytecode, part of InstrumentedClassCache key.
+	 */
+	public String toString() {
+		return "enhanceThreadCreation=" + enhanceThreadCreation + ",enhanceCatchBlock=" + enhanceCatchBlock
+				+ ",virtualThreads=" + virtualThreads;
+	}
 	
 }
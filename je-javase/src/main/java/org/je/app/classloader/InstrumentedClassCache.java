@@ -0,0 +1,330 @@
+package org.je.app.classloader;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.je.app.Config;
+import org.je.app.util.BuildVersion;
+import org.je.app.util.IOUtils;
+import org.je.log.Logger;
+
+/**
+ * Persistent content-addressed cache of instrumented MIDlet classes.
+ *
+ * Entry key is a digest of the original class bytes, InstrumentationConfig
+ * flags, MIDlet Thread subclasses the class calls, emulator version and the
+ * bytecode of instrumenting classes. Changed
+ * input never matches an old entry, so entries are never invalidated. Entries
+ * are written to a temporary file and renamed, several emulator instances may
+ * share the cache. Least recently used entries are removed when the cache
+ * grows over maxSize, entries of older emulator versions are no longer read
+ * and age out first.
+ *
+ * Location: {Config.getConfigPath()}/classcache/xx/xxxxxxxx.class
+ */
+public class InstrumentedClassCache {
+
+	public static long maxSize = 64L * 1024 * 1024;
+
+	private static final String DIGEST = "SHA-1";
+
+	/* Last use is recorded at most once a day per entry */
+	private static final long TOUCH_INTERVAL = 24L * 60 * 60 * 1000;
+
+	private static InstrumentedClassCache instance;
+
+	private static byte[] defaultSalt;
+
+	private final File directory;
+
+	private final byte[] salt;
+
+	private volatile boolean enabled = true;
+
+	/* Bytes on disk, -1 until the directory is scanned */
+	private long size = -1;
+
+	public InstrumentedClassCache(File directory) {
+		this.directory = directory;
+		this.salt = getSalt();
+	}
+
+	/**
+	 * @return shared cache in emulator configuration directory or
+	 *         <code>null</code> if the directory is not available
+	 */
+	public static synchronized InstrumentedClassCache getDefault() {
+		if (instance == null) {
+			File configPath = Config.getConfigPath();
+			if (configPath == null) {
+				return null;
+			}
+			instance = new InstrumentedClassCache(new File(configPath, "classcache"));
+		}
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled && (salt != null);
+	}
+
+	/**
+	 * Identifies instrumentation result independently of class bytes. Classes
+	 * instrumented ahead of time are usable only when the fingerprint matches.
+	 * 
+	 * @return <code>null</code> if it can't be computed
+	 */
+	public static String fingerprint(InstrumentationConfig config) {
+		byte[] salt = getSalt();
+		if (salt == null) {
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST);
+			md.update(salt);
+			md.update(config.toString().getBytes("UTF-8"));
+			return toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the key for class bytes or <code>null</code> if the cache is not
+	 *         usable
+	 */
+	public String key(byte[] classBytes, InstrumentationConfig config) {
+		return key(classBytes, config, "");
+	}
+
+	/**
+	 * @param context
+	 *            anything else the result depends on, e.g.
+	 *            ThreadHierarchy.threadOwners of the class
+	 */
+	public String key(byte[] classBytes, InstrumentationConfig config, String context) {
+		if (!isEnabled()) {
+			return null;
+		}
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(DIGEST);
+			md.update(salt);
+			md.update(config.toString().getBytes("UTF-8"));
+			md.update((byte) 0);
+			md.update(context.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+		md.update((byte) 0);
+		md.update(classBytes);
+		return toHex(md.digest());
+	}
+
+	/**
+	 * @return instrumented bytes or <code>null</code> if not cached
+	 */
+	public byte[] get(String key) {
+		if ((key == null) || !isEnabled()) {
+			return null;
+		}
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			byte[] bytes = IOUtils.toByteArray(is);
+			long now = System.currentTimeMillis();
+			if (now - file.lastModified() > TOUCH_INTERVAL) {
+				file.setLastModified(now);
+			}
+			return bytes;
+		} catch (IOException e) {
+			Logger.debug("Unable to read cached class", e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	public void put(String key, byte[] instrumented) {
+		if ((key == null) || !isEnabled()) {
+			return;
+		}
+		File file = getFile(key);
+		File dir = file.getParentFile();
+		if ((!dir.isDirectory()) && (!dir.mkdirs())) {
+			disable("Unable to create class cache directory " + dir, null);
+			return;
+		}
+		FileOutputStream fos = null;
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", dir);
+			fos = new FileOutputStream(tmp);
+			fos.write(instrumented);
+			fos.close();
+			fos = null;
+			if (tmp.renameTo(file)) {
+				stored(file, instrumented.length);
+			} else {
+				// Other instance stored the same entry
+				tmp.delete();
+			}
+			tmp = null;
+		} catch (IOException e) {
+			disable("Unable to write class cache", e);
+		} finally {
+			IOUtils.closeQuietly(fos);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private synchronized void stored(File keep, long length) {
+		if (size < 0) {
+			// Includes the new entry
+			size = 0;
+			File[] entries = listEntries();
+			for (int i = 0; i < entries.length; i++) {
+				size += entries[i].length();
+			}
+		} else {
+			size += length;
+		}
+		if (size > maxSize) {
+			evict(keep);
+		}
+	}
+
+	/**
+	 * Remove least recently used entries until the cache is a quarter under
+	 * maxSize, so that eviction does not run on every put
+	 */
+	private void evict(File keep) {
+		File[] entries = listEntries();
+		size = 0;
+		for (int i = 0; i < entries.length; i++) {
+			size += entries[i].length();
+		}
+		long target = maxSize - maxSize / 4;
+		if (size <= target) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long m1 = ((File) o1).lastModified();
+				long m2 = ((File) o2).lastModified();
+				return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+			}
+		});
+		for (int i = 0; (i < entries.length) && (size > target); i++) {
+			if (entries[i].equals(keep)) {
+				continue;
+			}
+			long length = entries[i].length();
+			if (entries[i].delete()) {
+				size -= length;
+			}
+		}
+	}
+
+	private File[] listEntries() {
+		List entries = new ArrayList();
+		File[] dirs = directory.listFiles();
+		if (dirs != null) {
+			FileFilter filter = new FileFilter() {
+				public boolean accept(File file) {
+					// Skip entries being written
+					return file.getName().endsWith(".class");
+				}
+			};
+			for (int i = 0; i < dirs.length; i++) {
+				File[] files = dirs[i].listFiles(filter);
+				if (files != null) {
+					Collections.addAll(entries, files);
+				}
+			}
+		}
+		return (File[]) entries.toArray(new File[entries.size()]);
+	}
+
+	private void disable(String message, Throwable e) {
+		enabled = false;
+		Logger.warn(message + ((e == null) ? "" : (", " + e.getMessage())));
+	}
+
+	private File getFile(String key) {
+		return new File(new File(directory, key.substring(0, 2)), key.substring(2) + ".class");
+	}
+
+	/**
+	 * Emulator version alone is not enough, development builds keep the same
+	 * version while instrumentation changes.
+	 */
+	private static synchronized byte[] getSalt() {
+		if (defaultSalt == null) {
+			defaultSalt = createSalt();
+		}
+		return defaultSalt;
+	}
+
+	private static byte[] createSalt() {
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST);
+			md.update(BuildVersion.getVersion().getBytes("UTF-8"));
+			Class[] instrumenting = new Class[] { ClassPreprocessor.class, ChangeCallsClassVisitor.class,
+					ChangeCallsMethodVisitor.class, ThreadHierarchy.class };
+			for (int i = 0; i < instrumenting.length; i++) {
+				String resource = MIDletClassLoader.getClassResourceName(instrumenting[i].getName());
+				InputStream is = InstrumentedClassCache.class.getClassLoader().getResourceAsStream(resource);
+				if (is != null) {
+					try {
+						md.update(IOUtils.toByteArray(is));
+					} finally {
+						IOUtils.closeQuietly(is);
+					}
+				}
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			Logger.warn("Class cache disabled, " + e.getMessage());
+			return null;
+		} catch (IOException e) {
+			Logger.warn("Class cache disabled, " + e.getMessage());
+			return null;
+		}
+	}
+
+	static String toHex(byte[] digest) {
+		StringBuffer b = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			int v = digest[i] & 0xFF;
+			if (v < 0x10) {
+				b.append('0');
+			}
+			b.append(Integer.toHexString(v));
+		}
+		return b.toString();
+	}
+
+}
@@ -0,0 +1,341 @@
+package org.je.app.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.je.app.util.IOUtils;
+
+/**
+ * Read-only in-memory view of MIDlet jar.
+ *
+ * The zip central directory is read once into a hash index. Entries are
+ * served from a single buffer: memory-mapped for local files, fully loaded
+ * for other URLs. Stored entries are zero-copy slices of this buffer,
+ * deflated entries are inflated on access and small ones are kept in LRU
+ * cache.
+ *
+ * Buffers and arrays returned are shared, callers must not modify them.
+ *
+ * Zip64 and multi-disk archives are not supported, constructor throws
+ * ZipException and caller should fall back to URLClassLoader.
+ */
+public class JarResourceStore {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	private static final int END_HEADER_SIGNATURE = 0x06054b50;
+
+	private static final int END_HEADER_SIZE = 22;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	private static final int METHOD_STORED = 0;
+
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final int SMALL_RESOURCE_SIZE = 64 * 1024;
+
+	private static final int CACHE_CAPACITY = 4 * 1024 * 1024;
+
+	private final URL url;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Entry name to Entry
+	 */
+	private final Map entries;
+
+	/**
+	 * LRU of inflated small entries, Entry to byte[]
+	 */
+	private final LinkedHashMap inflatedCache = new LinkedHashMap(64, 0.75f, true);
+
+	private int inflatedCacheSize;
+
+	private static class Entry {
+
+		int method;
+
+		int compressedSize;
+
+		int size;
+
+		int localHeaderOffset;
+
+		/**
+		 * Data offset resolved from local header on first access
+		 */
+		int dataOffset = -1;
+
+	}
+
+	public JarResourceStore(URL url) throws IOException {
+		this.url = url;
+		this.buffer = load(url);
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.entries = Collections.unmodifiableMap(readCentralDirectory(buffer));
+	}
+
+	private static ByteBuffer load(URL url) throws IOException {
+		if ("file".equals(url.getProtocol())) {
+			File file;
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				file = null;
+			} catch (IllegalArgumentException e) {
+				file = null;
+			}
+			if ((file != null) && (file.isFile())) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = raf.getChannel();
+					// Mapping stays valid after the channel is closed
+					return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		InputStream is = url.openStream();
+		try {
+			return ByteBuffer.wrap(IOUtils.toByteArray(is));
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private static Map readCentralDirectory(ByteBuffer buf) throws ZipException {
+		int end = -1;
+		int minEnd = Math.max(0, buf.limit() - END_HEADER_SIZE - 0xFFFF);
+		for (int i = buf.limit() - END_HEADER_SIZE; i >= minEnd; i--) {
+			if (buf.getInt(i) == END_HEADER_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new ZipException("End of central directory not found");
+		}
+		int count = buf.getShort(end + 10) & 0xFFFF;
+		long cdOffset = buf.getInt(end + 16) & 0xFFFFFFFFL;
+		if ((count == 0xFFFF) || (cdOffset == 0xFFFFFFFFL)) {
+			throw new ZipException("Zip64 not supported");
+		}
+		Map index = new HashMap(count * 2);
+		int pos = (int) cdOffset;
+		for (int i = 0; i < count; i++) {
+			if ((pos + CENTRAL_HEADER_SIZE > buf.limit()) || (buf.getInt(pos) != CENTRAL_HEADER_SIGNATURE)) {
+				throw new ZipException("Invalid central directory");
+			}
+			int flags = buf.getShort(pos + 8) & 0xFFFF;
+			int nameLength = buf.getShort(pos + 28) & 0xFFFF;
+			int extraLength = buf.getShort(pos + 30) & 0xFFFF;
+			int commentLength = buf.getShort(pos + 32) & 0xFFFF;
+			Entry entry = new Entry();
+			entry.method = buf.getShort(pos + 10) & 0xFFFF;
+			entry.compressedSize = buf.getInt(pos + 20);
+			entry.size = buf.getInt(pos + 24);
+			entry.localHeaderOffset = buf.getInt(pos + 42);
+			if ((entry.compressedSize < 0) || (entry.size < 0) || (entry.localHeaderOffset < 0)) {
+				throw new ZipException("Zip64 not supported");
+			}
+			String name = readName(buf, pos + CENTRAL_HEADER_SIZE, nameLength, (flags & 0x800) != 0);
+			if (!name.endsWith("/")) {
+				index.put(name, entry);
+			}
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return index;
+	}
+
+	private static String readName(ByteBuffer buf, int offset, int length, boolean utf8) throws ZipException {
+		byte[] name = new byte[length];
+		for (int i = 0; i < length; i++) {
+			name[i] = buf.get(offset + i);
+		}
+		try {
+			return new String(name, utf8 ? "UTF-8" : "ISO-8859-1");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new ZipException(e.getMessage());
+		}
+	}
+
+	public URL getURL() {
+		return url;
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @return names of all file entries
+	 */
+	public Set getNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @return entry content or <code>null</code> if there is no such entry
+	 */
+	public ByteBuffer getBuffer(String name) throws IOException {
+		Entry entry = (Entry) entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.method == METHOD_STORED) {
+			return slice(entry);
+		}
+		return ByteBuffer.wrap(inflate(name, entry));
+	}
+
+	/**
+	 * @return entry content or <code>null</code> if there is no such entry
+	 */
+	public byte[] getBytes(String name) throws IOException {
+		Entry entry = (Entry) entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.method == METHOD_STORED) {
+			byte[] data = new byte[entry.size];
+			slice(entry).get(data);
+			return data;
+		}
+		return inflate(name, entry);
+	}
+
+	/**
+	 * @return stream over entry content or <code>null</code> if there is no
+	 *         such entry
+	 */
+	public InputStream getInputStream(String name) throws IOException {
+		Entry entry = (Entry) entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.method == METHOD_STORED) {
+			ByteBuffer slice = slice(entry);
+			if (slice.hasArray()) {
+				return new ByteArrayInputStream(slice.array(), slice.arrayOffset() + slice.position(), slice.remaining());
+			}
+			byte[] data = new byte[entry.size];
+			slice.get(data);
+			return new ByteArrayInputStream(data);
+		}
+		return new ByteArrayInputStream(inflate(name, entry));
+	}
+
+	private ByteBuffer slice(Entry entry) throws ZipException {
+		int offset = getDataOffset(entry);
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(offset + entry.size);
+		slice.position(offset);
+		return slice.slice();
+	}
+
+	private int getDataOffset(Entry entry) throws ZipException {
+		int offset = entry.dataOffset;
+		if (offset == -1) {
+			int pos = entry.localHeaderOffset;
+			if ((pos + LOCAL_HEADER_SIZE > buffer.limit()) || (buffer.getInt(pos) != LOCAL_HEADER_SIGNATURE)) {
+				throw new ZipException("Invalid local header");
+			}
+			int nameLength = buffer.getShort(pos + 26) & 0xFFFF;
+			int extraLength = buffer.getShort(pos + 28) & 0xFFFF;
+			offset = pos + LOCAL_HEADER_SIZE + nameLength + extraLength;
+			if (offset + entry.compressedSize > buffer.limit()) {
+				throw new ZipException("Truncated entry");
+			}
+			entry.dataOffset = offset;
+		}
+		return offset;
+	}
+
+	private byte[] inflate(String name, Entry entry) throws IOException {
+		if (entry.method != METHOD_DEFLATED) {
+			throw new ZipException("Unsupported compression method " + entry.method + " for " + name);
+		}
+		boolean small = (entry.size <= SMALL_RESOURCE_SIZE);
+		if (small) {
+			synchronized (inflatedCache) {
+				byte[] cached = (byte[]) inflatedCache.get(entry);
+				if (cached != null) {
+					return cached;
+				}
+			}
+		}
+		int offset = getDataOffset(entry);
+		byte[] compressed = new byte[entry.compressedSize];
+		ByteBuffer src = buffer.duplicate();
+		src.position(offset);
+		src.get(compressed);
+		byte[] data = new byte[entry.size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			int n = 0;
+			boolean padded = false;
+			while (n < data.length) {
+				int r = inflater.inflate(data, n, data.length - n);
+				if (r == 0) {
+					if (inflater.finished() || inflater.needsDictionary()) {
+						break;
+					}
+					if (inflater.needsInput()) {
+						if (padded) {
+							break;
+						}
+						// nowrap inflater may need one dummy byte at the end
+						inflater.setInput(new byte[1]);
+						padded = true;
+					}
+				}
+				n += r;
+			}
+			if (n != data.length) {
+				throw new ZipException("Invalid entry size " + name);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid entry " + name + ", " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		if (small) {
+			synchronized (inflatedCache) {
+				if (inflatedCache.put(entry, data) == null) {
+					inflatedCacheSize += data.length;
+				}
+				for (Iterator i = inflatedCache.values().iterator(); (inflatedCacheSize > CACHE_CAPACITY) && i.hasNext();) {
+					inflatedCacheSize -= ((byte[]) i.next()).length;
+					i.remove();
+				}
+			}
+		}
+		return data;
+	}
+
+}
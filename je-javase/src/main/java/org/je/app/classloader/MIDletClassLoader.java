@@ -6,16 +6,24 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.security.AccessControlContext;
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
 
 import org.je.app.util.IOUtils;
+import org.je.app.util.MIDletThread;
 import org.je.log.Logger;
 
 /**
@@ -38,6 +46,10 @@ public class MIDletClassLoader extends URLClassLoader {
 
 	public static boolean enhanceCatchBlock = false;
 
+	public static boolean cacheInstrumentedClasses = true;
+
+	public static boolean preinstrumentClasses = true;
+
 	private final static boolean debug = false;
 
 	private boolean delegatingToParent = false;
@@ -46,8 +58,27 @@ public class MIDletClassLoader extends URLClassLoader {
 
 	private InstrumentationConfig config;
 
+	/**
+	 * MIDlet classes extending Thread, read from the suite class files
+	 */
+	private final ThreadHierarchy threadHierarchy = new ThreadHierarchy(new ThreadHierarchy.ClassBytes() {
+		public byte[] get(String resource) throws IOException {
+			return getClassBytes(resource);
+		}
+	});
+
 	private Set noPreporcessingNames;
 
+	/**
+	 * Indexed in-memory MIDlet jars, searched before URLClassLoader
+	 */
+	private final List jarStores = new CopyOnWriteArrayList();
+
+	/**
+	 * Indexed jars with usable ahead of time instrumented classes
+	 */
+	private final List preinstrumentedJarStores = new CopyOnWriteArrayList();
+
 	/* The context to be used when loading classes and resources */
 	private AccessControlContext acc;
 
@@ -61,6 +92,11 @@ public class MIDletClassLoader extends URLClassLoader {
 
 	}
 
+	static {
+		// Classes are locked by name, MIDlet threads don't wait for each other
+		registerAsParallelCapable();
+	}
+
 	public MIDletClassLoader(ClassLoader parent) {
 		super(new URL[] {}, parent);
 		noPreporcessingNames = new HashSet();
@@ -68,6 +104,7 @@ public class MIDletClassLoader extends URLClassLoader {
 		config = new InstrumentationConfig();
 		config.setEnhanceCatchBlock(enhanceCatchBlock);
 		config.setEnhanceThreadCreation(true);
+		config.setVirtualThreads(MIDletThread.isVirtualThreads());
 	}
 
 	// public MIDletClassLoader(URL[] urls, ClassLoader parent) {
@@ -130,6 +167,82 @@ public class MIDletClassLoader extends URLClassLoader {
 		super.addURL(url);
 	}
 
+	/**
+	 * Read jar added by addURL into JarResourceStore. Classes and resources of
+	 * this jar are then served from memory without opening jar: URL
+	 * connections.
+	 * 
+	 * @return false if the jar can't be indexed, it is still accessible by URL
+	 */
+	public boolean indexJar(URL jarUrl) {
+		try {
+			JarResourceStore store = new JarResourceStore(jarUrl);
+			if (instrumentMIDletClasses && PreinstrumentedJar.isUsable(store, config)) {
+				if (traceClassLoading) {
+					Logger.info("Using instrumented classes from " + jarUrl);
+				}
+				preinstrumentedJarStores.add(store);
+			}
+			jarStores.add(store);
+			return true;
+		} catch (IOException e) {
+			Logger.debug("Unable to index jar " + jarUrl, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return original class file, <code>null</code> if not found
+	 */
+	private byte[] getClassBytes(final String resource) throws IOException {
+		JarResourceStore store = getJarStore(resource);
+		if (store != null) {
+			return store.getBytes(resource);
+		}
+		InputStream is = (InputStream) AccessController.doPrivileged(new PrivilegedAction() {
+			public Object run() {
+				return getResourceAsStream(resource);
+			}
+		}, acc);
+		if (is == null) {
+			return null;
+		}
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private JarResourceStore getJarStore(String name) {
+		for (Iterator i = jarStores.iterator(); i.hasNext();) {
+			JarResourceStore store = (JarResourceStore) i.next();
+			if (store.contains(name)) {
+				return store;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Access resource content without stream copy. Returned buffer is shared
+	 * and must not be modified.
+	 * 
+	 * @return <code>null</code> if resource is not in indexed jar
+	 */
+	public ByteBuffer getResourceBuffer(String name) {
+		JarResourceStore store = getJarStore(name);
+		if (store == null) {
+			return null;
+		}
+		try {
+			return store.getBuffer(name);
+		} catch (IOException e) {
+			Logger.debug("Unable to read resource " + name, e);
+			return null;
+		}
+	}
+
 	/**
 	 * Loads the class with the specified <a href="#name">binary name</a>.
 	 * 
@@ -164,7 +277,13 @@ public class MIDletClassLoader extends URLClassLoader {
 	 * </ol>
 	 * 
 	 */
-	protected synchronized Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+	protected Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		synchronized (getClassLoadingLock(name)) {
+			return loadClassLocked(name, resolve);
+		}
+	}
+
+	private Class loadClassLocked(String name, boolean resolve) throws ClassNotFoundException {
 		if (debug) {
 			Logger.debug("loadClass", name);
 		}
@@ -244,6 +363,16 @@ public class MIDletClassLoader extends URLClassLoader {
 	 * Allow access to resources
 	 */
 	public InputStream getResourceAsStream(String name) {
+		JarResourceStore store = getJarStore(name);
+		if (store != null) {
+			try {
+				return store.getInputStream(name);
+			} catch (IOException e) {
+				if (debug) {
+					Logger.debug("Unable to read indexed resource " + name + " ", e);
+				}
+			}
+		}
 		final URL url = getResource(name);
 		if (url == null) {
 			return null;
@@ -315,6 +444,28 @@ public class MIDletClassLoader extends URLClassLoader {
 		if (classLoadByParent(name)) {
 			throw new LoadClassByParentException(name);
 		}
+		if (instrumentMIDletClasses) {
+			String resource = getClassResourceName(name);
+			JarResourceStore store = getJarStore(resource);
+			if (store != null) {
+				byte[] original;
+				byte[] instrumented = null;
+				try {
+					if (preinstrumentedJarStores.contains(store)) {
+						instrumented = store.getBytes(PreinstrumentedJar.entryName(resource));
+					}
+					original = (instrumented == null) ? store.getBytes(resource) : null;
+				} catch (IOException e) {
+					throw new ClassNotFoundException(name, e);
+				}
+				if (traceClassLoading) {
+					Logger.info("Load MIDlet class", name);
+				}
+				byte[] byteCode = (instrumented != null) ? instrumented : instrument(name, original,
+						getInstrumentedClassCache());
+				return defineClass(name, byteCode, 0, byteCode.length);
+			}
+		}
 		InputStream is;
 		try {
 			is = (InputStream) AccessController.doPrivileged(new PrivilegedExceptionAction() {
@@ -360,7 +511,7 @@ public class MIDletClassLoader extends URLClassLoader {
 				Logger.info("Load MIDlet class", name);
 			}
 			if (instrumentMIDletClasses) {
-				byteCode = ClassPreprocessor.instrument(is, config);
+				byteCode = instrument(name, is);
 				byteCodeLength = byteCode.length;
 			} else {
 				final int chunkSize = 1024 * 2;
@@ -403,4 +554,145 @@ public class MIDletClassLoader extends URLClassLoader {
 		}
 		return defineClass(name, byteCode, 0, byteCodeLength);
 	}
+
+	/**
+	 * Instrument class bytes, reusing result of previous launches when
+	 * InstrumentedClassCache is enabled.
+	 */
+	private byte[] instrument(String name, InputStream is) throws ClassNotFoundException {
+		InstrumentedClassCache cache = getInstrumentedClassCache();
+		if (cache == null) {
+			return ClassPreprocessor.instrument(is, config, threadHierarchy);
+		}
+		try {
+			return instrument(name, IOUtils.toByteArray(is), cache);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+	}
+
+	private byte[] instrument(String name, byte[] original, InstrumentedClassCache cache) {
+		String key = null;
+		if (cache != null) {
+			key = cache.key(original, config, threadHierarchy.threadOwners(original));
+			byte[] instrumented = cache.get(key);
+			if (instrumented != null) {
+				if (debug) {
+					Logger.debug("instrumented class from cache", name);
+				}
+				return instrumented;
+			}
+		}
+		byte[] instrumented = ClassPreprocessor.instrument(original, config, threadHierarchy);
+		if (cache != null) {
+			cache.put(key, instrumented);
+		}
+		return instrumented;
+	}
+
+	private static InstrumentedClassCache getInstrumentedClassCache() {
+		if (!cacheInstrumentedClasses) {
+			return null;
+		}
+		InstrumentedClassCache cache = InstrumentedClassCache.getDefault();
+		if ((cache == null) || (!cache.isEnabled())) {
+			return null;
+		}
+		return cache;
+	}
+
+	/**
+	 * Instrument all classes of MIDlet jar in background on fork-join pool
+	 * into InstrumentedClassCache. findClass then finds them there instead of
+	 * instrumenting classes one by one on the first MIDlet thread that touches
+	 * them; classes are still read from the jar the usual lookup order selects.
+	 * 
+	 * @param jarUrl
+	 *            jar already added to this class loader
+	 */
+	public void preinstrument(final URL jarUrl) {
+		if ((!preinstrumentClasses) || (!instrumentMIDletClasses)) {
+			return;
+		}
+		final ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.execute(new Runnable() {
+			public void run() {
+				final InstrumentedClassCache cache = getInstrumentedClassCache();
+				if (cache == null) {
+					// Nowhere to keep the result
+					return;
+				}
+				JarResourceStore store = null;
+				for (Iterator i = jarStores.iterator(); i.hasNext();) {
+					JarResourceStore s = (JarResourceStore) i.next();
+					if (s.getURL().equals(jarUrl)) {
+						store = s;
+					}
+				}
+				if ((store != null) && preinstrumentedJarStores.contains(store)) {
+					// Instrumented ahead of time
+					return;
+				}
+				JarInputStream jis = null;
+				int count = 0;
+				try {
+					Iterator names = null;
+					if (store != null) {
+						names = store.getNames().iterator();
+					} else {
+						jis = new JarInputStream(jarUrl.openStream());
+					}
+					while (true) {
+						String entryName;
+						if (names != null) {
+							if (!names.hasNext()) {
+								break;
+							}
+							entryName = (String) names.next();
+						} else {
+							JarEntry entry = jis.getNextJarEntry();
+							if (entry == null) {
+								break;
+							}
+							if (entry.isDirectory()) {
+								continue;
+							}
+							entryName = entry.getName();
+						}
+						if ((!entryName.endsWith(".class")) || PreinstrumentedJar.isInstrumentedEntry(entryName)) {
+							continue;
+						}
+						final String name = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+						if (classLoadByParent(name) || (findLoadedClass(name) != null)) {
+							continue;
+						}
+						final byte[] original = (store != null) ? store.getBytes(entryName) : IOUtils.toByteArray(jis);
+						pool.execute(new Runnable() {
+							public void run() {
+								try {
+									// Skip if already loaded the usual way meanwhile
+									if (findLoadedClass(name) == null) {
+										instrument(name, original, cache);
+									}
+								} catch (Throwable e) {
+									// findClass will report the problem
+									if (debug) {
+										Logger.debug("Unable to preinstrument " + name, e);
+									}
+								}
+							}
+						});
+						count++;
+					}
+					if (traceClassLoading) {
+						Logger.info("Preinstrumenting " + count + " MIDlet classes");
+					}
+				} catch (IOException e) {
+					Logger.debug("Unable to preinstrument " + jarUrl, e);
+				} finally {
+					IOUtils.closeQuietly(jis);
+				}
+			}
+		});
+	}
 }
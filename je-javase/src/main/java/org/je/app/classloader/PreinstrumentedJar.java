@@ -0,0 +1,83 @@
+package org.je.app.classloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.je.app.util.IOUtils;
+import org.je.log.Logger;
+
+/**
+ * Layout of MIDlet jar instrumented ahead of time.
+ *
+ * Original entries are kept unchanged, so the jar still runs anywhere.
+ * Instrumented classes are stored next to them under
+ * <code>META-INF/je-instrumented/</code> and the index records the
+ * InstrumentationConfig and InstrumentedClassCache fingerprint used. When the
+ * fingerprint matches MIDletClassLoader defines the stored bytes without
+ * running ASM, otherwise the jar is instrumented at runtime as usual.
+ */
+public class PreinstrumentedJar {
+
+	public static final String PREFIX = "META-INF/je-instrumented/";
+
+	public static final String INDEX = PREFIX + "INDEX";
+
+	public static final String FINGERPRINT = "Instrumentation-Fingerprint";
+
+	public static final String CONFIG = "Instrumentation-Config";
+
+	public static final String CLASSES = "Instrumented-Classes";
+
+	/**
+	 * @param classResource
+	 *            class entry name e.g. <code>a/b/C.class</code>
+	 */
+	public static String entryName(String classResource) {
+		return PREFIX + classResource;
+	}
+
+	public static boolean isInstrumentedEntry(String name) {
+		return name.startsWith(PREFIX);
+	}
+
+	public static Properties createIndex(InstrumentationConfig config, int classes) {
+		Properties index = new Properties();
+		String fingerprint = InstrumentedClassCache.fingerprint(config);
+		if (fingerprint != null) {
+			index.setProperty(FINGERPRINT, fingerprint);
+		}
+		index.setProperty(CONFIG, config.toString());
+		index.setProperty(CLASSES, String.valueOf(classes));
+		return index;
+	}
+
+	/**
+	 * @return true if jar has index created by this emulator build for the
+	 *         same InstrumentationConfig
+	 */
+	public static boolean isUsable(JarResourceStore store, InstrumentationConfig config) {
+		if (!store.contains(INDEX)) {
+			return false;
+		}
+		Properties index = new Properties();
+		InputStream is = null;
+		try {
+			is = store.getInputStream(INDEX);
+			index.load(is);
+		} catch (IOException e) {
+			Logger.debug("Unable to read instrumented classes index", e);
+			return false;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+		String fingerprint = InstrumentedClassCache.fingerprint(config);
+		if ((fingerprint == null) || (!fingerprint.equals(index.getProperty(FINGERPRINT)))) {
+			Logger.debug("Jar instrumented by other emulator build or with [" + index.getProperty(CONFIG)
+					+ "], instrumenting at runtime");
+			return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.je.app.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.je.app.util.MIDletThread;
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Tells which classes of a MIDlet suite extend java.lang.Thread. Super classes
+ * are read from the class files, nothing is loaded, so it can be asked while
+ * the suite is instrumented.
+ */
+public class ThreadHierarchy {
+
+	/**
+	 * Class files of the MIDlet suite
+	 */
+	public interface ClassBytes {
+
+		/**
+		 * @param resource
+		 *            class entry name e.g. <code>a/b/C.class</code>
+		 * @return <code>null</code> if the class is not part of the suite
+		 */
+		byte[] get(String resource) throws IOException;
+	}
+
+	private static final String THREAD = "java/lang/Thread";
+
+	private static final String MIDLET_THREAD = ChangeCallsMethodVisitor.codeName(MIDletThread.class);
+
+	/* Protects against broken class files with a cycle */
+	private static final int MAX_DEPTH = 64;
+
+	private final ClassBytes classBytes;
+
+	/**
+	 * Internal class name to Boolean
+	 */
+	private final Map threads = new ConcurrentHashMap();
+
+	public ThreadHierarchy(ClassBytes classBytes) {
+		this.classBytes = classBytes;
+	}
+
+	/**
+	 * @param name
+	 *            internal class name e.g. <code>a/b/C</code>
+	 * @return true for Thread, MIDletThread and MIDlet classes extending them
+	 */
+	public boolean isThread(String name) {
+		List visited = new ArrayList();
+		Boolean thread = null;
+		for (int depth = 0; (thread == null) && (depth < MAX_DEPTH); depth++) {
+			if ((name == null) || name.startsWith("java/") || name.startsWith("javax/")) {
+				thread = Boolean.valueOf(THREAD.equals(name));
+			} else if (name.equals(MIDLET_THREAD)) {
+				thread = Boolean.TRUE;
+			} else {
+				thread = (Boolean) threads.get(name);
+				if (thread == null) {
+					visited.add(name);
+					name = getSuperName(name);
+				}
+			}
+		}
+		if (thread == null) {
+			thread = Boolean.FALSE;
+		}
+		for (Iterator i = visited.iterator(); i.hasNext();) {
+			threads.put(i.next(), thread);
+		}
+		return thread.booleanValue();
+	}
+
+	/**
+	 * Instrumentation of a class depends on the suite through the owners of its
+	 * isAlive and join calls. Part of the InstrumentedClassCache key.
+	 * 
+	 * @return MIDlet Thread subclasses owning isAlive or join method references
+	 *         of the class, empty if none
+	 */
+	public String threadOwners(byte[] classBytes) {
+		SortedSet owners = new TreeSet();
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(classBytes));
+			// magic, minor and major version
+			in.skipBytes(8);
+			int count = in.readUnsignedShort();
+			int[] tags = new int[count];
+			int[] first = new int[count];
+			int[] second = new int[count];
+			String[] utf8 = new String[count];
+			for (int i = 1; i < count; i++) {
+				tags[i] = in.readUnsignedByte();
+				switch (tags[i]) {
+				case 1: // Utf8
+					utf8[i] = in.readUTF();
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					first[i] = in.readUnsignedShort();
+					break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.skipBytes(4);
+					break;
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+					first[i] = in.readUnsignedShort();
+					second[i] = in.readUnsignedShort();
+					break;
+				case 5: // Long
+				case 6: // Double
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant " + tags[i]);
+				}
+			}
+			for (int i = 1; i < count; i++) {
+				if (tags[i] != 10) {
+					continue;
+				}
+				String name = utf8[first[second[i]]];
+				if ("isAlive".equals(name) || "join".equals(name)) {
+					String owner = utf8[first[first[i]]];
+					if ((owner != null) && !owner.equals(THREAD) && !owner.equals(MIDLET_THREAD) && isThread(owner)) {
+						owners.add(owner);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// Not a valid class file, instrumentation fails too
+		} catch (RuntimeException e) {
+			// Constant pool index out of range
+		}
+		StringBuffer b = new StringBuffer();
+		for (Iterator i = owners.iterator(); i.hasNext();) {
+			b.append(i.next()).append(' ');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return <code>null</code> if the class is not part of the suite
+	 */
+	private String getSuperName(String name) {
+		try {
+			byte[] bytes = classBytes.get(name + ".class");
+			return (bytes == null) ? null : new ClassReader(bytes).getSuperName();
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// Not a valid class file
+			return null;
+		}
+	}
+
+}
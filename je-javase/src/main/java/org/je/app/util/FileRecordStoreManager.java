@@ -1,26 +1,29 @@
 package org.je.app.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.AccessControlContext;
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.rms.InvalidRecordIDException;
-import javax.microedition.rms.RecordEnumeration;
 import javax.microedition.rms.RecordStore;
 import javax.microedition.rms.RecordStoreException;
 import javax.microedition.rms.RecordStoreNotFoundException;
@@ -35,28 +38,153 @@ import org.je.util.RecordStoreImpl;
 
 public class FileRecordStoreManager implements RecordStoreManager {
 
+	public static final String DURABILITY_NONE = "none";
+
+	public static final String DURABILITY_ON_CLOSE = "on-close";
+
+	public static final String DURABILITY_INTERVAL = "interval";
+
+	public static final String DURABILITY_FSYNC_EACH = "fsync-each";
+
+	/**
+	 * When record changes reach the disk. Changes are always applied in
+	 * memory first.
+	 * 
+	 * <pre>
+	 * none       - written behind every flushInterval or flushThreshold bytes
+	 * on-close   - written when the store is closed and on exit
+	 * interval   - written behind as none, each write forced to the device
+	 * fsync-each - written and forced to the device by the changing thread
+	 * </pre>
+	 */
+	public static String durability = DURABILITY_INTERVAL;
+
+	public static long flushInterval = 1000;
+
+	public static int flushThreshold = 64 * 1024;
+
 	private final static String RECORD_STORE_SUFFIX = ".rms";
 
-	private final static List replaceChars = new Vector();
+	/**
+	 * Characters escaped in file names
+	 */
+	private final static String REPLACE_CHARS = ":*?=|/\\\"";
+
+	/**
+	 * Record store name to file name, computed once per name
+	 */
+	private final static Hashtable fileNames = new Hashtable();
 
 	private MicroEmulator emulator;
 
-	private Hashtable testOpenRecordStores = new Hashtable();
+	/**
+	 * File path to RecordStoreImpl shared by all opens of the store. Closed
+	 * stores keep their record index and are reused while the file is
+	 * unchanged.
+	 */
+	private Hashtable recordStores = new Hashtable();
+
+	/**
+	 * File path to RecordStoreFile
+	 */
+	private Hashtable storeFiles = new Hashtable();
+
+	/**
+	 * RecordStoreImpl to PendingChanges not written yet
+	 */
+	private Hashtable pendingChanges = new Hashtable();
+
+	/**
+	 * Background thread writing pending changes and compacting files
+	 */
+	private ScheduledExecutorService writer;
+
+	private Thread shutdownHook;
 
 	private ExtendedRecordListener recordListener = null;
 
 	/* The context to be used when accessing files in Webstart */
 	private AccessControlContext acc;
 
-	static {
-		replaceChars.add(":");
-		replaceChars.add("*");
-		replaceChars.add("?");
-		replaceChars.add("=");
-		replaceChars.add("|");
-		replaceChars.add("/");
-		replaceChars.add("\\");
-		replaceChars.add("\"");
+	/**
+	 * Record changes of open store collected for a single write
+	 */
+	private class PendingChanges {
+
+		final RecordStoreImpl store;
+
+		final RecordStoreFile storeFile;
+
+		/**
+		 * Record id to Boolean.TRUE when deleted, the latest change wins
+		 */
+		private Map changes = new LinkedHashMap();
+
+		private int bytes;
+
+		PendingChanges(RecordStoreImpl store, RecordStoreFile storeFile) {
+			this.store = store;
+			this.storeFile = storeFile;
+		}
+
+		/**
+		 * @return true when collected changes just reached flushThreshold
+		 */
+		synchronized boolean add(int recordId, boolean deleted, int length) {
+			changes.put(Integer.valueOf(recordId), Boolean.valueOf(deleted));
+			bytes += length;
+			return (bytes >= flushThreshold) && (bytes - length < flushThreshold);
+		}
+
+		synchronized boolean isEmpty() {
+			return changes.isEmpty();
+		}
+
+		/**
+		 * Write collected changes. Concurrent flushes are serialized, store
+		 * close returns after a background write in progress.
+		 */
+		void flush(final boolean sync) throws RecordStoreException {
+			synchronized (storeFile) {
+				final Map batch;
+				synchronized (this) {
+					if (changes.isEmpty()) {
+						return;
+					}
+					batch = changes;
+					changes = new LinkedHashMap();
+					bytes = 0;
+				}
+				final int[] recordIds = new int[batch.size()];
+				final boolean[] deleted = new boolean[batch.size()];
+				int i = 0;
+				for (Iterator it = batch.entrySet().iterator(); it.hasNext(); i++) {
+					Map.Entry entry = (Map.Entry) it.next();
+					recordIds[i] = ((Integer) entry.getKey()).intValue();
+					deleted[i] = ((Boolean) entry.getValue()).booleanValue();
+				}
+				try {
+					AccessController.doPrivileged(new PrivilegedExceptionAction() {
+						public Object run() throws IOException, RecordStoreException {
+							storeFile.appendChanges(store, recordIds, deleted, sync);
+							return null;
+						}
+					}, acc);
+				} catch (PrivilegedActionException e) {
+					synchronized (this) {
+						// Retried by next flush unless changed again
+						for (Iterator it = batch.entrySet().iterator(); it.hasNext();) {
+							Map.Entry entry = (Map.Entry) it.next();
+							if (!changes.containsKey(entry.getKey())) {
+								changes.put(entry.getKey(), entry.getValue());
+							}
+						}
+					}
+					throw storeException(storeFile, e);
+				}
+			}
+		}
+
 	}
 
 	private FilenameFilter filter = new FilenameFilter() {
@@ -82,90 +210,120 @@ public class FileRecordStoreManager implements RecordStoreManager {
 		return new File(Config.getConfigPath(), "suite-" + emulator.getSuiteName());
 	}
 
-	private static String escapeCharacter(String charcter) {
-		return "_%%" + (int) (charcter.charAt(0)) + "%%_";
+	private static String escapeCharacter(char charcter) {
+		return "_%%" + (int) charcter + "%%_";
 	}
 
 	static String recordStoreName2FileName(String recordStoreName) {
-		for (Iterator iterator = replaceChars.iterator(); iterator.hasNext();) {
-			String c = (String) iterator.next();
-			String newValue = escapeCharacter(c);
-			if (c.equals("\\")) {
-				c = "\\\\";
+		String fileName = (String) fileNames.get(recordStoreName);
+		if (fileName == null) {
+			StringBuffer b = new StringBuffer(recordStoreName.length() + RECORD_STORE_SUFFIX.length());
+			for (int i = 0; i < recordStoreName.length(); i++) {
+				char c = recordStoreName.charAt(i);
+				if (REPLACE_CHARS.indexOf(c) != -1) {
+					b.append(escapeCharacter(c));
+				} else {
+					b.append(c);
+				}
 			}
-			c = "[" + c + "]";
-			recordStoreName = recordStoreName.replaceAll(c, newValue);
+			fileName = b.append(RECORD_STORE_SUFFIX).toString();
+			fileNames.put(recordStoreName, fileName);
 		}
-		return recordStoreName + RECORD_STORE_SUFFIX;
+		return fileName;
 	}
 
 	static String fileName2RecordStoreName(String fileName) {
-		for (Iterator iterator = replaceChars.iterator(); iterator.hasNext();) {
-			String c = (String) iterator.next();
-			String newValue = escapeCharacter(c);
-			if (c.equals("\\")) {
-				c = "\\\\";
-			}
-			fileName = fileName.replaceAll(newValue, c);
+		for (int i = 0; i < REPLACE_CHARS.length(); i++) {
+			char c = REPLACE_CHARS.charAt(i);
+			fileName = fileName.replace(escapeCharacter(c), String.valueOf(c));
 		}
 		return fileName.substring(0, fileName.length() - RECORD_STORE_SUFFIX.length());
 	}
 
 	public void deleteRecordStore(final String recordStoreName) throws RecordStoreNotFoundException,
 			RecordStoreException {
-		final File storeFile = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName));
+		final File file = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName));
+		final RecordStoreFile storeFile = getStoreFile(file);
 
-		RecordStoreImpl recordStoreImpl = (RecordStoreImpl) testOpenRecordStores.get(storeFile.getName());
-		if (recordStoreImpl != null && recordStoreImpl.isOpen()) {
-			throw new RecordStoreException();
-		}
-
-		try {
-			recordStoreImpl = loadFromDisk(storeFile);
-		} catch (FileNotFoundException ex) {
-			throw new RecordStoreNotFoundException(recordStoreName);
-		}
+		synchronized (recordStores) {
+			RecordStoreImpl recordStoreImpl = (RecordStoreImpl) recordStores.get(file.getPath());
+			if (recordStoreImpl != null && recordStoreImpl.isOpen()) {
+				throw new RecordStoreException();
+			}
 
-		try {
-			AccessController.doPrivileged(new PrivilegedExceptionAction() {
-				public Object run() throws FileNotFoundException {
-					storeFile.delete();
-					fireRecordStoreListener(ExtendedRecordListener.RECORDSTORE_DELETE, recordStoreName);
-					return null;
+			try {
+				AccessController.doPrivileged(new PrivilegedExceptionAction() {
+					public Object run() throws FileNotFoundException {
+						if (!file.isFile()) {
+							throw new FileNotFoundException();
+						}
+						file.delete();
+						return null;
+					}
+				}, acc);
+			} catch (PrivilegedActionException e) {
+				if (e.getCause() instanceof FileNotFoundException) {
+					throw new RecordStoreNotFoundException(recordStoreName);
 				}
-			}, acc);
-		} catch (PrivilegedActionException e) {
-			Logger.error("Unable remove file " + storeFile, e);
-			throw new RecordStoreException();
+				Logger.error("Unable remove file " + file, e);
+				throw new RecordStoreException();
+			}
+			recordStores.remove(file.getPath());
+			storeFiles.remove(file.getPath());
+			synchronized (pendingChanges) {
+				// Changes of closed store that failed to write
+				for (Iterator it = pendingChanges.values().iterator(); it.hasNext();) {
+					if (((PendingChanges) it.next()).storeFile == storeFile) {
+						it.remove();
+					}
+				}
+			}
 		}
+		fireRecordStoreListener(ExtendedRecordListener.RECORDSTORE_DELETE, recordStoreName);
 	}
 
 	public RecordStore openRecordStore(String recordStoreName, boolean createIfNecessary) throws RecordStoreException {
-		File storeFile = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName));
+		File file = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName));
+		RecordStoreFile storeFile = getStoreFile(file);
 
 		RecordStoreImpl recordStoreImpl;
-		try {
-			recordStoreImpl = loadFromDisk(storeFile);
-			recordStoreImpl.setOpen(true);
-		} catch (FileNotFoundException e) {
-			if (!createIfNecessary) {
-				throw new RecordStoreNotFoundException(recordStoreName);
+		synchronized (recordStores) {
+			recordStoreImpl = (RecordStoreImpl) recordStores.get(file.getPath());
+			if ((recordStoreImpl == null) || ((!recordStoreImpl.isOpen()) && (!isCurrent(storeFile)))) {
+				try {
+					recordStoreImpl = loadFromDisk(file);
+				} catch (FileNotFoundException e) {
+					if (!createIfNecessary) {
+						throw new RecordStoreNotFoundException(recordStoreName);
+					}
+					recordStoreImpl = new RecordStoreImpl(this, recordStoreName);
+					saveToDisk(storeFile, recordStoreImpl);
+				}
+				recordStores.put(file.getPath(), recordStoreImpl);
+			}
+			if ((!recordStoreImpl.isOpen()) && (recordListener != null)) {
+				// Listeners are removed by the last close
+				recordStoreImpl.addRecordListener(recordListener);
 			}
-			recordStoreImpl = new RecordStoreImpl(this, recordStoreName);
 			recordStoreImpl.setOpen(true);
-			saveToDisk(storeFile, recordStoreImpl);
-		}
-		if (recordListener != null) {
-			recordStoreImpl.addRecordListener(recordListener);
 		}
 
-		testOpenRecordStores.put(storeFile.getName(), recordStoreImpl);
-
 		fireRecordStoreListener(ExtendedRecordListener.RECORDSTORE_OPEN, recordStoreName);
 
 		return recordStoreImpl;
 	}
 
+	/**
+	 * @return true if closed store index still describes the file
+	 */
+	private boolean isCurrent(final RecordStoreFile storeFile) {
+		return ((Boolean) AccessController.doPrivileged(new PrivilegedAction() {
+			public Object run() {
+				return Boolean.valueOf(storeFile.isCurrent());
+			}
+		}, acc)).booleanValue();
+	}
+
 	public String[] listRecordStores() {
 		String[] result;
 		try {
@@ -192,20 +350,281 @@ public class FileRecordStoreManager implements RecordStoreManager {
 
 	public void deleteRecord(RecordStoreImpl recordStoreImpl, int recordId) throws RecordStoreNotOpenException, RecordStoreException 
 	{
-		saveRecord(recordStoreImpl, recordId);
+		recordChanged(recordStoreImpl, recordId, true);
 	}
 	
-	public void loadRecord(RecordStoreImpl recordStoreImpl, int recordId)
+	public void loadRecord(final RecordStoreImpl recordStoreImpl, final int recordId)
 			throws RecordStoreNotOpenException, InvalidRecordIDException, RecordStoreException 
 	{
-		// records are loaded when record store opens
+		// Unknown ids and records not written yet have no location
+		final Long offset = (Long) recordStoreImpl.getRecordLocation(recordId);
+		if (offset == null) {
+			return;
+		}
+		final RecordStoreFile storeFile = getStoreFile(recordStoreImpl.getName());
+		final int length = recordStoreImpl.getRecordSize(recordId);
+		try {
+			AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException {
+					recordStoreImpl.recordLoaded(recordId, storeFile.read(offset.longValue(), length));
+					return null;
+				}
+			}, acc);
+		} catch (PrivilegedActionException e) {
+			throw storeException(storeFile, e);
+		}
 	}
 
 	public void saveRecord(RecordStoreImpl recordStoreImpl, int recordId) throws RecordStoreNotOpenException, RecordStoreException 
 	{
-		File storeFile = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreImpl.getName()));
+		recordChanged(recordStoreImpl, recordId, false);
+	}
+
+	/**
+	 * Collect the change for background write or write it now in fsync-each
+	 * mode. Changed data stays in memory until written.
+	 */
+	private void recordChanged(RecordStoreImpl recordStoreImpl, int recordId, boolean deleted)
+			throws RecordStoreException {
+		final PendingChanges pending = getPendingChanges(recordStoreImpl);
+		int length = 0;
+		if (!deleted) {
+			try {
+				length = recordStoreImpl.getRecordSize(recordId);
+			} catch (InvalidRecordIDException e) {
+				// Deleted meanwhile
+			}
+		}
+		boolean full = pending.add(recordId, deleted, length);
+		if (DURABILITY_FSYNC_EACH.equals(durability)) {
+			pending.flush(true);
+			scheduleCompaction(pending);
+		} else if (full && !DURABILITY_ON_CLOSE.equals(durability)) {
+			getWriter().execute(new Runnable() {
+				public void run() {
+					flushInBackground(pending);
+				}
+			});
+		}
+	}
+
+	private PendingChanges getPendingChanges(RecordStoreImpl recordStoreImpl) throws RecordStoreException {
+		synchronized (pendingChanges) {
+			PendingChanges pending = (PendingChanges) pendingChanges.get(recordStoreImpl);
+			if (pending == null) {
+				// Closed stores were flushed by their close
+				for (Iterator it = pendingChanges.values().iterator(); it.hasNext();) {
+					PendingChanges closed = (PendingChanges) it.next();
+					if ((!closed.store.isOpen()) && closed.isEmpty()) {
+						it.remove();
+					}
+				}
+				pending = new PendingChanges(recordStoreImpl, getStoreFile(recordStoreImpl.getName()));
+				pendingChanges.put(recordStoreImpl, pending);
+				if (!DURABILITY_FSYNC_EACH.equals(durability)) {
+					// Start background writes and exit flush with the first change
+					getWriter();
+				}
+			}
+			return pending;
+		}
+	}
+
+	private static boolean isSync() {
+		return !DURABILITY_NONE.equals(durability);
+	}
+
+	/**
+	 * Write pending changes of every instance of the store file. Store state is
+	 * not checked, the shutdown flush uses the same path for closed stores.
+	 */
+	public void closeRecordStore(RecordStoreImpl recordStoreImpl) throws RecordStoreException {
+		PendingChanges closing = (PendingChanges) pendingChanges.get(recordStoreImpl);
+		if (closing == null) {
+			return;
+		}
+		RecordStoreFile storeFile = closing.storeFile;
+		Object[] pendings = pendingChanges.values().toArray();
+		for (int i = 0; i < pendings.length; i++) {
+			PendingChanges pending = (PendingChanges) pendings[i];
+			if (pending.storeFile == storeFile) {
+				pending.flush(isSync());
+			}
+		}
+	}
+
+	/**
+	 * Write pending changes of all stores, called on exit
+	 */
+	public void flush() {
+		Object[] pendings = pendingChanges.values().toArray();
+		for (int i = 0; i < pendings.length; i++) {
+			try {
+				((PendingChanges) pendings[i]).flush(isSync());
+			} catch (RecordStoreException e) {
+				Logger.error("RecordStore: ERROR writing changes", e);
+			}
+		}
+	}
+
+	/**
+	 * Group commit on the writer thread, followed by compaction when needed
+	 */
+	private void flushInBackground(PendingChanges pending) {
+		try {
+			pending.flush(isSync());
+		} catch (RecordStoreException e) {
+			// Logged by storeException, retried on next interval
+			return;
+		}
+		synchronized (pendingChanges) {
+			// Closed store was flushed by its close
+			if ((!pending.store.isOpen()) && pending.isEmpty()) {
+				pendingChanges.remove(pending.store);
+			}
+		}
+		compact(pending);
+	}
+
+	private void flushAllInBackground() {
+		Object[] pendings = pendingChanges.values().toArray();
+		for (int i = 0; i < pendings.length; i++) {
+			flushInBackground((PendingChanges) pendings[i]);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getWriter() {
+		if (writer == null) {
+			writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "RecordStoreWriter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			if (DURABILITY_NONE.equals(durability) || DURABILITY_INTERVAL.equals(durability)) {
+				writer.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						flushAllInBackground();
+					}
+				}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+			}
+			shutdownHook = new Thread(new Runnable() {
+				public void run() {
+					flush();
+				}
+			}, "RecordStoreFlush");
+			try {
+				Runtime.getRuntime().addShutdownHook(shutdownHook);
+			} catch (SecurityException e) {
+				Logger.debug("Unable to flush record stores on exit", e);
+			}
+		}
+		return writer;
+	}
+
+	/**
+	 * Compact in background when superseded log entries take too much space
+	 */
+	private void scheduleCompaction(final PendingChanges pending) {
+		if (!pending.storeFile.needsCompaction(pending.store)) {
+			return;
+		}
+		getWriter().execute(new Runnable() {
+			public void run() {
+				compact(pending);
+			}
+		});
+	}
 
-		saveToDisk(storeFile, recordStoreImpl);
+	private void compact(PendingChanges pending) {
+		final RecordStoreImpl recordStoreImpl = pending.store;
+		final RecordStoreFile storeFile = pending.storeFile;
+		try {
+			AccessController.doPrivileged(new PrivilegedExceptionAction() {
+				public Object run() throws IOException, RecordStoreException {
+					synchronized (storeFile) {
+						// Closed store has no records, file is compacted on next change
+						if (recordStoreImpl.isOpen() && storeFile.needsCompaction(recordStoreImpl)) {
+							storeFile.compact(recordStoreImpl, isSync());
+						}
+					}
+					return null;
+				}
+			}, acc);
+		} catch (PrivilegedActionException e) {
+			Logger.error("RecordStore compaction: ERROR writing " + storeFile.getFile().getName(), e.getCause());
+		}
+	}
+
+	private RecordStoreFile getStoreFile(String recordStoreName) {
+		return getStoreFile(new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName)));
+	}
+
+	private RecordStoreFile getStoreFile(File file) {
+		synchronized (storeFiles) {
+			RecordStoreFile storeFile = (RecordStoreFile) storeFiles.get(file.getPath());
+			if (storeFile == null) {
+				storeFile = new RecordStoreFile(this, file);
+				storeFiles.put(file.getPath(), storeFile);
+			}
+			return storeFile;
+		}
+	}
+
+	private static RecordStoreException storeException(RecordStoreFile storeFile, PrivilegedActionException e) {
+		if (e.getCause() instanceof RecordStoreException) {
+			return (RecordStoreException) e.getCause();
+		}
+		Logger.error("RecordStore: ERROR accessing " + storeFile.getFile().getName(), e.getCause());
+		return new RecordStoreException(e.getCause().getMessage());
+	}
+
+	/**
+	 * Write record store in MIDRMS version 3 format with records inline
+	 */
+	public void exportRecordStore(String recordStoreName, OutputStream os) throws IOException, RecordStoreException {
+		RecordStoreImpl recordStoreImpl = (RecordStoreImpl) openRecordStore(recordStoreName, false);
+		try {
+			DataOutputStream dos = new DataOutputStream(os);
+			recordStoreImpl.writeHeader(dos);
+			int[] recordIds = recordStoreImpl.getRecordIds();
+			Arrays.sort(recordIds);
+			for (int i = 0; i < recordIds.length; i++) {
+				recordStoreImpl.writeRecord(dos, recordIds[i]);
+			}
+			dos.flush();
+		} finally {
+			recordStoreImpl.closeRecordStore();
+		}
+	}
+
+	/**
+	 * Create or replace record store from MIDRMS version 3 data, store name is
+	 * taken from the header
+	 * 
+	 * @return imported record store name
+	 */
+	public String importRecordStore(InputStream is) throws IOException, RecordStoreException {
+		RecordStoreImpl recordStoreImpl = new RecordStoreImpl(this);
+		DataInputStream dis = new DataInputStream(is);
+		int size = recordStoreImpl.readHeader(dis);
+		for (int i = 0; i < size; i++) {
+			recordStoreImpl.readRecord(dis);
+		}
+		recordStoreImpl.setOpen(true);
+		String recordStoreName = recordStoreImpl.getName();
+		File file = new File(getSuiteFolder(), recordStoreName2FileName(recordStoreName));
+		synchronized (recordStores) {
+			RecordStoreImpl openStore = (RecordStoreImpl) recordStores.get(file.getPath());
+			if ((openStore != null) && openStore.isOpen()) {
+				throw new RecordStoreException("Record store " + recordStoreName + " is open");
+			}
+			saveToDisk(getStoreFile(file), recordStoreImpl);
+			// Next open reads imported file
+			recordStores.remove(file.getPath());
+		}
+		return recordStoreName;
 	}
 
 	public void init() {
@@ -224,10 +643,11 @@ public class FileRecordStoreManager implements RecordStoreManager {
 	}
 
 	private RecordStoreImpl loadFromDisk(final File recordStoreFile) throws FileNotFoundException {
+		final RecordStoreFile storeFile = getStoreFile(recordStoreFile);
 		try {
 			return (RecordStoreImpl) AccessController.doPrivileged(new PrivilegedExceptionAction() {
 				public Object run() throws FileNotFoundException {
-					return loadFromDiskSecure(recordStoreFile);
+					return loadFromDiskSecure(storeFile);
 				}
 			}, acc);
 		} catch (PrivilegedActionException e) {
@@ -239,59 +659,28 @@ public class FileRecordStoreManager implements RecordStoreManager {
 		}
 	}
 
-	private RecordStoreImpl loadFromDiskSecure(File recordStoreFile) throws FileNotFoundException {
-		RecordStoreImpl store = null;
+	private RecordStoreImpl loadFromDiskSecure(RecordStoreFile storeFile) throws FileNotFoundException {
 		try {
-			store = new RecordStoreImpl(this);
-			DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(recordStoreFile)));
-			int size = store.readHeader(dis);
-			for (int i = 0; i < size; i++) {
-				store.readRecord(dis);
-			}
-			dis.close();
+			return storeFile.load();
 		} catch (FileNotFoundException e) {
 			throw e;
 		} catch (IOException e) {
-			Logger.error("RecordStore.loadFromDisk: ERROR reading " + recordStoreFile.getName(), e);
+			Logger.error("RecordStore.loadFromDisk: ERROR reading " + storeFile.getFile().getName(), e);
+			// Rewritten on first change
+			return new RecordStoreImpl(this, fileName2RecordStoreName(storeFile.getFile().getName()));
 		}
-		return store;
 	}
 
-	private void saveToDisk(final File recordStoreFile, final RecordStoreImpl recordStore) throws RecordStoreException {
+	private void saveToDisk(final RecordStoreFile storeFile, final RecordStoreImpl recordStore) throws RecordStoreException {
 		try {
 			AccessController.doPrivileged(new PrivilegedExceptionAction() {
-				public Object run() throws RecordStoreException {
-					saveToDiskSecure(recordStoreFile, recordStore);
+				public Object run() throws IOException, RecordStoreException {
+					storeFile.compact(recordStore, isSync());
 					return null;
 				}
 			}, acc);
 		} catch (PrivilegedActionException e) {
-			if (e.getCause() instanceof RecordStoreException) {
-				throw (RecordStoreException) e.getCause();
-			}
-			Logger.error("Unable access file " + recordStoreFile, e);
-			throw new RecordStoreException();
-		}
-	}
-
-	private synchronized void saveToDiskSecure(final File recordStoreFile, final RecordStoreImpl recordStore)
-			throws RecordStoreException {
-		if (!recordStoreFile.getParentFile().exists()) {
-			if (!recordStoreFile.getParentFile().mkdirs()) {
-				throw new RecordStoreException("Unable to create recordStore directory");
-			}
-		}
-		try {
-			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordStoreFile)));
-			recordStore.writeHeader(dos);
-			RecordEnumeration re = recordStore.enumerateRecords(null, null, false);
-			while (re.hasNextElement()) {
-				recordStore.writeRecord(dos, re.nextRecordId());
-			}
-			dos.close();
-		} catch (IOException e) {
-			Logger.error("RecordStore.saveToDisk: ERROR writting object to " + recordStoreFile.getName(), e);
-			throw new RecordStoreException(e.getMessage());
+			throw storeException(storeFile, e);
 		}
 	}
 
@@ -1,11 +1,13 @@
 package org.je.app.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
 
 /**
@@ -74,6 +76,20 @@ public class IOUtils {
 		}
 	}
 	
+	/**
+	 * Get the contents of an <code>InputStream</code> as a <code>byte[]</code>.
+	 * The stream is not closed.
+	 */
+	public static byte[] toByteArray(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(4 * 1024);
+		byte[] buf = new byte[4 * 1024];
+		int i;
+		while ((i = is.read(buf)) != -1) {
+			out.write(buf, 0, i);
+		}
+		return out.toByteArray();
+	}
+	
     /**
      * Unconditionally close an <code>InputStream</code>.
      * <p>
@@ -110,6 +126,24 @@ public class IOUtils {
         }
     }
     
+    /**
+     * Unconditionally close a <code>Reader</code>.
+     * <p>
+     * Equivalent to {@link Reader#close()}, except any exceptions will be ignored.
+     * This is typically used in finally blocks.
+     *
+     * @param input  the Reader to close, may be null or already closed
+     */
+    public static void closeQuietly(Reader input) {
+        try {
+            if (input != null) {
+                input.close();
+            }
+        } catch (IOException ioe) {
+            // ignore
+        }
+    }
+    
     /**
      * Unconditionally close a <code>Writer</code>.
      * <p>
@@ -0,0 +1,334 @@
+package org.je.app.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import org.je.app.Config;
+import org.je.log.Logger;
+import org.je.util.Base64Coder;
+
+/**
+ * Persistent download cache for remote JAD and JAR files.
+ *
+ * Content is stored once per SHA-1 of its bytes, the hash is computed while
+ * downloading. Per URL metadata keeps the content hash and the ETag and
+ * Last-Modified validators. Cached content is revalidated with a conditional
+ * request on every access, unchanged files are not transferred again. Least
+ * recently used content is removed when the cache grows over maxSize.
+ *
+ * Local files are never copied, the file itself is returned and mapped by
+ * JarResourceStore.
+ *
+ * Location: {Config.getConfigPath()}/jarcache/
+ */
+public class JarCache {
+
+	public static boolean enabled = true;
+
+	public static long maxSize = 64L * 1024 * 1024;
+
+	private static final String DIGEST = "SHA-1";
+
+	private static final String HASH = "hash";
+
+	private static final String SIZE = "size";
+
+	private static final String ETAG = "etag";
+
+	private static final String LAST_MODIFIED = "lastModified";
+
+	private static final String URL = "url";
+
+	private static JarCache instance;
+
+	private final File directory;
+
+	private final File contentDirectory;
+
+	public JarCache(File directory) {
+		this.directory = directory;
+		this.contentDirectory = new File(directory, "content");
+	}
+
+	/**
+	 * @return shared cache in emulator configuration directory or
+	 *         <code>null</code> if it is disabled or the directory is not
+	 *         available
+	 */
+	public static synchronized JarCache getDefault() {
+		if (!enabled) {
+			return null;
+		}
+		if (instance == null) {
+			File configPath = Config.getConfigPath();
+			if (configPath == null) {
+				return null;
+			}
+			instance = new JarCache(new File(configPath, "jarcache"));
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if url content should be taken from the cache
+	 */
+	public static boolean isCacheable(URL url) {
+		String protocol = url.getProtocol();
+		return enabled && ("http".equals(protocol) || "https".equals(protocol));
+	}
+
+	/**
+	 * @return the local file when url points to one
+	 */
+	public static File toLocalFile(URL url) {
+		if (!"file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			File file = new File(url.toURI());
+			return file.isFile() ? file : null;
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Return local copy of url content, downloading it only when the cached
+	 * copy is missing or the server reports it changed.
+	 *
+	 * @return file that must not be modified
+	 */
+	public synchronized File get(URL url) throws IOException {
+		File local = toLocalFile(url);
+		if (local != null) {
+			return local;
+		}
+		File metaFile = new File(directory, hash(url.toExternalForm().getBytes("UTF-8")) + ".properties");
+		Properties meta = loadMeta(metaFile);
+		File cached = null;
+		if (meta != null) {
+			cached = getContentFile(meta.getProperty(HASH));
+			if ((!cached.isFile()) || (!String.valueOf(cached.length()).equals(meta.getProperty(SIZE)))) {
+				cached = null;
+			}
+		}
+
+		URLConnection conn = url.openConnection();
+		if (url.getUserInfo() != null) {
+			String userInfo = new String(Base64Coder.encode(url.getUserInfo().getBytes("UTF-8")));
+			conn.setRequestProperty("Authorization", "Basic " + userInfo);
+		}
+		if ((cached != null) && (conn instanceof HttpURLConnection)) {
+			String etag = meta.getProperty(ETAG);
+			if (etag != null) {
+				conn.setRequestProperty("If-None-Match", etag);
+			}
+			String lastModified = meta.getProperty(LAST_MODIFIED);
+			if (lastModified != null) {
+				conn.setRequestProperty("If-Modified-Since", lastModified);
+			}
+			if (((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				IOUtils.closeQuietly(conn.getInputStream());
+				Logger.debug("Using cached", url);
+				cached.setLastModified(System.currentTimeMillis());
+				return cached;
+			}
+		}
+
+		File content = download(conn);
+		meta = new Properties();
+		meta.setProperty(URL, stripUserInfo(url));
+		meta.setProperty(HASH, content.getName().substring(0, content.getName().indexOf('.')));
+		meta.setProperty(SIZE, String.valueOf(content.length()));
+		if (conn.getHeaderField("ETag") != null) {
+			meta.setProperty(ETAG, conn.getHeaderField("ETag"));
+		}
+		if (conn.getHeaderField("Last-Modified") != null) {
+			meta.setProperty(LAST_MODIFIED, conn.getHeaderField("Last-Modified"));
+		}
+		storeMeta(metaFile, meta);
+		evict(content);
+		return content;
+	}
+
+	private File download(URLConnection conn) throws IOException {
+		if ((!contentDirectory.isDirectory()) && (!contentDirectory.mkdirs())) {
+			throw new IOException("Unable to create jar cache directory " + contentDirectory);
+		}
+		MessageDigest md = createDigest();
+		File tmp = File.createTempFile("download", ".tmp", contentDirectory);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = new DigestInputStream(conn.getInputStream(), md);
+			os = new FileOutputStream(tmp);
+			byte[] buf = new byte[16 * 1024];
+			int i;
+			while ((i = is.read(buf)) != -1) {
+				os.write(buf, 0, i);
+			}
+			os.close();
+			os = null;
+			File content = getContentFile(toHex(md.digest()));
+			if (content.isFile() && (content.length() == tmp.length())) {
+				// Same content from other url or other instance
+				tmp.delete();
+			} else if (!tmp.renameTo(content)) {
+				content.delete();
+				if (!tmp.renameTo(content)) {
+					throw new IOException("Unable to store " + content);
+				}
+			}
+			tmp = null;
+			content.setLastModified(System.currentTimeMillis());
+			return content;
+		} finally {
+			IOUtils.closeQuietly(is);
+			IOUtils.closeQuietly(os);
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Remove least recently used content over maxSize
+	 */
+	private void evict(File keep) {
+		File[] files = contentDirectory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				// Skip downloads in progress
+				return file.getName().endsWith(".bin");
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+		}
+		if (total <= maxSize) {
+			return;
+		}
+		Arrays.sort(files, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long m1 = ((File) o1).lastModified();
+				long m2 = ((File) o2).lastModified();
+				return (m1 < m2) ? -1 : ((m1 == m2) ? 0 : 1);
+			}
+		});
+		for (int i = 0; (i < files.length) && (total > maxSize); i++) {
+			if (files[i].equals(keep)) {
+				continue;
+			}
+			long length = files[i].length();
+			if (files[i].delete()) {
+				// Metadata of removed content is ignored on next access
+				total -= length;
+			}
+		}
+	}
+
+	private File getContentFile(String hash) {
+		return new File(contentDirectory, hash + ".bin");
+	}
+
+	private static Properties loadMeta(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			Properties meta = new Properties();
+			meta.load(is);
+			return (meta.getProperty(HASH) == null) ? null : meta;
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	private void storeMeta(File file, Properties meta) {
+		OutputStream os = null;
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("meta", ".tmp", directory);
+			os = new FileOutputStream(tmp);
+			meta.store(os, null);
+			os.close();
+			os = null;
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			Logger.debug("Unable to store jar cache entry", e);
+		} finally {
+			IOUtils.closeQuietly(os);
+			if ((tmp != null) && tmp.isFile()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private static String stripUserInfo(URL url) {
+		if (url.getUserInfo() == null) {
+			return url.toExternalForm();
+		}
+		try {
+			return new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile()).toExternalForm();
+		} catch (MalformedURLException e) {
+			return url.getHost();
+		}
+	}
+
+	private static MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private static String hash(byte[] data) throws IOException {
+		MessageDigest md = createDigest();
+		md.update(data);
+		return toHex(md.digest());
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuffer b = new StringBuffer(digest.length * 2);
+		for (int i = 0; i < digest.length; i++) {
+			int v = digest[i] & 0xFF;
+			if (v < 0x10) {
+				b.append('0');
+			}
+			b.append(Integer.toHexString(v));
+		}
+		return b.toString();
+	}
+
+}
@@ -1,8 +1,11 @@
 package org.je.app.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.je.Injected;
+import org.je.app.classloader.MIDletClassLoader;
 import org.je.log.Logger;
 import org.je.util.ThreadUtils;
 
@@ -49,11 +52,28 @@ public class MIDletResourceLoader {
 		if (is == null) {
 			Logger.debug("Resource not found ", resourceName);
 			return null;
+		} else if (is instanceof ByteArrayInputStream) {
+			// Indexed jar resource, already reads all bytes available in one call
+			return is;
 		} else {
 			return new MIDletResourceInputStream(is);
 		}
 	}
 
+	/**
+	 * Access MIDlet resource content without stream copy when MIDlet jar is
+	 * indexed by MIDletClassLoader. Returned buffer must not be modified.
+	 * 
+	 * @return <code>null</code> if resource is not available this way, use
+	 *         getResourceAsStream
+	 */
+	public static ByteBuffer getResourceBuffer(Class origClass, String resourceName) {
+		if (!(classLoader instanceof MIDletClassLoader)) {
+			return null;
+		}
+		return ((MIDletClassLoader) classLoader).getResourceBuffer(resolveName(origClass, resourceName));
+	}
+
 	private static String resolveName(Class origClass, String name) {
 		if (name == null) {
 			return name;
@@ -22,7 +22,12 @@ public class MIDletThread extends Thread {
 	
     static boolean debug = false;
 
-	private static boolean terminator = false;
+	private static boolean virtualThreads = false;
+	
+	/**
+	 * MIDletThread running the code of the current virtual thread
+	 */
+	private static final ThreadLocal currentMIDletThread = new ThreadLocal();
 	
 	private static Map midlets = new WeakHashMap();
 	
@@ -30,6 +35,11 @@ public class MIDletThread extends Thread {
     
     private String callLocation;
     
+    /**
+     * Virtual thread executing this MIDletThread, null for platform threads
+     */
+    private volatile Thread virtualThread;
+    
     private static synchronized int nextThreadNum() {
     	return threadInitNumber++;
     }
@@ -82,6 +92,113 @@ public class MIDletThread extends Thread {
 		threads.put(thread, midletContext);
 	}
 	
+	/**
+	 * Enable execution of MIDlet threads and timers on virtual threads. The
+	 * MIDletThread object itself is never started in this mode, it only
+	 * carries the identity seen by MIDlet code.
+	 * 
+	 * @return false if the runtime does not support virtual threads
+	 */
+	public static boolean setVirtualThreads(boolean enable) {
+		if (enable && !VirtualThreads.isSupported()) {
+			Logger.warn("Virtual threads require Java 21 or newer");
+			return false;
+		}
+		virtualThreads = enable;
+		return true;
+	}
+	
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	public synchronized void start() {
+		if (!virtualThreads) {
+			super.start();
+			return;
+		}
+		if (virtualThread != null) {
+			throw new IllegalThreadStateException();
+		}
+		virtualThread = VirtualThreads.unstarted(getName(), new Runnable() {
+			public void run() {
+				currentMIDletThread.set(MIDletThread.this);
+				MIDletThread.this.run();
+			}
+		});
+		virtualThread.start();
+	}
+	
+	public void interrupt() {
+		Thread t = virtualThread;
+		if (t != null) {
+			t.interrupt();
+		} else {
+			super.interrupt();
+		}
+	}
+	
+	public boolean isInterrupted() {
+		Thread t = virtualThread;
+		if (t != null) {
+			return t.isInterrupted();
+		}
+		return super.isInterrupted();
+	}
+	
+	public StackTraceElement[] getStackTrace() {
+		Thread t = virtualThread;
+		if (t != null) {
+			return t.getStackTrace();
+		}
+		return super.getStackTrace();
+	}
+	
+	/**
+	 * Injected instead of Thread.currentThread() when running on virtual threads
+	 */
+	public static Thread currentMIDletThread() {
+		Thread t = (Thread) currentMIDletThread.get();
+		if (t != null) {
+			return t;
+		}
+		return Thread.currentThread();
+	}
+	
+	/**
+	 * Injected instead of Thread.isAlive() when running on virtual threads
+	 */
+	public static boolean isAlive(Thread thread) {
+		if (thread instanceof MIDletThread) {
+			Thread t = ((MIDletThread) thread).virtualThread;
+			if (t != null) {
+				return t.isAlive();
+			}
+		}
+		return thread.isAlive();
+	}
+	
+	/**
+	 * Injected instead of Thread.join() when running on virtual threads
+	 */
+	public static void join(Thread thread) throws InterruptedException {
+		join(thread, 0);
+	}
+	
+	/**
+	 * Injected instead of Thread.join(long) when running on virtual threads
+	 */
+	public static void join(Thread thread, long millis) throws InterruptedException {
+		if (thread instanceof MIDletThread) {
+			Thread t = ((MIDletThread) thread).virtualThread;
+			if (t != null) {
+				t.join(millis);
+				return;
+			}
+		}
+		thread.join(millis);
+	}
+	
 	//TODO overrite run() in user Threads using ASM
 	public void run() {
 		 try {
@@ -95,31 +212,48 @@ public class MIDletThread extends Thread {
 	 }
 	
 	/**
-	 * Terminate all Threads created by MIDlet
-	 * @param previousMidletAccess
+	 * Terminate all Threads and Timers created by MIDlet. The context is
+	 * notified terminated when all of them have ended.
+	 * 
+	 * @param midletContext
 	 */
 	public static void contextDestroyed(final MIDletContext midletContext) {
 		if (midletContext == null) {
 			return;
 		}
 		final Map threads = (Map)midlets.remove(midletContext);
-		if ((threads != null) && (threads.size() != 0)) {
-			terminator = true;
-			Thread terminator = new Thread("MIDletThreadsTerminator") {
-				public void run() {
-					terminateThreads(threads);
-				}
-			};
-			terminator.start();
+		try {
+			// Timer threads are MIDletThreads too and end promptly once cancelled
+			MIDletTimer.contextDestroyed(midletContext);
+		} finally {
+			if ((threads != null) && (threads.size() != 0)) {
+				Thread terminator = new Thread("MIDletThreadsTerminator") {
+					public void run() {
+						try {
+							terminateThreads(threads);
+						} finally {
+							midletContext.notifyTerminated();
+						}
+					}
+				};
+				terminator.start();
+			} else {
+				midletContext.notifyTerminated();
+			}
 		}
-		MIDletTimer.contextDestroyed(midletContext);
 	}
 	
 	public static boolean hasRunningThreads(MIDletContext midletContext) {
-		//return (midlets.get(midletContext) != null);
-		return terminator;
+		if (midletContext == null) {
+			return false;
+		}
+		return !midletContext.isTerminated();
 	}
 	
+	/**
+	 * All threads of the context share one deadline; the context is finished
+	 * only when every thread has ended or has been interrupted.
+	 */
 	private static void terminateThreads(Map threads) {
 		long endTime = System.currentTimeMillis() + graceTerminationPeriod;
 		for (Iterator iter = threads.keySet().iterator(); iter.hasNext();) {
@@ -129,16 +263,16 @@ public class MIDletThread extends Thread {
 			}
 			if (o instanceof MIDletThread) {
 				MIDletThread t = (MIDletThread) o;
-				if (t.isAlive()) {
+				if (isAlive(t)) {
 					Logger.info("wait thread [" + t.getName() + "] end");
-					while ((endTime > System.currentTimeMillis()) && (t.isAlive())) {
+					while ((endTime > System.currentTimeMillis()) && (isAlive(t))) {
 						try {
-							t.join(700);
+							join(t, 700);
 						} catch (InterruptedException e) {
 							break;
 						}
 					}
-					if (t.isAlive()) {
+					if (isAlive(t)) {
 						Logger.warn("MIDlet thread [" + t.getName() + "] still running" + ThreadUtils.getTreadStackTrace(t));
 						if (t.callLocation != null) {
 							Logger.info("this thread [" + t.getName() + "] was created from " + t.callLocation);
@@ -151,7 +285,6 @@ public class MIDletThread extends Thread {
 			}
 		};
 		Logger.debug("all "+ threads.size() + " thread(s) finished");
-		terminator = false;
 	}
 
 }
@@ -1,14 +1,13 @@
 package org.je.app.util;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.je.MIDletBridge;
 import org.je.MIDletContext;
@@ -24,12 +23,13 @@ public class MIDletTimer extends Timer implements Runnable {
 
 	private static Map midlets = new WeakHashMap();
 
+	private static final long NANOS_PER_MILLI = 1000000L;
+
 	private String name;
 
 	private MIDletContext midletContext;
 	
-	// TODO use better data structure
-	List tasks;
+	final TaskQueue queue;
 	
     private volatile boolean cancelled;
 
@@ -39,7 +39,7 @@ public class MIDletTimer extends Timer implements Runnable {
 		super();
 		StackTraceElement[] ste = new Throwable().getStackTrace();
 		name = ste[1].getClassName() + "." + ste[1].getMethodName();
-		tasks = new ArrayList();
+		queue = new TaskQueue();
 		cancelled = false;
 		thread = new MIDletThread(this);
 		thread.start();
@@ -48,37 +48,37 @@ public class MIDletTimer extends Timer implements Runnable {
 	// TODO exceptions
 	public void schedule(TimerTask task, Date time) {
 		register(this);
-		schedule(task, time.getTime(), -1, false);
+		schedule(task, time.getTime() - System.currentTimeMillis(), -1, false);
 	}
 
 	// TODO exceptions
 	public void schedule(TimerTask task, Date firstTime, long period) {
 		register(this);
-		schedule(task, firstTime.getTime(), period, false);
+		schedule(task, firstTime.getTime() - System.currentTimeMillis(), period, false);
 	}
 
 	// TODO exceptions
 	public void schedule(TimerTask task, long delay) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, -1, false);
+		schedule(task, delay, -1, false);
 	}
 
 	// TODO exceptions
 	public void schedule(TimerTask task, long delay, long period) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, period, false);
+		schedule(task, delay, period, false);
 	}
 
 	// TODO exceptions
 	public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
 		register(this);
-		schedule(task, firstTime.getTime(), period, true);
+		schedule(task, firstTime.getTime() - System.currentTimeMillis(), period, true);
 	}
 
 	// TODO exceptions
 	public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
 		register(this);
-		schedule(task, System.currentTimeMillis() + delay, period, true);
+		schedule(task, delay, period, true);
 	}
 
 	public void cancel() {
@@ -89,69 +89,47 @@ public class MIDletTimer extends Timer implements Runnable {
 	
 	public void run() {
 		while (!cancelled) {
-			MIDletTimerTask task = null;
-			long nextTimeTask = Long.MAX_VALUE;
-			synchronized (tasks) {
-				Iterator it = tasks.iterator();
-				while (it.hasNext()) {
-					MIDletTimerTask candidate = (MIDletTimerTask) it.next();
-					if (candidate.time > System.currentTimeMillis()) {
-						if (candidate.time < nextTimeTask) {
-							nextTimeTask = candidate.time;
-						}
-						continue;
-					}
+			MIDletTimerTask task;
+			synchronized (queue) {
+				task = queue.peek();
+				try {
 					if (task == null) {
-						task = candidate;
-					} else if (candidate.time < task.time) {
-						if (task.time < nextTimeTask) {
-							nextTimeTask = task.time;
-						}
-						task = candidate;
-					} else if (candidate.time < nextTimeTask) {
-						nextTimeTask = candidate.time;
+						queue.wait();
+						continue;
 					}
-				}
-				if (task != null) {
-					if (task.period > 0) {
-						task.oneTimeTaskExcecuted = true;
+					long now = System.nanoTime();
+					long timeout = task.deadline - now;
+					if (timeout > 0) {
+						TimeUnit.NANOSECONDS.timedWait(queue, timeout);
+						continue;
 					}
-					tasks.remove(task);
+				} catch (InterruptedException e) {
+					continue;
 				}
-			}
-			
-			if (task != null) {
-				try {
-					task.run();
-
-					synchronized (tasks) {
-						// TODO implement scheduling for fixed rate tasks	
-						if (task.period > 0) {
-							task.time = System.currentTimeMillis() + task.period;
-							tasks.add(task);
-							if (task.time < nextTimeTask) {
-								nextTimeTask = task.time;
-							}
-						}
+				task.executionTime = task.time;
+				if (task.period > 0) {
+					// Reschedule before running, as java.util.Timer does. Fixed-rate
+					// tasks advance from their previous deadline so missed executions
+					// are caught up, fixed-delay tasks from the actual start time.
+					if (task.fixedRate) {
+						task.deadline += task.period * NANOS_PER_MILLI;
+						task.time += task.period;
+					} else {
+						task.deadline = System.nanoTime() + task.period * NANOS_PER_MILLI;
+						task.time = System.currentTimeMillis() + task.period;
 					}
-				} catch (Throwable t) {
-				    if (MIDletThread.debug) {
-				        Logger.debug("MIDletTimerTask throws", t);
-				    }
+					queue.reschedule(task);
+				} else {
+					queue.remove(task);
+					task.oneTimeTaskExcecuted = true;
 				}
 			}
-			
-			synchronized (tasks) {
-				try {
-					if (nextTimeTask == Long.MAX_VALUE) {
-						tasks.wait();
-					} else {
-						long timeout = nextTimeTask - System.currentTimeMillis();
-						if (timeout > 0) {
-							tasks.wait(timeout);
-						}
-					}
-				} catch (InterruptedException e) {
+
+			try {
+				task.run();
+			} catch (Throwable t) {
+				if (MIDletThread.debug) {
+					Logger.debug("MIDletTimerTask throws", t);
 				}
 			}
 		}
@@ -160,18 +138,141 @@ public class MIDletTimer extends Timer implements Runnable {
     private void terminate() {
         // Ensure visibility and wake the waiting thread
         cancelled = true;
-        synchronized (tasks) {
-            tasks.notifyAll();
+        synchronized (queue) {
+            queue.clear();
+            queue.notifyAll();
         }
     }
 	
-	private void schedule(TimerTask task, long time, long period, boolean fixedRate) {
-		synchronized (tasks) {
-			((MIDletTimerTask) task).timer = this;
-			((MIDletTimerTask) task).time = time;
-			((MIDletTimerTask) task).period = period;
-			tasks.add(task);
-			tasks.notify();
+	private void schedule(TimerTask timerTask, long delay, long period, boolean fixedRate) {
+		MIDletTimerTask task = (MIDletTimerTask) timerTask;
+		// Task re-scheduled from another timer, keep the other heap consistent
+		MIDletTimer previous = task.timer;
+		if ((previous != null) && (previous != this)) {
+			synchronized (previous.queue) {
+				previous.queue.remove(task);
+			}
+		}
+		synchronized (queue) {
+			task.timer = this;
+			task.time = System.currentTimeMillis() + delay;
+			task.deadline = System.nanoTime() + delay * NANOS_PER_MILLI;
+			task.period = period;
+			task.fixedRate = fixedRate;
+			task.oneTimeTaskExcecuted = false;
+			task.cancelled = false;
+			if (task.heapIndex >= 0) {
+				queue.reschedule(task);
+			} else {
+				queue.add(task);
+			}
+			if (queue.peek() == task) {
+				queue.notify();
+			}
+		}
+	}
+
+	/**
+	 * Binary min-heap of tasks ordered by nanosecond deadline. Each task keeps
+	 * its own heap index, so removal and rescheduling are O(log n). Guarded by
+	 * its own monitor.
+	 */
+	static final class TaskQueue {
+
+		private MIDletTimerTask[] heap = new MIDletTimerTask[16];
+
+		private int size;
+
+		MIDletTimerTask peek() {
+			return (size == 0) ? null : heap[0];
+		}
+
+		void add(MIDletTimerTask task) {
+			if (size == heap.length) {
+				MIDletTimerTask[] grown = new MIDletTimerTask[heap.length * 2];
+				System.arraycopy(heap, 0, grown, 0, size);
+				heap = grown;
+			}
+			task.heapIndex = size;
+			heap[size++] = task;
+			siftUp(task.heapIndex);
+		}
+
+		boolean remove(MIDletTimerTask task) {
+			int i = task.heapIndex;
+			if ((i < 0) || (i >= size) || (heap[i] != task)) {
+				return false;
+			}
+			task.heapIndex = -1;
+			size--;
+			if (i != size) {
+				MIDletTimerTask last = heap[size];
+				heap[i] = last;
+				last.heapIndex = i;
+				heap[size] = null;
+				reschedule(last);
+			} else {
+				heap[size] = null;
+			}
+			return true;
+		}
+
+		/**
+		 * Restore heap order after the deadline of a queued task has changed.
+		 */
+		void reschedule(MIDletTimerTask task) {
+			int i = task.heapIndex;
+			if ((i > 0) && (heap[i].deadline - heap[(i - 1) >>> 1].deadline < 0)) {
+				siftUp(i);
+			} else {
+				siftDown(i);
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				heap[i].heapIndex = -1;
+				heap[i] = null;
+			}
+			size = 0;
+		}
+
+		private void siftUp(int i) {
+			MIDletTimerTask task = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				MIDletTimerTask p = heap[parent];
+				// compare as difference, nanoTime values may overflow
+				if (task.deadline - p.deadline >= 0) {
+					break;
+				}
+				heap[i] = p;
+				p.heapIndex = i;
+				i = parent;
+			}
+			heap[i] = task;
+			task.heapIndex = i;
+		}
+
+		private void siftDown(int i) {
+			MIDletTimerTask task = heap[i];
+			int half = size >>> 1;
+			while (i < half) {
+				int child = (i << 1) + 1;
+				int right = child + 1;
+				if ((right < size) && (heap[right].deadline - heap[child].deadline < 0)) {
+					child = right;
+				}
+				MIDletTimerTask c = heap[child];
+				if (task.deadline - c.deadline <= 0) {
+					break;
+				}
+				heap[i] = c;
+				c.heapIndex = i;
+				i = child;
+			}
+			heap[i] = task;
+			task.heapIndex = i;
 		}
 	}
 
@@ -6,34 +6,58 @@ public abstract class MIDletTimerTask extends TimerTask {
 	
 	MIDletTimer timer;
 
+	/**
+	 * Next scheduled execution time in wall-clock milliseconds
+	 */
 	long time = -1;
 	
+	/**
+	 * Scheduled wall-clock time of the most recent execution
+	 */
+	long executionTime = -1;
+	
+	/**
+	 * Next scheduled execution as System.nanoTime() deadline, heap key
+	 */
+	long deadline;
+	
 	long period;
 	
+	boolean fixedRate;
+	
+	/**
+	 * Position in MIDletTimer.TaskQueue or -1 when not queued
+	 */
+	int heapIndex = -1;
+	
 	boolean oneTimeTaskExcecuted = false;
 	
+	boolean cancelled = false;
+	
 	public boolean cancel() {
-		if (timer == null) {
+		MIDletTimer t = timer;
+		if (t == null) {
 			return false;
 		}
 		
-		synchronized (timer.tasks) {
+		synchronized (t.queue) {
 			// task was never scheduled
 			if (time == -1) {
 				return false;
 			}		
 			// task was scheduled for one-time execution and has already run
-			if (oneTimeTaskExcecuted) {
+			if (oneTimeTaskExcecuted || cancelled) {
 				return false;
 			}
-			timer.tasks.remove(this);
+			cancelled = true;
+			t.queue.remove(this);
 		}
 
 		return true;
 	}
 
 	public long scheduledExecutionTime() {
-		return time;
+		return (executionTime == -1) ? time : executionTime;
 	}
 
 }
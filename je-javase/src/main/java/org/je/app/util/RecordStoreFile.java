@@ -0,0 +1,338 @@
+package org.je.app.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import javax.microedition.rms.InvalidRecordIDException;
+import javax.microedition.rms.RecordStoreException;
+
+import org.je.log.Logger;
+import org.je.util.RecordStoreImpl;
+
+/**
+ * Record store file in log-structured format.
+ *
+ * <pre>
+ * base: MIDRMS header version 4
+ *       index of (id, tag, length, offset) entries
+ *       record data
+ * log:  (type, id, version, lastModified, length, data) entries
+ * </pre>
+ *
+ * Open reads the base index and the headers of log entries, record data is
+ * read on demand. Record changes and deletes append small log entries. When
+ * superseded data takes more than half of the file it is compacted: the base
+ * is rewritten from the current state to a temporary file renamed over the
+ * store, the log becomes empty.
+ *
+ * Torn log entry at the end of file, left by a crash, is discarded.
+ *
+ * MIDRMS version 3 files with records inline are read whole and converted on
+ * the first change.
+ */
+class RecordStoreFile {
+
+	static final int FORMAT_VERSION = 4;
+
+	private static final int INDEX_ENTRY_SIZE = 4 + 4 + 4 + 8;
+
+	private static final int LOG_ENTRY_HEADER_SIZE = 1 + 4 + 4 + 8 + 4;
+
+	private static final byte LOG_SET = 1;
+
+	private static final byte LOG_DELETE = 2;
+
+	private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+	private final File file;
+
+	private final FileRecordStoreManager manager;
+
+	/**
+	 * End of valid data, appends start here. -1 when the file is not in
+	 * current format.
+	 */
+	private long logEnd = -1;
+
+	RecordStoreFile(FileRecordStoreManager manager, File file) {
+		this.manager = manager;
+		this.file = file;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	RecordStoreImpl load() throws IOException {
+		synchronized (this) {
+			logEnd = -1;
+		}
+		RecordStoreImpl store = new RecordStoreImpl(manager);
+		long baseEnd;
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int size = store.readHeader(dis);
+			if (store.getHeaderVersion() != FORMAT_VERSION) {
+				for (int i = 0; i < size; i++) {
+					store.readRecord(dis);
+				}
+				return store;
+			}
+			baseEnd = getHeaderSize(store) + (long) size * INDEX_ENTRY_SIZE;
+			for (int i = 0; i < size; i++) {
+				int recordId = dis.readInt();
+				dis.readInt(); // TODO Tag
+				int length = dis.readInt();
+				store.addStoredRecord(recordId, length, Long.valueOf(dis.readLong()));
+				baseEnd += length;
+			}
+		} finally {
+			dis.close();
+		}
+		long end = replay(store, baseEnd);
+		synchronized (this) {
+			logEnd = end;
+		}
+		return store;
+	}
+
+	/**
+	 * @return true if the file was not changed since it was loaded or written
+	 *         by this instance
+	 */
+	synchronized boolean isCurrent() {
+		return (logEnd != -1) && (file.length() == logEnd);
+	}
+
+	/**
+	 * Apply log entries to the store
+	 *
+	 * @return end of the last complete entry
+	 */
+	private long replay(RecordStoreImpl store, long pos) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			while (pos + LOG_ENTRY_HEADER_SIZE <= length) {
+				raf.seek(pos);
+				byte type = raf.readByte();
+				int recordId = raf.readInt();
+				int version = raf.readInt();
+				long lastModified = raf.readLong();
+				int dataLength = raf.readInt();
+				long dataOffset = pos + LOG_ENTRY_HEADER_SIZE;
+				if (((type != LOG_SET) && (type != LOG_DELETE)) || (dataLength < 0)
+						|| (dataOffset + dataLength > length)) {
+					break;
+				}
+				if (type == LOG_SET) {
+					store.addStoredRecord(recordId, dataLength, Long.valueOf(dataOffset));
+				} else {
+					store.removeStoredRecord(recordId);
+				}
+				store.setVersion(version, lastModified);
+				pos = dataOffset + dataLength;
+			}
+			if (pos < length) {
+				Logger.warn("RecordStore " + file.getName() + " has incomplete log entry, discarded");
+			}
+		} catch (EOFException e) {
+			// Entry header checked against file length
+		} finally {
+			raf.close();
+		}
+		return pos;
+	}
+
+	private static int getHeaderSize(RecordStoreImpl store) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		store.writeHeader(new DataOutputStream(header), FORMAT_VERSION);
+		return header.size();
+	}
+
+	/**
+	 * Not synchronized, called with the store locked. Log appends don't
+	 * move existing data, compaction locks the store.
+	 */
+	byte[] read(long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			raf.readFully(data);
+		} finally {
+			raf.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Append current state of changed records in a single write, a group
+	 * commit of changes collected by the write-behind flusher.
+	 * 
+	 * @param deleted
+	 *            true for records removed from the store
+	 * @param sync
+	 *            force written data to the device before returning
+	 */
+	synchronized void appendChanges(RecordStoreImpl store, int[] recordIds, boolean[] deleted, boolean sync)
+			throws IOException, RecordStoreException {
+		if (logEnd == -1) {
+			// Convert older format
+			compact(store, sync);
+			return;
+		}
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(entries);
+		byte[][] stored = new byte[recordIds.length][];
+		long[] offsets = new long[recordIds.length];
+		synchronized (store) {
+			int version = store.getStoredVersion();
+			long lastModified = store.getStoredLastModified();
+			for (int i = 0; i < recordIds.length; i++) {
+				byte[] data = null;
+				if (!deleted[i]) {
+					try {
+						data = store.getRecordData(recordIds[i]);
+					} catch (InvalidRecordIDException e) {
+						// Deleted after it was changed, delete entry follows
+						continue;
+					}
+				}
+				stored[i] = data;
+				dos.writeByte((data == null) ? LOG_DELETE : LOG_SET);
+				dos.writeInt(recordIds[i]);
+				dos.writeInt(version);
+				dos.writeLong(lastModified);
+				dos.writeInt((data == null) ? 0 : data.length);
+				offsets[i] = logEnd + dos.size();
+				if (data != null) {
+					dos.write(data);
+				}
+			}
+		}
+		if (entries.size() == 0) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != logEnd) {
+				// Drop torn entry
+				raf.setLength(logEnd);
+			}
+			raf.seek(logEnd);
+			raf.write(entries.toByteArray());
+			if (sync) {
+				raf.getFD().sync();
+			}
+		} finally {
+			raf.close();
+		}
+		logEnd += entries.size();
+		for (int i = 0; i < recordIds.length; i++) {
+			if (stored[i] != null) {
+				store.setRecordLocation(recordIds[i], stored[i], Long.valueOf(offsets[i]));
+			}
+		}
+	}
+
+	/**
+	 * @return true if superseded data takes more than half of the file
+	 */
+	synchronized boolean needsCompaction(RecordStoreImpl store) {
+		if ((logEnd == -1) || (logEnd < COMPACT_MIN_SIZE)) {
+			return false;
+		}
+		long live;
+		try {
+			live = store.getSize() + (long) store.getNumRecords() * INDEX_ENTRY_SIZE;
+		} catch (RecordStoreException e) {
+			return false;
+		}
+		return live < logEnd / 2;
+	}
+
+	/**
+	 * Rewrite the base from current store state, the log becomes empty. The
+	 * new file replaces the store by rename, a crash leaves either of them
+	 * complete.
+	 * 
+	 * @param sync
+	 *            force the new file to the device before rename
+	 */
+	synchronized void compact(RecordStoreImpl store, boolean sync) throws IOException, RecordStoreException {
+		File dir = file.getParentFile();
+		if ((!dir.exists()) && (!dir.mkdirs())) {
+			throw new RecordStoreException("Unable to create recordStore directory");
+		}
+		File tmp = new File(dir, file.getName() + ".tmp");
+		try {
+			synchronized (store) {
+				int[] recordIds = store.getRecordIds();
+				Arrays.sort(recordIds);
+				byte[][] stored = new byte[recordIds.length][];
+				long[] offsets = new long[recordIds.length];
+
+				// Records not loaded are read from the current file while writing new one
+				FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+				long end;
+				try {
+					store.writeHeader(dos, FORMAT_VERSION);
+					long offset = dos.size() + (long) recordIds.length * INDEX_ENTRY_SIZE;
+					for (int i = 0; i < recordIds.length; i++) {
+						// Lengths of loaded data, getRecordSize fails once the store is closed
+						stored[i] = store.getRecordData(recordIds[i]);
+						int length = stored[i].length;
+						offsets[i] = offset;
+						dos.writeInt(recordIds[i]);
+						dos.writeInt(0); // TODO Tag
+						dos.writeInt(length);
+						dos.writeLong(offset);
+						offset += length;
+					}
+					for (int i = 0; i < recordIds.length; i++) {
+						dos.write(stored[i]);
+					}
+					end = offset;
+					if (sync) {
+						dos.flush();
+						fos.getFD().sync();
+					}
+				} finally {
+					dos.close();
+				}
+				// The old or the new file is in place at any moment
+				try {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				tmp = null;
+				logEnd = end;
+				for (int i = 0; i < recordIds.length; i++) {
+					store.setRecordLocation(recordIds[i], stored[i], Long.valueOf(offsets[i]));
+				}
+			}
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+}
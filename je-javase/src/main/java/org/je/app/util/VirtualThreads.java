@@ -0,0 +1,31 @@
+package org.je.app.util;
+
+/**
+ * Access to JDK 21 virtual threads from Java 1.8 code.
+ * 
+ * This is the base version of a multi-release class, the JDK 21+ replacement
+ * is in META-INF/versions/21 of je-javase jar. On older runtimes virtual
+ * threads are reported as unsupported and MIDlet threads stay platform
+ * threads.
+ */
+public class VirtualThreads {
+
+	private VirtualThreads() {
+		
+	}
+
+	public static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Creates a new unstarted virtual thread.
+	 * 
+	 * @return the thread or <code>null</code> if virtual threads are not
+	 *         supported by this runtime
+	 */
+	public static Thread unstarted(String name, Runnable task) {
+		return null;
+	}
+
+}
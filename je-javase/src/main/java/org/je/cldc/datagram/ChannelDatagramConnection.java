@@ -0,0 +1,102 @@
+package org.je.cldc.datagram;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+import org.je.cldc.socket.SocketSelector;
+import org.je.util.net.BufferPool;
+
+/**
+ * Datagram connection on a non-blocking DatagramChannel, used when
+ * NetConfig.Sockets.nio is set. A receiving thread parks in
+ * {@link SocketSelector} instead of holding a blocked socket.
+ *
+ * Packets go through pooled direct buffers, the channel doesn't copy them to
+ * a temporary native buffer and nothing is allocated per packet.
+ */
+public class ChannelDatagramConnection extends Connection {
+
+	/** Large enough for any UDP payload */
+	private static final BufferPool PACKETS = new BufferPool(64 * 1024, 32);
+
+	private DatagramChannel channel;
+
+	private SocketSelector selector;
+
+	protected void bind(int port) throws IOException {
+		open();
+		try {
+			channel.bind((port == -1) ? null : new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	protected void connect(InetSocketAddress target) throws IOException {
+		open();
+		try {
+			channel.connect(target);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void open() throws IOException {
+		selector = SocketSelector.getInstance();
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		socket = channel.socket();
+	}
+
+	public void close() throws IOException {
+		closeMetrics();
+		selector.close(channel);
+	}
+
+	protected void sendPacket(DatagramPacket packet) throws IOException {
+		ByteBuffer buffer = PACKETS.acquire();
+		try {
+			buffer.put(packet.getData(), packet.getOffset(), packet.getLength());
+			buffer.flip();
+			SocketAddress target = null;
+			if (!channel.isConnected()) {
+				target = new InetSocketAddress(packet.getAddress(), packet.getPort());
+			}
+			// A datagram is sent whole or not at all
+			while (((target == null) ? channel.write(buffer) : channel.send(buffer, target)) == 0
+					&& buffer.hasRemaining()) {
+				selector.await(channel, SelectionKey.OP_WRITE);
+			}
+		} finally {
+			PACKETS.release(buffer);
+		}
+	}
+
+	protected void receivePacket(DatagramPacket packet) throws IOException {
+		ByteBuffer buffer = PACKETS.acquire();
+		try {
+			SocketAddress from;
+			while ((from = channel.receive(buffer)) == null) {
+				selector.await(channel, SelectionKey.OP_READ);
+			}
+			buffer.flip();
+			// Truncated to the packet length like DatagramSocket.receive
+			int len = Math.min(buffer.remaining(), packet.getLength());
+			buffer.get(packet.getData(), packet.getOffset(), len);
+			packet.setLength(len);
+			InetSocketAddress sender = (InetSocketAddress) from;
+			packet.setAddress(sender.getAddress());
+			packet.setPort(sender.getPort());
+		} finally {
+			PACKETS.release(buffer);
+		}
+	}
+
+}
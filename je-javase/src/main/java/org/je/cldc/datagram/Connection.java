@@ -1,6 +1,7 @@
 package org.je.cldc.datagram;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -12,6 +13,7 @@ import javax.microedition.io.UDPDatagramConnection;
 import org.je.microedition.io.ConnectionImplementation;
 import org.je.util.NetEventBus;
 import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
 
 /**
  * {@link ConnectionImplementation} for the datagram protocol (UDP).
@@ -26,17 +28,34 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 	/**
 	 * The encapsulated {@link DatagramSocket}
 	 */
-	private DatagramSocket socket;
+	protected DatagramSocket socket;
 
 	/**
 	 * The connection address in the format <tt>host:port</tt>
 	 */
-	private String address;
+	protected String address;
+
+	/**
+	 * Simulated link timing of this connection
+	 */
+	protected final NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+
+	/**
+	 * Measurements of this connection, null until opened
+	 */
+	protected NetMetrics.Recorder metrics;
 
 	public void close() throws IOException {
+		closeMetrics();
 		socket.close();
 	}
 
+	protected void closeMetrics() {
+		if (metrics != null) {
+			metrics.close();
+		}
+	}
+
 	public int getMaximumLength() throws IOException {
 		return Math.min(socket.getReceiveBufferSize(), socket.getSendBufferSize());
 	}
@@ -49,24 +68,55 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 		if (NetConfig.Policy.offline) throw new IOException("No network");
 		DatagramImpl di = (DatagramImpl) dgram;
 		int len = di.getDatagramPacket().getLength();
-		if (!NetConfig.Traffic.udpPermitAndDelay(len, null)) {
+		if (!NetConfig.Traffic.udpSend(flow, len)) {
 			try { NetEventBus.publish("UDP", "OUT", address, "drop:"+len); } catch (Throwable ignore) {}
 			return;
 		}
-		socket.send(di.getDatagramPacket());
+		sendPacket(di.getDatagramPacket());
+		NetConfig.Traffic.udpSent(flow, len);
 		try { NetEventBus.publish("UDP", "OUT", address, "send:"+len); } catch (Throwable ignore) {}
 	}
 
 	public void receive(Datagram dgram) throws IOException {
 		DatagramImpl di = (DatagramImpl) dgram;
-		socket.receive(di.getDatagramPacket());
+		receivePacket(di.getDatagramPacket());
 		int len = di.getDatagramPacket().getLength();
-		NetConfig.Traffic.udpPermitAndDelay(len, null);
+		NetConfig.Traffic.udpReceive(flow, len);
 		try { NetEventBus.publish("UDP", "IN", address, "recv:"+len); } catch (Throwable ignore) {}
 	}
 
+	protected void sendPacket(DatagramPacket packet) throws IOException {
+		socket.send(packet);
+	}
+
+	protected void receivePacket(DatagramPacket packet) throws IOException {
+		socket.receive(packet);
+	}
+
+	/**
+	 * Open the socket in server mode
+	 * 
+	 * @param port
+	 *            local port or -1 for any
+	 */
+	protected void bind(int port) throws IOException {
+		if (port == -1) {
+			socket = new DatagramSocket();
+		} else {
+			socket = new DatagramSocket(port);
+		}
+	}
+
+	/**
+	 * Open the socket in client mode
+	 */
+	protected void connect(InetSocketAddress target) throws IOException {
+		socket = new DatagramSocket();
+		socket.connect(target);
+	}
+
 	public Datagram newDatagram(int size) throws IOException {
-		return newDatagram(size, address);
+		return newDatagram(size, PROTOCOL + address);
 	}
 
 	public Datagram newDatagram(int size, String addr) throws IOException {
@@ -79,7 +129,7 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 	}
 
 	public Datagram newDatagram(byte[] buf, int size) throws IOException {
-		return newDatagram(buf, size, address);
+		return newDatagram(buf, size, PROTOCOL + address);
 	}
 
 	public Datagram newDatagram(byte[] buf, int size, String addr) throws IOException {
@@ -119,6 +169,9 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 		if (!name.startsWith(PROTOCOL)) {
 			throw new IOException("Invalid Protocol " + name);
 		}
+		if (NetConfig.Sockets.nio && !(this instanceof ChannelDatagramConnection)) {
+			return new ChannelDatagramConnection().openConnection(name, mode, timeouts);
+		}
 		// TODO currently we ignore the mode
 		address = name.substring(PROTOCOL.length());
 		int port = -1;
@@ -132,11 +185,8 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 		}
 	if (index == 0) {
 			// server mode
-			if (port == -1) {
-				socket = new DatagramSocket();
-			} else {
-				socket = new DatagramSocket(port);
-			}
+			bind(port);
+			metrics = NetMetrics.open(NetMetrics.DATAGRAM, "*", port);
 		} else {
 			// client mode
 			if (port == -1) {
@@ -151,9 +201,11 @@ public class Connection implements DatagramConnection, UDPDatagramConnection, Co
 			} else {
 				ia = NetConfig.Dns.resolveHost(host);
 			}
-			socket = new DatagramSocket();
-			socket.connect(new InetSocketAddress(ia, targetPort));
+			connect(new InetSocketAddress(ia, targetPort));
+			// Nothing is exchanged to connect, there's no connect time
+			metrics = NetMetrics.open(NetMetrics.DATAGRAM, host, port);
 		}
+		flow.track(metrics, true);
 	try { NetEventBus.publish("UDP", "OUT", address, "open"); } catch (Throwable ignore) {}
 		return this;
 	}
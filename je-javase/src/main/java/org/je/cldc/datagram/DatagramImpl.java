@@ -1,18 +1,24 @@
 package org.je.cldc.datagram;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import javax.microedition.io.Datagram;
 
 /**
  * {@link Datagram} realisation.
+ * 
+ * Reads and writes go straight to the packet buffer through a
+ * {@link ByteBuffer} view, multi-byte values and arrays are transferred in
+ * bulk. Reads stop at the packet length, writes at the end of the buffer.
  */
 public class DatagramImpl implements Datagram {
 
@@ -22,17 +28,27 @@ public class DatagramImpl implements Datagram {
 	private DatagramPacket packet;
 
 	/**
-	 * Our specialised {@link OutputStream} to write to the packet buffer
+	 * View of the packet buffer, positioned for each bulk transfer
 	 */
-	private BufferOutputStream os;
+	private ByteBuffer buffer;
 
 	/**
-	 * Used to write to the packet buffer
+	 * Absolute index of the next byte to read
+	 */
+	private int readPosition;
+
+	/**
+	 * Absolute index of the next byte to write
+	 */
+	private int writePosition;
+
+	/**
+	 * Used by writeUTF
 	 */
 	private DataOutputStream dos;
 
 	/**
-	 * Used to read from packet buffer
+	 * Used by readLine
 	 */
 	private DataInputStream dis;
 
@@ -42,25 +58,54 @@ public class DatagramImpl implements Datagram {
 	 */
 	class BufferOutputStream extends OutputStream {
 
-		private int originalOffset;
+		public void write(int b) throws IOException {
+			writeBuffer(1).put((byte) b);
+		}
 
-		private int offset;
+		public void write(byte[] b, int off, int len) throws IOException {
+			if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			writeBuffer(len).put(b, off, len);
+		}
+	}
 
-		public BufferOutputStream() {
-			this.originalOffset = packet.getOffset();
-			this.offset = originalOffset;
+	/**
+	 * A specialisation of {@link InputStream} that reads the encapsulated
+	 * {@link DatagramPacket} buffer up to its length
+	 */
+	class BufferInputStream extends InputStream {
+
+		public int read() throws IOException {
+			if (available() <= 0) {
+				return -1;
+			}
+			return readBuffer(1).get() & 0xFF;
 		}
 
-		public void write(int b) throws IOException {
-			byte[] buffer = packet.getData();
-			if (offset > buffer.length - 1) {
-				throw new BufferOverflowException();
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+				throw new IndexOutOfBoundsException();
+			}
+			if (len == 0) {
+				return 0;
 			}
-			buffer[offset++] = (byte) b;
+			int n = Math.min(len, available());
+			if (n <= 0) {
+				return -1;
+			}
+			readBuffer(n).get(b, off, n);
+			return n;
 		}
 
-		public void reset() {
-			offset = originalOffset;
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, available()));
+			readPosition += skipped;
+			return skipped;
+		}
+
+		public int available() {
+			return packet.getOffset() + packet.getLength() - readPosition;
 		}
 	}
 
@@ -98,9 +143,43 @@ public class DatagramImpl implements Datagram {
 	 * Initialises the input and output streams.
 	 */
 	private void initialiseInOut() {
-		os = new BufferOutputStream();
-		dos = new DataOutputStream(os);
-		dis = new DataInputStream(new ByteArrayInputStream(packet.getData()));
+		buffer = ByteBuffer.wrap(packet.getData());
+		readPosition = packet.getOffset();
+		writePosition = readPosition;
+		dos = new DataOutputStream(new BufferOutputStream());
+		dis = new DataInputStream(new BufferInputStream());
+	}
+
+	/**
+	 * Position the view for writing n bytes and advance the write position
+	 * 
+	 * @throws BufferOverflowException
+	 *             if n bytes don't fit in the packet buffer
+	 */
+	private ByteBuffer writeBuffer(int n) {
+		if (writePosition + n > buffer.capacity()) {
+			throw new BufferOverflowException();
+		}
+		buffer.limit(buffer.capacity());
+		buffer.position(writePosition);
+		writePosition += n;
+		return buffer;
+	}
+
+	/**
+	 * Position the view for reading n bytes and advance the read position
+	 * 
+	 * @throws EOFException
+	 *             if less than n bytes are left before the packet length
+	 */
+	private ByteBuffer readBuffer(int n) throws EOFException {
+		if (readPosition + n > packet.getOffset() + packet.getLength()) {
+			throw new EOFException();
+		}
+		buffer.limit(buffer.capacity());
+		buffer.position(readPosition);
+		readPosition += n;
+		return buffer;
 	}
 
 	public String getAddress() {
@@ -120,13 +199,8 @@ public class DatagramImpl implements Datagram {
 	}
 
 	public void reset() {
-		try {
-			os.reset();
-			dis.reset();
-		} catch (IOException e) {
-			// just print it
-			e.printStackTrace();
-		}
+		readPosition = packet.getOffset();
+		writePosition = readPosition;
 	}
 
 	public void setAddress(String address) throws IOException {
@@ -154,6 +228,7 @@ public class DatagramImpl implements Datagram {
 
 	public void setData(byte[] buffer, int offset, int len) {
 		packet.setData(buffer, offset, len);
+		initialiseInOut();
 	}
 
 	public void setLength(int len) {
@@ -161,35 +236,38 @@ public class DatagramImpl implements Datagram {
 	}
 
 	public boolean readBoolean() throws IOException {
-		return dis.readBoolean();
+		return readBuffer(1).get() != 0;
 	}
 
 	public byte readByte() throws IOException {
-		return dis.readByte();
+		return readBuffer(1).get();
 	}
 
 	public char readChar() throws IOException {
-		return dis.readChar();
+		return readBuffer(2).getChar();
 	}
 
 	public double readDouble() throws IOException {
-		return dis.readDouble();
+		return readBuffer(8).getDouble();
 	}
 
 	public float readFloat() throws IOException {
-		return dis.readFloat();
+		return readBuffer(4).getFloat();
 	}
 
 	public void readFully(byte[] b) throws IOException {
-		dis.readFully(b);
+		readFully(b, 0, b.length);
 	}
 
 	public void readFully(byte[] b, int off, int len) throws IOException {
-		dis.read(b, off, len);
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		readBuffer(len).get(b, off, len);
 	}
 
 	public int readInt() throws IOException {
-		return dis.readInt();
+		return readBuffer(4).getInt();
 	}
 
 	public String readLine() throws IOException {
@@ -197,35 +275,35 @@ public class DatagramImpl implements Datagram {
 	}
 
 	public long readLong() throws IOException {
-		return dis.readLong();
+		return readBuffer(8).getLong();
 	}
 
 	public short readShort() throws IOException {
-		return dis.readShort();
+		return readBuffer(2).getShort();
 	}
 
 	public String readUTF() throws IOException {
-		return dis.readUTF();
+		return DataInputStream.readUTF(this);
 	}
 
 	public int readUnsignedByte() throws IOException {
-		return dis.readUnsignedByte();
+		return readBuffer(1).get() & 0xFF;
 	}
 
 	public int readUnsignedShort() throws IOException {
-		return dis.readUnsignedShort();
+		return readBuffer(2).getShort() & 0xFFFF;
 	}
 
 	public int skipBytes(int n) throws IOException {
-		return dis.skipBytes(n);
+		return (int) dis.skip(n);
 	}
 
 	public void write(int b) throws IOException {
-		dos.write(b);
+		writeBuffer(1).put((byte) b);
 	}
 
 	public void write(byte[] b) throws IOException {
-		dos.write(b);
+		dos.write(b, 0, b.length);
 	}
 
 	public void write(byte[] b, int off, int len) throws IOException {
@@ -233,43 +311,51 @@ public class DatagramImpl implements Datagram {
 	}
 
 	public void writeBoolean(boolean v) throws IOException {
-		dos.writeBoolean(v);
+		writeBuffer(1).put((byte) (v ? 1 : 0));
 	}
 
 	public void writeByte(int v) throws IOException {
-		dos.writeByte(v);
+		writeBuffer(1).put((byte) v);
 	}
 
 	public void writeBytes(String s) throws IOException {
-		dos.writeBytes(s);
+		int len = s.length();
+		ByteBuffer b = writeBuffer(len);
+		for (int i = 0; i < len; i++) {
+			b.put((byte) s.charAt(i));
+		}
 	}
 
 	public void writeChar(int v) throws IOException {
-		dos.writeChar(v);
+		writeBuffer(2).putChar((char) v);
 	}
 
 	public void writeChars(String v) throws IOException {
-		dos.writeChars(v);
+		int len = v.length();
+		ByteBuffer b = writeBuffer(len * 2);
+		for (int i = 0; i < len; i++) {
+			b.putChar(v.charAt(i));
+		}
 	}
 
 	public void writeDouble(double v) throws IOException {
-		dos.writeDouble(v);
+		writeBuffer(8).putDouble(v);
 	}
 
 	public void writeFloat(float v) throws IOException {
-		dos.writeFloat(v);
+		writeBuffer(4).putFloat(v);
 	}
 
 	public void writeInt(int v) throws IOException {
-		dos.writeInt(v);
+		writeBuffer(4).putInt(v);
 	}
 
 	public void writeLong(long v) throws IOException {
-		dos.writeLong(v);
+		writeBuffer(8).putLong(v);
 	}
 
 	public void writeShort(int v) throws IOException {
-		dos.writeShort(v);
+		writeBuffer(2).putShort((short) v);
 	}
 
 	public void writeUTF(String str) throws IOException {
@@ -9,13 +9,14 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.net.InetAddress;
 
 import javax.microedition.io.HttpConnection;
+import javax.net.ssl.SSLSession;
 
 import org.je.microedition.io.ConnectionImplementation;
 import org.je.util.NetEventBus;
 import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
 
 public class Connection implements HttpConnection, ConnectionImplementation {
 
@@ -28,6 +29,12 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 	// Preserve original URL components even if we internally rewrite the target (e.g., DNS override)
 	protected URL originalUrl;
 
+	// Simulated link timing shared by request and response stream
+	private final NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+
+	// Measurements of this connection, null when not measured
+	protected NetMetrics.Recorder metrics;
+
 	public javax.microedition.io.Connection openConnection(String name, int mode, boolean timeouts) throws IOException {
 		if (!isAllowNetworkConnection() || NetConfig.Policy.offline) {
 			throw new IOException("No network");
@@ -39,30 +46,20 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 			throw new IOException(ex.toString());
 		}
 	this.originalUrl = url;
+		boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+		String event = secure ? "HTTPS" : "HTTP";
 		// Captive portal simulation: return a 302 redirect without network
-		if (NetConfig.Policy.captivePortal && ("http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol()))) {
+		if (NetConfig.Policy.captivePortal && ("http".equalsIgnoreCase(url.getProtocol()) || secure)) {
 			cn = new CaptiveHttpURLConnection(url);
-			try { NetEventBus.publish("HTTP", "OUT", url.toString(), "captive-302"); } catch (Throwable ignore) {}
+			try { NetEventBus.publish(event, "OUT", url.toString(), "captive-302"); } catch (Throwable ignore) {}
 			return this;
 		}
 
-		// HTTP DNS override: for http (not https), resolve host override and connect to IP, setting Host header
-		if ("http".equalsIgnoreCase(url.getProtocol())) {
-			try {
-				String originalHost = url.getHost();
-				InetAddress resolved = NetConfig.Dns.resolveHost(originalHost);
-				String ip = resolved.getHostAddress();
-				int port = url.getPort();
-				if (port == -1) port = 80;
-				URL rewritten = new URL(url.getProtocol(), ip, port, url.getFile());
-				cn = rewritten.openConnection();
-				// Preserve original Host header (with port if non-default)
-				String hostHeader = originalHost + (port != 80 ? (":" + port) : "");
-				cn.setRequestProperty("Host", hostHeader);
-			} catch (Exception e) {
-				// Fallback to default behavior if resolution fails
-				cn = url.openConnection();
-			}
+		if ("http".equalsIgnoreCase(url.getProtocol()) || secure) {
+			// Pooled keep-alive client for http and https, DNS overrides are
+			// applied when the socket connects, TLS server name stays the host
+			track(secure ? NetMetrics.HTTPS : NetMetrics.HTTP, url);
+			cn = new PooledHttpURLConnection(url, metrics);
 		} else {
 			cn = url.openConnection();
 		}
@@ -76,11 +73,34 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 		}
 		// Publish open event
 		try {
-			NetEventBus.publish("HTTP", "OUT", url.toString(), "open");
+			NetEventBus.publish(event, "OUT", url.toString(), "open");
 		} catch (Throwable ignore) {}
 		return this;
 	}
 
+	/**
+	 * Measure this connection, shaping delay is recorded by the streams,
+	 * requests and bytes by the pooled client
+	 */
+	protected void track(String protocol, URL url) {
+		int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		metrics = NetMetrics.open(protocol, url.getHost(), port);
+		flow.track(metrics, false);
+	}
+
+	/**
+	 * TLS session of the connection, the request is sent if it was not yet
+	 *
+	 * @return <code>null</code> when the connection is not secure
+	 */
+	protected SSLSession getSSLSession() throws IOException {
+		if (!(cn instanceof PooledHttpURLConnection)) {
+			return null;
+		}
+		connected = true;
+		return ((PooledHttpURLConnection) cn).getSSLSession();
+	}
+
 	public void close() throws IOException {
 		if (cn == null) {
 			return;
@@ -89,6 +109,9 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 		if (cn instanceof HttpURLConnection) {
 			((HttpURLConnection) cn).disconnect();
 		}
+		if (metrics != null) {
+			metrics.close();
+		}
 
 		cn = null;
 	}
@@ -338,7 +361,7 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 
 		InputStream in = cn.getInputStream();
 		// Wrap for traffic shaping
-		in = NetConfig.Traffic.wrapInput(in);
+		in = NetConfig.Traffic.wrapInput(in, flow);
 		return in;
 	}
 
@@ -355,7 +378,7 @@ public class Connection implements HttpConnection, ConnectionImplementation {
 
 		OutputStream out = cn.getOutputStream();
 		// Wrap for traffic shaping
-		out = NetConfig.Traffic.wrapOutput(out);
+		out = NetConfig.Traffic.wrapOutput(out, flow);
 		return out;
 	}
 
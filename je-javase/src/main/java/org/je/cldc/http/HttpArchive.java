@@ -0,0 +1,286 @@
+package org.je.cldc.http;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.je.cldc.http.HttpResponseCache.StoredResponse;
+import org.je.log.Logger;
+
+/**
+ * Recorded HTTP exchanges in a single file.
+ *
+ * <pre>
+ * header:  "JEHA", int version
+ * entry:   key, int status, String message, int field count, (key, value) fields,
+ *          long header nanos, long body nanos, int body length, body
+ * index:   int count, long entry offsets
+ * trailer: long index offset, "JEHI"
+ * </pre>
+ *
+ * Strings are int length and UTF-8 bytes, length -1 for null. Key is method,
+ * URL and CRC of the request body. Entries are flushed as they are recorded,
+ * the index is written on close; a file without it, left by a crash, is
+ * scanned instead.
+ *
+ * Replay maps the file read-only, bodies are served from the mapping without
+ * copying. Repeated requests get their responses in recorded order, the last
+ * one is repeated.
+ */
+final class HttpArchive {
+
+	private static final int MAGIC = 0x4A454841; // JEHA
+
+	private static final int INDEX_MAGIC = 0x4A454849; // JEHI
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+
+	private static final int TRAILER_SIZE = 12;
+
+	private final File file;
+
+	/** Record mode */
+	private DataOutputStream out;
+
+	/** Position of flushed data, DataOutputStream.size() stops at 2 GB */
+	private FileChannel channel;
+
+	private final List<Long> offsets = new ArrayList<>();
+
+	/** Replay mode */
+	private ByteBuffer mapped;
+
+	private final Map<String, Responses> responses = new HashMap<>();
+
+	private static final class Responses {
+
+		final List<Integer> offsets = new ArrayList<>();
+
+		int next;
+	}
+
+	private HttpArchive(File file) {
+		this.file = file;
+	}
+
+	static String key(String method, URL url, byte[] body) {
+		StringBuilder key = new StringBuilder(method).append(' ').append(url.toExternalForm());
+		if ((body != null) && (body.length > 0)) {
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+			key.append(' ').append(Long.toHexString(crc.getValue())).append('/').append(body.length);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Start a new recording, existing file is replaced
+	 */
+	static HttpArchive create(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if ((dir != null) && (!dir.isDirectory()) && (!dir.mkdirs())) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		HttpArchive archive = new HttpArchive(file);
+		FileOutputStream fos = new FileOutputStream(file);
+		archive.channel = fos.getChannel();
+		archive.out = new DataOutputStream(new BufferedOutputStream(fos));
+		archive.out.writeInt(MAGIC);
+		archive.out.writeInt(VERSION);
+		archive.out.flush();
+		return archive;
+	}
+
+	static HttpArchive open(File file) throws IOException {
+		HttpArchive archive = new HttpArchive(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			archive.mapped = buffer;
+		} finally {
+			// Mapping stays valid
+			raf.close();
+		}
+		archive.readIndex();
+		Logger.info("Replaying " + archive.responses.size() + " HTTP requests from " + file);
+		return archive;
+	}
+
+	private void readIndex() throws IOException {
+		ByteBuffer b = mapped.duplicate();
+		if ((b.limit() < HEADER_SIZE) || (b.getInt(0) != MAGIC)) {
+			throw new IOException(file.getName() + " is not a HTTP archive");
+		}
+		if (b.getInt(4) != VERSION) {
+			throw new IOException(file.getName() + " has unsupported version " + b.getInt(4));
+		}
+		int end = b.limit();
+		if ((end >= HEADER_SIZE + TRAILER_SIZE) && (b.getInt(end - 4) == INDEX_MAGIC)) {
+			b.position((int) b.getLong(end - TRAILER_SIZE));
+			int count = b.getInt();
+			for (int i = 0; i < count; i++) {
+				addEntry((int) b.getLong());
+			}
+			return;
+		}
+		// Recording did not finish, scan complete entries
+		Logger.warn("HTTP archive " + file.getName() + " has no index, scanning");
+		b.position(HEADER_SIZE);
+		try {
+			while (b.hasRemaining()) {
+				int offset = b.position();
+				skipEntry(b);
+				addEntry(offset);
+			}
+		} catch (BufferUnderflowException e) {
+			// Torn entry at end
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private void addEntry(int offset) {
+		ByteBuffer b = mapped.duplicate();
+		b.position(offset);
+		String key = readString(b);
+		Responses list = responses.get(key);
+		if (list == null) {
+			list = new Responses();
+			responses.put(key, list);
+		}
+		list.offsets.add(Integer.valueOf(offset));
+	}
+
+	private static void skipEntry(ByteBuffer b) {
+		readString(b);
+		b.getInt();
+		readString(b);
+		int fields = b.getInt();
+		for (int i = 0; i < fields * 2; i++) {
+			readString(b);
+		}
+		b.getLong();
+		b.getLong();
+		int length = b.getInt();
+		b.position(b.position() + length);
+	}
+
+	/**
+	 * @return next recorded response or null
+	 */
+	synchronized StoredResponse replay(String key) {
+		Responses list = responses.get(key);
+		if (list == null) {
+			return null;
+		}
+		int index = Math.min(list.next, list.offsets.size() - 1);
+		list.next++;
+		ByteBuffer b = mapped.duplicate();
+		b.position(list.offsets.get(index).intValue());
+		StoredResponse response = new StoredResponse();
+		response.key = readString(b);
+		response.code = b.getInt();
+		response.message = readString(b);
+		int fields = b.getInt();
+		response.keys = new String[fields];
+		response.values = new String[fields];
+		for (int i = 0; i < fields; i++) {
+			response.keys[i] = readString(b);
+			response.values[i] = readString(b);
+		}
+		response.headerNanos = b.getLong();
+		response.bodyNanos = b.getLong();
+		int length = b.getInt();
+		b.limit(b.position() + length);
+		response.body = b.slice().asReadOnlyBuffer();
+		return response;
+	}
+
+	synchronized void record(StoredResponse response) throws IOException {
+		if (out == null) {
+			return;
+		}
+		// Everything before was flushed
+		long offset = channel.position();
+		writeString(response.key);
+		out.writeInt(response.code);
+		writeString(response.message);
+		out.writeInt(response.keys.length);
+		for (int i = 0; i < response.keys.length; i++) {
+			writeString(response.keys[i]);
+			writeString(response.values[i]);
+		}
+		out.writeLong(response.headerNanos);
+		out.writeLong(response.bodyNanos);
+		ByteBuffer body = response.body.duplicate();
+		out.writeInt(body.remaining());
+		byte[] buf = new byte[Math.min(body.remaining(), 8192)];
+		while (body.hasRemaining()) {
+			int n = Math.min(buf.length, body.remaining());
+			body.get(buf, 0, n);
+			out.write(buf, 0, n);
+		}
+		out.flush();
+		offsets.add(Long.valueOf(offset));
+	}
+
+	/**
+	 * Write the index and finish the recording
+	 */
+	synchronized void close() throws IOException {
+		if (out == null) {
+			return;
+		}
+		long indexOffset = channel.position();
+		out.writeInt(offsets.size());
+		for (int i = 0; i < offsets.size(); i++) {
+			out.writeLong(offsets.get(i).longValue());
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(INDEX_MAGIC);
+		out.close();
+		out = null;
+		channel = null;
+		Logger.info("Recorded " + offsets.size() + " HTTP responses to " + file);
+	}
+
+	private void writeString(String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer b) {
+		int length = b.getInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > b.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,371 @@
+package org.je.cldc.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.je.log.Logger;
+import org.je.util.NetEventBus;
+import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
+
+/**
+ * Persistent connections of {@link PooledHttpURLConnection} by scheme, host
+ * and port.
+ *
+ * A host has at most NetConfig.Http.maxConnectionsPerHost connections, in use
+ * or idle. When all are in use acquire waits for one to be released; after
+ * ACQUIRE_TIMEOUT_MS an extra connection is opened that is closed after use,
+ * so a MIDlet leaking connections slows down instead of hanging. Idle
+ * connections are closed after NetConfig.Http.idleTimeoutMs.
+ *
+ * Host names are resolved with NetConfig.Dns when the socket connects, the
+ * request URL, Host header and TLS server name stay unchanged.
+ */
+final class HttpConnectionPool {
+
+	private static final long ACQUIRE_TIMEOUT_MS = 5000;
+
+	/** Idle connections older than this are checked before reuse */
+	private static final long VALIDATE_AFTER_IDLE_MS = 1000;
+
+	private static final long EVICT_PERIOD_MS = 2000;
+
+	private static final Map<String, Route> routes = new HashMap<>();
+
+	private static ScheduledExecutorService evictor;
+
+	private HttpConnectionPool() {
+	}
+
+	/**
+	 * Connection to one route, used by a single request at a time
+	 */
+	static final class PooledSocket {
+
+		final Route route;
+
+		final Socket socket;
+
+		final InputStream in;
+
+		final OutputStream out;
+
+		/** Counted against the route limit */
+		final boolean pooled;
+
+		/** Taken from the idle list, a failure before the response may be retried */
+		boolean reused;
+
+		long idleSince;
+
+		/** Time to connect and handshake, -1 once reported or when reused */
+		long connectNanos = -1;
+
+		/** Measurements of the request using the connection, gets its bytes */
+		volatile NetMetrics.Recorder metrics;
+
+		PooledSocket(Route route, Socket socket, boolean pooled) throws IOException {
+			this.route = route;
+			this.socket = socket;
+			this.pooled = pooled;
+			this.in = new BufferedInputStream(new MeteredInputStream(socket.getInputStream()));
+			this.out = new BufferedOutputStream(new MeteredOutputStream(socket.getOutputStream()));
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		/**
+		 * @return false if the server closed the connection or sent data
+		 *         nobody asked for
+		 */
+		boolean isAlive() {
+			if (socket.isClosed() || socket.isInputShutdown()) {
+				return false;
+			}
+			try {
+				if (in.available() > 0) {
+					return false;
+				}
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+				try {
+					// Closed by the server or unexpected data
+					in.read();
+					return false;
+				} catch (SocketTimeoutException e) {
+					return true;
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		private final class MeteredInputStream extends FilterInputStream {
+
+			MeteredInputStream(InputStream in) {
+				super(in);
+			}
+
+			public int read() throws IOException {
+				int b = in.read();
+				NetMetrics.Recorder m = metrics;
+				if ((b != -1) && (m != null)) {
+					m.bytesIn(1);
+				}
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = in.read(b, off, len);
+				NetMetrics.Recorder m = metrics;
+				if ((n > 0) && (m != null)) {
+					m.bytesIn(n);
+				}
+				return n;
+			}
+		}
+
+		private final class MeteredOutputStream extends FilterOutputStream {
+
+			MeteredOutputStream(OutputStream out) {
+				super(out);
+			}
+
+			public void write(int b) throws IOException {
+				out.write(b);
+				NetMetrics.Recorder m = metrics;
+				if (m != null) {
+					m.bytesOut(1);
+				}
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				NetMetrics.Recorder m = metrics;
+				if (m != null) {
+					m.bytesOut(len);
+				}
+			}
+		}
+	}
+
+	private static final class Route {
+
+		final String host;
+
+		final int port;
+
+		final boolean secure;
+
+		final String name;
+
+		/** Oldest first */
+		final ArrayDeque<PooledSocket> idle = new ArrayDeque<>();
+
+		int leased;
+
+		Route(String host, int port, boolean secure) {
+			this.host = host;
+			this.port = port;
+			this.secure = secure;
+			this.name = host + ":" + port;
+		}
+	}
+
+	static PooledSocket acquire(URL url, int connectTimeout) throws IOException {
+		boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+		int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+		String host = url.getHost();
+		String key = (secure ? "https://" : "http://") + host.toLowerCase(Locale.ROOT) + ":" + port;
+		Route route;
+		synchronized (routes) {
+			route = routes.get(key);
+			if (route == null) {
+				route = new Route(host, port, secure);
+				routes.put(key, route);
+			}
+		}
+
+		PooledSocket idle = null;
+		boolean pooled = true;
+		synchronized (route) {
+			long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+			while (true) {
+				idle = pollIdle(route);
+				if ((idle != null) || (route.leased < Math.max(1, NetConfig.Http.maxConnectionsPerHost))) {
+					route.leased++;
+					break;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					Logger.warn("All " + route.leased + " connections to " + route.name
+							+ " in use, are HttpConnections closed?");
+					pooled = false;
+					break;
+				}
+				try {
+					route.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		if (idle != null) {
+			if ((System.currentTimeMillis() - idle.idleSince < VALIDATE_AFTER_IDLE_MS) || idle.isAlive()) {
+				idle.reused = true;
+				try { NetEventBus.publish("HTTP", "OUT", route.name, "reuse"); } catch (Throwable ignore) {}
+				return idle;
+			}
+			idle.close();
+		}
+		try {
+			long start = System.nanoTime();
+			PooledSocket socket = new PooledSocket(route, connect(route, connectTimeout), pooled);
+			socket.connectNanos = System.nanoTime() - start;
+			return socket;
+		} catch (IOException e) {
+			if (pooled) {
+				synchronized (route) {
+					route.leased--;
+					route.notifyAll();
+				}
+			}
+			throw e;
+		}
+	}
+
+	private static PooledSocket pollIdle(Route route) {
+		long now = System.currentTimeMillis();
+		PooledSocket socket;
+		while ((socket = route.idle.pollLast()) != null) {
+			if (now - socket.idleSince < NetConfig.Http.idleTimeoutMs) {
+				return socket;
+			}
+			socket.close();
+		}
+		return null;
+	}
+
+	private static Socket connect(Route route, int connectTimeout) throws IOException {
+		InetAddress address = NetConfig.Dns.resolveHost(route.host);
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(address, route.port), connectTimeout);
+			if (route.secure) {
+				// Server name and certificate are checked for the original host
+				SSLSocket ssl = (SSLSocket) NetConfig.TLS.getBaseFactory().createSocket(socket, route.host,
+						route.port, true);
+				if (!NetConfig.TLS.trustAll) {
+					SSLParameters params = ssl.getSSLParameters();
+					params.setEndpointIdentificationAlgorithm("HTTPS");
+					ssl.setSSLParameters(params);
+				}
+				ssl.startHandshake();
+				socket = ssl;
+			}
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ignore) {
+			}
+			throw e;
+		}
+		try { NetEventBus.publish("HTTP", "OUT", route.name, "connect"); } catch (Throwable ignore) {}
+		return socket;
+	}
+
+	/**
+	 * Return connection after the response was read
+	 *
+	 * @param reusable
+	 *            false when the connection must be closed
+	 */
+	static void release(PooledSocket socket, boolean reusable) {
+		socket.metrics = null;
+		Route route = socket.route;
+		boolean keep = reusable && socket.pooled && NetConfig.Http.keepAlive && !socket.socket.isClosed();
+		if (!keep) {
+			socket.close();
+		}
+		if (!socket.pooled) {
+			return;
+		}
+		synchronized (route) {
+			route.leased--;
+			if (keep) {
+				socket.reused = false;
+				socket.idleSince = System.currentTimeMillis();
+				route.idle.addLast(socket);
+			}
+			route.notifyAll();
+		}
+		if (keep) {
+			startEvictor();
+		}
+	}
+
+	private static synchronized void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "HttpConnectionEvictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		evictor.scheduleWithFixedDelay(HttpConnectionPool::evictIdle, EVICT_PERIOD_MS, EVICT_PERIOD_MS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private static void evictIdle() {
+		List<Route> all;
+		synchronized (routes) {
+			all = new ArrayList<>(routes.values());
+		}
+		long now = System.currentTimeMillis();
+		for (Route route : all) {
+			synchronized (route) {
+				PooledSocket socket;
+				while (((socket = route.idle.peekFirst()) != null)
+						&& (now - socket.idleSince >= NetConfig.Http.idleTimeoutMs)) {
+					route.idle.pollFirst();
+					socket.close();
+				}
+			}
+		}
+	}
+
+}
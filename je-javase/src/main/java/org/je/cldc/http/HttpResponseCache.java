@@ -0,0 +1,525 @@
+package org.je.cldc.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.je.app.Config;
+import org.je.log.Logger;
+import org.je.util.NetEventBus;
+import org.je.util.net.NetConfig;
+
+/**
+ * Responses of {@link PooledHttpURLConnection} served without the network,
+ * selected by NetConfig.Http.cacheMode:
+ *
+ * <ul>
+ * <li>record: exchanges are written to the {@link HttpArchive} file</li>
+ * <li>replay: responses come from the archive, the network is not used;
+ * with NetConfig.Http.replayTiming they take as long as when recorded</li>
+ * <li>cache: GET responses are kept in memory as a private HTTP cache would,
+ * honouring Cache-Control, Expires and revalidating with ETag and
+ * Last-Modified</li>
+ * </ul>
+ */
+final class HttpResponseCache {
+
+	/** Responses larger than this part of the cache are not stored */
+	private static final int MAX_ENTRY_FRACTION = 8;
+
+	private static HttpArchive archive;
+
+	/** In access order, oldest first */
+	private static final Map<String, StoredResponse> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private static long cacheSize;
+
+	private HttpResponseCache() {
+	}
+
+	/**
+	 * Response without connection
+	 */
+	static final class StoredResponse {
+
+		String key;
+
+		int code;
+
+		String message;
+
+		/** Header fields, the status line first with null key */
+		String[] keys;
+
+		String[] values;
+
+		ByteBuffer body;
+
+		/** Time from sending the request to response headers */
+		long headerNanos;
+
+		/** Time to read the body */
+		long bodyNanos;
+
+		/** System time the response was received or revalidated */
+		long responseTime;
+
+		/** Request header values named by Vary, see varyValues */
+		String vary;
+
+		String getHeaderField(String name) {
+			for (int i = keys.length - 1; i > 0; i--) {
+				if (keys[i].equalsIgnoreCase(name)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		int size() {
+			int size = body.remaining();
+			for (int i = 0; i < keys.length; i++) {
+				size += ((keys[i] == null) ? 0 : keys[i].length()) + values[i].length();
+			}
+			return size;
+		}
+	}
+
+	static StoredResponse newResponse(String key, int code, String message, List<String> keys, List<String> values) {
+		StoredResponse response = new StoredResponse();
+		response.key = key;
+		response.code = code;
+		response.message = message;
+		response.keys = keys.toArray(new String[keys.size()]);
+		response.values = values.toArray(new String[values.size()]);
+		response.responseTime = System.currentTimeMillis();
+		return response;
+	}
+
+	private static synchronized HttpArchive getArchive(boolean record) throws IOException {
+		if (archive == null) {
+			File file = (NetConfig.Http.archive != null) ? new File(NetConfig.Http.archive)
+					: new File(Config.getConfigPath(), "http-archive.jeha");
+			if (record) {
+				archive = HttpArchive.create(file);
+				Thread shutdownHook = new Thread(new Runnable() {
+					public void run() {
+						closeArchive();
+					}
+				}, "HttpArchiveClose");
+				try {
+					Runtime.getRuntime().addShutdownHook(shutdownHook);
+				} catch (SecurityException e) {
+					Logger.debug("Unable to write HTTP archive index on exit", e);
+				}
+			} else {
+				archive = HttpArchive.open(file);
+			}
+		}
+		return archive;
+	}
+
+	/**
+	 * Finish the recording
+	 */
+	static synchronized void closeArchive() {
+		if (archive == null) {
+			return;
+		}
+		try {
+			archive.close();
+		} catch (IOException e) {
+			Logger.error("Unable to write HTTP archive", e);
+		}
+		archive = null;
+	}
+
+	/**
+	 * @return recorded response or 504 response when the request was not
+	 *         recorded
+	 */
+	static StoredResponse replay(String method, URL url, byte[] body) {
+		String key = HttpArchive.key(method, url, body);
+		StoredResponse response = null;
+		try {
+			response = getArchive(false).replay(key);
+		} catch (IOException e) {
+			Logger.error("Unable to read HTTP archive", e);
+		}
+		if (response == null) {
+			Logger.warn("Not recorded: " + key);
+			byte[] text = ("Not recorded: " + key + "\n").getBytes(StandardCharsets.UTF_8);
+			response = new StoredResponse();
+			response.key = key;
+			response.code = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+			response.message = "Not Recorded";
+			response.keys = new String[] { null, "Content-Type", "Content-Length" };
+			response.values = new String[] { "HTTP/1.1 504 Not Recorded", "text/plain; charset=utf-8",
+					String.valueOf(text.length) };
+			response.body = ByteBuffer.wrap(text).asReadOnlyBuffer();
+		}
+		try { NetEventBus.publish("HTTP", "IN", url.toString(), "replay=" + response.code); } catch (Throwable ignore) {}
+		return response;
+	}
+
+	/**
+	 * Cached response for a request. Unsafe methods invalidate the entry of
+	 * the URL.
+	 *
+	 * @param cacheControl
+	 *            Cache-Control of the request
+	 * @param keys
+	 *            request header fields
+	 * @return cached response, it may need revalidation
+	 */
+	static synchronized StoredResponse lookup(String method, URL url, String cacheControl, List<String> keys,
+			List<String> values) {
+		String key = url.toExternalForm();
+		if (!method.equals("GET")) {
+			if (!method.equals("HEAD")) {
+				remove(key);
+			}
+			return null;
+		}
+		if (directive(cacheControl, "no-store") != null) {
+			return null;
+		}
+		StoredResponse cached = cache.get(key);
+		if ((cached != null) && !varyValues(cached, keys, values).equals(cached.vary)) {
+			// Negotiated for other request headers
+			return null;
+		}
+		return cached;
+	}
+
+	/**
+	 * Values of the request header fields the response varies by, a cached
+	 * response is used only for requests with the same values
+	 */
+	static String varyValues(StoredResponse response, List<String> keys, List<String> values) {
+		String vary = response.getHeaderField("Vary");
+		if (vary == null) {
+			return "";
+		}
+		StringBuilder b = new StringBuilder();
+		String[] names = vary.split(",");
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			b.append(name.toLowerCase(Locale.ENGLISH)).append(':');
+			for (int j = 0; j < keys.size(); j++) {
+				if (keys.get(j).equalsIgnoreCase(name)) {
+					b.append(' ').append(values.get(j));
+				}
+			}
+			b.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * @return true if the response may be served without asking the server
+	 */
+	static boolean isFresh(StoredResponse response, String cacheControl, String pragma) {
+		if ((directive(cacheControl, "no-cache") != null)
+				|| ((pragma != null) && pragma.toLowerCase(Locale.ENGLISH).contains("no-cache"))
+				|| (directive(response.getHeaderField("Cache-Control"), "no-cache") != null)) {
+			return false;
+		}
+		long age = System.currentTimeMillis() - response.responseTime;
+		String ageField = response.getHeaderField("Age");
+		if (ageField != null) {
+			try {
+				age += Long.parseLong(ageField.trim()) * 1000;
+			} catch (NumberFormatException e) {
+			}
+		}
+		String maxAge = directive(cacheControl, "max-age");
+		if (maxAge != null) {
+			try {
+				if (age >= Long.parseLong(maxAge) * 1000) {
+					return false;
+				}
+			} catch (NumberFormatException e) {
+			}
+		}
+		return age < getFreshnessLifetime(response);
+	}
+
+	private static long getFreshnessLifetime(StoredResponse response) {
+		String maxAge = directive(response.getHeaderField("Cache-Control"), "max-age");
+		if (maxAge != null) {
+			try {
+				return Long.parseLong(maxAge) * 1000;
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		long date = parseDate(response.getHeaderField("Date"));
+		if (date == -1) {
+			date = response.responseTime;
+		}
+		String expires = response.getHeaderField("Expires");
+		if (expires != null) {
+			long time = parseDate(expires);
+			return (time == -1) ? 0 : time - date;
+		}
+		long lastModified = parseDate(response.getHeaderField("Last-Modified"));
+		if ((lastModified != -1) && (response.code == HttpURLConnection.HTTP_OK)) {
+			// Heuristic freshness, a tenth of the time since last change
+			return Math.max(0, (date - lastModified) / 10);
+		}
+		return 0;
+	}
+
+	/**
+	 * Add validators of the cached response to the request
+	 *
+	 * @return false if the response has none
+	 */
+	static boolean addValidators(StoredResponse cached, List<String> keys, List<String> values) {
+		String etag = cached.getHeaderField("ETag");
+		if (etag != null) {
+			keys.add("If-None-Match");
+			values.add(etag);
+		}
+		String lastModified = cached.getHeaderField("Last-Modified");
+		if (lastModified != null) {
+			keys.add("If-Modified-Since");
+			values.add(lastModified);
+		}
+		return (etag != null) || (lastModified != null);
+	}
+
+	/**
+	 * Update cached response with fields of a 304 response
+	 *
+	 * @return response to serve
+	 */
+	static StoredResponse revalidated(URL url, StoredResponse cached, List<String> keys, List<String> values) {
+		StoredResponse response = new StoredResponse();
+		response.key = cached.key;
+		response.code = cached.code;
+		response.message = cached.message;
+		LinkedHashMap<String, String[]> fields = new LinkedHashMap<>();
+		for (int i = 1; i < cached.keys.length; i++) {
+			fields.put(cached.keys[i].toLowerCase(Locale.ENGLISH), new String[] { cached.keys[i], cached.values[i] });
+		}
+		for (int i = 1; i < keys.size(); i++) {
+			String name = keys.get(i).toLowerCase(Locale.ENGLISH);
+			if (!name.equals("content-length") && !name.equals("transfer-encoding")) {
+				fields.put(name, new String[] { keys.get(i), values.get(i) });
+			}
+		}
+		response.keys = new String[fields.size() + 1];
+		response.values = new String[fields.size() + 1];
+		response.values[0] = cached.values[0];
+		int i = 1;
+		for (String[] field : fields.values()) {
+			response.keys[i] = field[0];
+			response.values[i++] = field[1];
+		}
+		response.body = cached.body;
+		response.headerNanos = cached.headerNanos;
+		response.bodyNanos = cached.bodyNanos;
+		response.responseTime = System.currentTimeMillis();
+		response.vary = cached.vary;
+		store(url.toExternalForm(), response);
+		try { NetEventBus.publish("HTTP", "IN", url.toString(), "cache=revalidated"); } catch (Throwable ignore) {}
+		return response;
+	}
+
+	static boolean isCacheable(String method, StoredResponse response, String requestCacheControl) {
+		if (!method.equals("GET")) {
+			return false;
+		}
+		if ((response.code != HttpURLConnection.HTTP_OK) && (response.code != HttpURLConnection.HTTP_NOT_AUTHORITATIVE)
+				&& (response.code != HttpURLConnection.HTTP_MOVED_PERM)) {
+			return false;
+		}
+		if ((directive(requestCacheControl, "no-store") != null)
+				|| (directive(response.getHeaderField("Cache-Control"), "no-store") != null)) {
+			return false;
+		}
+		String vary = response.getHeaderField("Vary");
+		if ((vary != null) && vary.trim().equals("*")) {
+			return false;
+		}
+		return true;
+	}
+
+	private static synchronized void store(String key, StoredResponse response) {
+		remove(key);
+		int size = response.size();
+		if (size > NetConfig.Http.cacheMaxBytes / MAX_ENTRY_FRACTION) {
+			return;
+		}
+		cache.put(key, response);
+		cacheSize += size;
+		Iterator<StoredResponse> it = cache.values().iterator();
+		while ((cacheSize > NetConfig.Http.cacheMaxBytes) && it.hasNext()) {
+			cacheSize -= it.next().size();
+			it.remove();
+		}
+	}
+
+	private static void remove(String key) {
+		StoredResponse removed = cache.remove(key);
+		if (removed != null) {
+			cacheSize -= removed.size();
+		}
+	}
+
+	static synchronized void clear() {
+		cache.clear();
+		cacheSize = 0;
+	}
+
+	/**
+	 * Read the body through to complete the response. At the end of the body,
+	 * the declared length or end of stream, it is recorded or stored in the
+	 * cache. MIDlets usually read Content-Length bytes and close the stream
+	 * without reaching end of stream.
+	 *
+	 * @param length
+	 *            declared body length, -1 when the body ends with the stream
+	 * @param url
+	 *            cache key, null when only recording
+	 */
+	static InputStream capture(InputStream body, final StoredResponse response, final boolean record, final URL url,
+			final long length) {
+		final long start = System.nanoTime();
+		return new FilterInputStream(body) {
+
+			private ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+			private long received;
+
+			{
+				if (length == 0) {
+					complete();
+				}
+			}
+
+			public int read() throws IOException {
+				int b = super.read();
+				if (b == -1) {
+					complete();
+				} else {
+					if (data != null) {
+						data.write(b);
+					}
+					received(1);
+				}
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n == -1) {
+					complete();
+				} else {
+					if (data != null) {
+						data.write(b, off, n);
+					}
+					received(n);
+				}
+				return n;
+			}
+
+			private void received(int n) {
+				received += n;
+				if (!record && (data != null) && data.size() > NetConfig.Http.cacheMaxBytes / MAX_ENTRY_FRACTION) {
+					data = null;
+				} else if (received == length) {
+					complete();
+				}
+			}
+
+			public long skip(long n) throws IOException {
+				// Keep the whole body
+				byte[] buf = new byte[(int) Math.min(n, 4096)];
+				int read = read(buf, 0, buf.length);
+				return Math.max(0, read);
+			}
+
+			public void close() throws IOException {
+				// Body read to its declared length is already complete
+				data = null;
+				super.close();
+			}
+
+			private void complete() {
+				if (data == null) {
+					return;
+				}
+				response.body = ByteBuffer.wrap(data.toByteArray()).asReadOnlyBuffer();
+				response.bodyNanos = System.nanoTime() - start;
+				data = null;
+				if (record) {
+					try {
+						getArchive(true).record(response);
+					} catch (IOException e) {
+						Logger.error("Unable to record HTTP response", e);
+					}
+				}
+				if (url != null) {
+					store(url.toExternalForm(), response);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return directive value, empty without value, null if not present
+	 */
+	private static String directive(String cacheControl, String name) {
+		if (cacheControl == null) {
+			return null;
+		}
+		String[] directives = cacheControl.split(",");
+		for (int i = 0; i < directives.length; i++) {
+			String d = directives[i].trim();
+			int eq = d.indexOf('=');
+			String key = (eq == -1) ? d : d.substring(0, eq).trim();
+			if (key.equalsIgnoreCase(name)) {
+				if (eq == -1) {
+					return "";
+				}
+				String value = d.substring(eq + 1).trim();
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	private static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,763 @@
+package org.je.cldc.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.je.cldc.http.HttpConnectionPool.PooledSocket;
+import org.je.cldc.http.HttpResponseCache.StoredResponse;
+import org.je.util.NetEventBus;
+import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
+
+/**
+ * HTTP/1.1 client on connections kept by {@link HttpConnectionPool}.
+ *
+ * Behaves as the JDK HttpURLConnection does for MIDP HttpConnection: request
+ * body is buffered and sent with Content-Length when the response is first
+ * requested, getInputStream fails for error responses that are read from
+ * getErrorStream. The connection goes back to the pool when the response body
+ * has been read or closed.
+ *
+ * Depending on NetConfig.Http.cacheMode responses are recorded, replayed or
+ * cached by {@link HttpResponseCache}.
+ */
+final class PooledHttpURLConnection extends HttpURLConnection {
+
+	/** Remaining body read when the stream is closed early to keep the connection */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private static final int DRAIN_TIMEOUT = 100;
+
+	private final List<String> requestKeys = new ArrayList<>();
+
+	private final List<String> requestValues = new ArrayList<>();
+
+	/** Validators of a cached response, sent but not request properties */
+	private final List<String> conditionalKeys = new ArrayList<>();
+
+	private final List<String> conditionalValues = new ArrayList<>();
+
+	private ByteArrayOutputStream requestBody;
+
+	private PooledSocket socket;
+
+	/** Response header fields, the status line first with null key */
+	private List<String> responseKeys;
+
+	private List<String> responseValues;
+
+	private InputStream responseBody;
+
+	/** TLS session the response came over, null for plain HTTP and stored responses */
+	private SSLSession sslSession;
+
+	/** Network requests are measured here, null when not measured */
+	private final NetMetrics.Recorder metrics;
+
+	PooledHttpURLConnection(URL url, NetMetrics.Recorder metrics) {
+		super(url);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Connection is taken from the pool when the request is sent, a cached
+	 * response needs none
+	 */
+	public void connect() throws IOException {
+		connected = true;
+	}
+
+	public void disconnect() {
+		if (responseBody != null) {
+			try {
+				responseBody.close();
+			} catch (IOException ignore) {
+			}
+		} else if (socket != null) {
+			HttpConnectionPool.release(socket, false);
+			socket = null;
+		}
+	}
+
+	public boolean usingProxy() {
+		return false;
+	}
+
+	public void setRequestProperty(String key, String value) {
+		if (connected) {
+			throw new IllegalStateException("Already connected");
+		}
+		removeRequestProperty(key);
+		addRequestProperty(key, value);
+	}
+
+	public void addRequestProperty(String key, String value) {
+		if (connected) {
+			throw new IllegalStateException("Already connected");
+		}
+		if (key == null) {
+			throw new NullPointerException("key is null");
+		}
+		requestKeys.add(key);
+		requestValues.add(value);
+	}
+
+	private void removeRequestProperty(String key) {
+		for (int i = requestKeys.size() - 1; i >= 0; i--) {
+			if (requestKeys.get(i).equalsIgnoreCase(key)) {
+				requestKeys.remove(i);
+				requestValues.remove(i);
+			}
+		}
+	}
+
+	public String getRequestProperty(String key) {
+		for (int i = requestKeys.size() - 1; i >= 0; i--) {
+			if (requestKeys.get(i).equalsIgnoreCase(key)) {
+				return requestValues.get(i);
+			}
+		}
+		return null;
+	}
+
+	public Map<String, List<String>> getRequestProperties() {
+		return toMap(requestKeys, requestValues);
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		if (!doOutput) {
+			throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+		}
+		if (responseKeys != null) {
+			throw new ProtocolException("Cannot write output after reading input.");
+		}
+		if (method.equals("GET")) {
+			method = "POST";
+		}
+		if (requestBody == null) {
+			requestBody = new ByteArrayOutputStream();
+		}
+		return requestBody;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		getResponse();
+		if (responseCode >= 400) {
+			if ((responseCode == HTTP_NOT_FOUND) || (responseCode == HTTP_GONE)) {
+				throw new FileNotFoundException(url.toString());
+			}
+			throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+		}
+		return responseBody;
+	}
+
+	public InputStream getErrorStream() {
+		if ((responseKeys == null) || (responseCode < 400)) {
+			return null;
+		}
+		return responseBody;
+	}
+
+	public int getResponseCode() throws IOException {
+		getResponse();
+		return responseCode;
+	}
+
+	public String getResponseMessage() throws IOException {
+		getResponse();
+		return responseMessage;
+	}
+
+	public String getHeaderField(String name) {
+		if (!getResponseQuietly()) {
+			return null;
+		}
+		for (int i = responseKeys.size() - 1; i > 0; i--) {
+			if (responseKeys.get(i).equalsIgnoreCase(name)) {
+				return responseValues.get(i);
+			}
+		}
+		return null;
+	}
+
+	public String getHeaderFieldKey(int n) {
+		if (!getResponseQuietly() || (n < 0) || (n >= responseKeys.size())) {
+			return null;
+		}
+		return responseKeys.get(n);
+	}
+
+	public String getHeaderField(int n) {
+		if (!getResponseQuietly() || (n < 0) || (n >= responseValues.size())) {
+			return null;
+		}
+		return responseValues.get(n);
+	}
+
+	public Map<String, List<String>> getHeaderFields() {
+		if (!getResponseQuietly()) {
+			return Collections.emptyMap();
+		}
+		return toMap(responseKeys, responseValues);
+	}
+
+	private static Map<String, List<String>> toMap(List<String> keys, List<String> values) {
+		Map<String, List<String>> map = new LinkedHashMap<>();
+		for (int i = 0; i < keys.size(); i++) {
+			List<String> list = map.get(keys.get(i));
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(keys.get(i), list);
+			}
+			list.add(values.get(i));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	private boolean getResponseQuietly() {
+		try {
+			getResponse();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Get the response once, from HttpResponseCache or the network
+	 */
+	private void getResponse() throws IOException {
+		if (responseKeys != null) {
+			return;
+		}
+		connected = true;
+		String mode = NetConfig.Http.cacheMode;
+		byte[] body = (requestBody == null) ? null : requestBody.toByteArray();
+		if (NetConfig.Http.CACHE_REPLAY.equals(mode)) {
+			serve(HttpResponseCache.replay(method, url, body), NetConfig.Http.replayTiming);
+			return;
+		}
+		String cacheControl = getRequestProperty("Cache-Control");
+		StoredResponse cached = null;
+		if (NetConfig.Http.CACHE_MEMORY.equals(mode)) {
+			cached = HttpResponseCache.lookup(method, url, cacheControl, requestKeys, requestValues);
+			if (cached != null) {
+				if (HttpResponseCache.isFresh(cached, cacheControl, getRequestProperty("Pragma"))) {
+					try { NetEventBus.publish("HTTP", "IN", url.toString(), "cache=hit"); } catch (Throwable ignore) {}
+					serve(cached, false);
+					return;
+				}
+				// Conditional request unless the MIDlet makes its own
+				if ((getRequestProperty("If-None-Match") != null) || (getRequestProperty("If-Modified-Since") != null)
+						|| !HttpResponseCache.addValidators(cached, conditionalKeys, conditionalValues)) {
+					cached = null;
+				}
+			}
+		}
+
+		long start = System.nanoTime();
+		send();
+		long headerNanos = System.nanoTime() - start;
+
+		if (cached != null && responseCode == HTTP_NOT_MODIFIED) {
+			responseBody.close();
+			serve(HttpResponseCache.revalidated(url, cached, responseKeys, responseValues), false);
+			return;
+		}
+		boolean record = NetConfig.Http.CACHE_RECORD.equals(mode);
+		if (record || NetConfig.Http.CACHE_MEMORY.equals(mode)) {
+			StoredResponse response = HttpResponseCache.newResponse(HttpArchive.key(method, url, body), responseCode,
+					responseMessage, responseKeys, responseValues);
+			response.headerNanos = headerNanos;
+			response.vary = HttpResponseCache.varyValues(response, requestKeys, requestValues);
+			boolean cacheable = !record && HttpResponseCache.isCacheable(method, response, cacheControl);
+			if (record || cacheable) {
+				responseBody = HttpResponseCache.capture(responseBody, response, record, cacheable ? url : null,
+						((BodyInputStream) responseBody).length);
+			}
+		}
+	}
+
+	/**
+	 * TLS session of the server connection, the request is sent if it was not
+	 * yet. A cached response came over no connection, one is then taken from
+	 * the pool for the handshake.
+	 *
+	 * @return <code>null</code> for plain HTTP
+	 */
+	SSLSession getSSLSession() throws IOException {
+		getResponse();
+		if ((sslSession == null) && "https".equalsIgnoreCase(url.getProtocol())) {
+			if (NetConfig.Http.CACHE_REPLAY.equals(NetConfig.Http.cacheMode)) {
+				throw new IOException("No TLS session for replayed " + url);
+			}
+			PooledSocket handshake = HttpConnectionPool.acquire(url, getConnectTimeout());
+			try {
+				sslSession = ((SSLSocket) handshake.socket).getSession();
+			} finally {
+				HttpConnectionPool.release(handshake, true);
+			}
+		}
+		return sslSession;
+	}
+
+	/**
+	 * Use stored response
+	 *
+	 * @param timed
+	 *            take as long as the original response
+	 */
+	private void serve(StoredResponse response, boolean timed) throws IOException {
+		if (timed && (response.headerNanos > 0)) {
+			sleepNanos(response.headerNanos);
+		}
+		responseCode = response.code;
+		responseMessage = response.message;
+		responseKeys = new ArrayList<>(Arrays.asList(response.keys));
+		responseValues = new ArrayList<>(Arrays.asList(response.values));
+		responseBody = new StoredInputStream(response.body.duplicate(), timed ? response.bodyNanos : 0);
+	}
+
+	private static void sleepNanos(long nanos) throws InterruptedIOException {
+		try {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Send the request and read the response head
+	 */
+	private void send() throws IOException {
+		while (true) {
+			try {
+				socket = HttpConnectionPool.acquire(url, getConnectTimeout());
+			} catch (IOException e) {
+				if (metrics != null) {
+					metrics.failed();
+				}
+				throw e;
+			}
+			if (socket.socket instanceof SSLSocket) {
+				sslSession = ((SSLSocket) socket.socket).getSession();
+			}
+			if (metrics != null) {
+				socket.metrics = metrics;
+				if (socket.connectNanos >= 0) {
+					metrics.connected(socket.connectNanos);
+					socket.connectNanos = -1;
+				}
+			}
+			try {
+				socket.socket.setSoTimeout(getReadTimeout());
+				writeRequest();
+				awaitResponse(System.nanoTime());
+				readResponseHead();
+				return;
+			} catch (IOException e) {
+				// Server closed an idle connection as it was reused, nothing was read
+				boolean stale = socket.reused && (responseKeys == null) && !(e instanceof SocketTimeoutException);
+				HttpConnectionPool.release(socket, false);
+				socket = null;
+				responseKeys = null;
+				if (!stale) {
+					if (metrics != null) {
+						metrics.failed();
+					}
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Measure the time to the first byte of the response
+	 */
+	private void awaitResponse(long sent) throws IOException {
+		if (metrics == null) {
+			return;
+		}
+		socket.in.mark(1);
+		int first = socket.in.read();
+		socket.in.reset();
+		if (first != -1) {
+			metrics.request(System.nanoTime() - sent);
+		}
+	}
+
+	private void writeRequest() throws IOException {
+		StringBuilder head = new StringBuilder(256);
+		String file = url.getFile();
+		head.append(method).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+		if (getRequestProperty("Host") == null) {
+			head.append("Host: ").append(url.getHost());
+			if ((url.getPort() != -1) && (url.getPort() != url.getDefaultPort())) {
+				head.append(':').append(url.getPort());
+			}
+			head.append("\r\n");
+		}
+		if (getRequestProperty("User-Agent") == null) {
+			head.append("User-Agent: Java/").append(System.getProperty("java.version")).append("\r\n");
+		}
+		for (int i = 0; i < requestKeys.size(); i++) {
+			String key = requestKeys.get(i);
+			if (key.equalsIgnoreCase("Content-Length") || key.equalsIgnoreCase("Connection")) {
+				continue;
+			}
+			head.append(key).append(": ").append(requestValues.get(i)).append("\r\n");
+		}
+		for (int i = 0; i < conditionalKeys.size(); i++) {
+			head.append(conditionalKeys.get(i)).append(": ").append(conditionalValues.get(i)).append("\r\n");
+		}
+		if (requestBody != null) {
+			head.append("Content-Length: ").append(requestBody.size()).append("\r\n");
+		} else if (method.equals("POST") || method.equals("PUT")) {
+			head.append("Content-Length: 0\r\n");
+		}
+		if (!NetConfig.Http.keepAlive || "close".equalsIgnoreCase(getRequestProperty("Connection"))) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+
+		OutputStream out = socket.out;
+		out.write(head.toString().getBytes("ISO-8859-1"));
+		if (requestBody != null) {
+			requestBody.writeTo(out);
+		}
+		out.flush();
+	}
+
+	private void readResponseHead() throws IOException {
+		String status;
+		do {
+			status = readLine(socket.in);
+			if (status == null) {
+				throw new EOFException("No response from " + url.getHost());
+			}
+			if (!status.startsWith("HTTP/")) {
+				throw new ProtocolException("Invalid status line: " + status);
+			}
+			int space = status.indexOf(' ');
+			int end = status.indexOf(' ', space + 1);
+			try {
+				responseCode = Integer.parseInt(status.substring(space + 1, (end == -1) ? status.length() : end));
+			} catch (RuntimeException e) {
+				throw new ProtocolException("Invalid status line: " + status);
+			}
+			responseMessage = (end == -1) ? "" : status.substring(end + 1);
+			responseKeys = new ArrayList<>();
+			responseValues = new ArrayList<>();
+			responseKeys.add(null);
+			responseValues.add(status);
+			String line;
+			while ((line = readLine(socket.in)) != null && line.length() > 0) {
+				if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && responseValues.size() > 1) {
+					// Folded header
+					int last = responseValues.size() - 1;
+					responseValues.set(last, responseValues.get(last) + " " + line.trim());
+					continue;
+				}
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				responseKeys.add(line.substring(0, colon).trim());
+				responseValues.add(line.substring(colon + 1).trim());
+			}
+			if (line == null) {
+				throw new EOFException("Incomplete response from " + url.getHost());
+			}
+			// Skip 100 Continue and other interim responses
+		} while ((responseCode >= 100) && (responseCode < 200));
+
+		String connection = getHeaderField("Connection");
+		boolean reusable;
+		if (status.startsWith("HTTP/1.0")) {
+			reusable = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			reusable = !"close".equalsIgnoreCase(connection);
+		}
+		if (!NetConfig.Http.keepAlive || "close".equalsIgnoreCase(getRequestProperty("Connection"))) {
+			reusable = false;
+		}
+
+		long length = -1;
+		boolean chunked = false;
+		if (method.equals("HEAD") || (responseCode == HTTP_NO_CONTENT) || (responseCode == HTTP_NOT_MODIFIED)) {
+			length = 0;
+		} else if ("chunked".equalsIgnoreCase(getHeaderField("Transfer-Encoding"))) {
+			chunked = true;
+		} else {
+			String contentLength = getHeaderField("Content-Length");
+			if (contentLength != null) {
+				try {
+					length = Long.parseLong(contentLength);
+				} catch (NumberFormatException e) {
+					reusable = false;
+				}
+			}
+			if (length < 0) {
+				// Body ends when the server closes the connection
+				reusable = false;
+			}
+		}
+		responseBody = new BodyInputStream(length, chunked, reusable);
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int end = line.length();
+				if ((end > 0) && (line.charAt(end - 1) == '\r')) {
+					line.setLength(end - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return (line.length() == 0) ? null : line.toString();
+	}
+
+	/**
+	 * Stored response body, with a duration the reads are spread over
+	 */
+	private static final class StoredInputStream extends InputStream {
+
+		private final ByteBuffer body;
+
+		private final long nanos;
+
+		private final int length;
+
+		private long start;
+
+		StoredInputStream(ByteBuffer body, long nanos) {
+			this.body = body;
+			this.nanos = nanos;
+			this.length = body.remaining();
+		}
+
+		public int read() throws IOException {
+			if (!body.hasRemaining()) {
+				return -1;
+			}
+			pace(1);
+			return body.get() & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!body.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, body.remaining());
+			pace(len);
+			body.get(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return body.remaining();
+		}
+
+		/**
+		 * Wait until len more bytes would have arrived
+		 */
+		private void pace(int len) throws InterruptedIOException {
+			if (nanos <= 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			if (start == 0) {
+				start = now;
+			}
+			long delivered = length - body.remaining() + len;
+			long due = start + (long) ((double) nanos * delivered / length);
+			if (due - now > 0) {
+				sleepNanos(due - now);
+			}
+		}
+	}
+
+	/**
+	 * Response body framed by Content-Length, chunked encoding or connection
+	 * close. The connection is released as soon as the end is reached.
+	 */
+	private final class BodyInputStream extends InputStream {
+
+		private final boolean chunked;
+
+		private final boolean reusable;
+
+		/** Declared length, -1 when chunked or ending with the connection */
+		final long length;
+
+		/** Remaining in body or current chunk, -1 until close */
+		private long remaining;
+
+		private boolean finished;
+
+		BodyInputStream(long length, boolean chunked, boolean reusable) throws IOException {
+			this.chunked = chunked;
+			this.reusable = reusable;
+			this.length = chunked ? -1 : length;
+			this.remaining = chunked ? 0 : length;
+			if (!chunked && (length == 0)) {
+				finish(true);
+			}
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (chunked && (remaining == 0)) {
+				if (!nextChunk()) {
+					return -1;
+				}
+			}
+			if (remaining >= 0) {
+				len = (int) Math.min(len, remaining);
+			}
+			int n;
+			try {
+				n = socket.in.read(b, off, len);
+			} catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+			if (n == -1) {
+				boolean complete = (remaining < 0);
+				finish(false);
+				if (!complete) {
+					throw new EOFException("Incomplete response body from " + url.getHost());
+				}
+				return -1;
+			}
+			if (remaining >= 0) {
+				remaining -= n;
+				if ((remaining == 0) && !chunked) {
+					finish(true);
+				}
+			}
+			return n;
+		}
+
+		/**
+		 * @return false at the last chunk
+		 */
+		private boolean nextChunk() throws IOException {
+			try {
+				String line = readLine(socket.in);
+				if ((line != null) && (line.length() == 0)) {
+					// CRLF after previous chunk data
+					line = readLine(socket.in);
+				}
+				if (line == null) {
+					throw new EOFException("Incomplete chunked response from " + url.getHost());
+				}
+				int ext = line.indexOf(';');
+				try {
+					remaining = Long.parseLong(((ext == -1) ? line : line.substring(0, ext)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Invalid chunk size: " + line);
+				}
+				if (remaining > 0) {
+					return true;
+				}
+				// Trailer
+				while ((line = readLine(socket.in)) != null && line.length() > 0) {
+				}
+				finish(true);
+				return false;
+			} catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+		}
+
+		public int available() throws IOException {
+			if (finished || (remaining <= 0 && chunked)) {
+				return 0;
+			}
+			int available = socket.in.available();
+			return (remaining >= 0) ? (int) Math.min(available, remaining) : available;
+		}
+
+		/**
+		 * Read a small remainder of the body to keep the connection
+		 */
+		public void close() throws IOException {
+			if (finished) {
+				return;
+			}
+			if (!reusable || (!chunked && remaining > MAX_DRAIN)) {
+				finish(false);
+				return;
+			}
+			try {
+				socket.socket.setSoTimeout(DRAIN_TIMEOUT);
+				byte[] buf = new byte[4096];
+				long drained = 0;
+				while (!finished && (drained <= MAX_DRAIN)) {
+					int n = read(buf, 0, buf.length);
+					if (n == -1) {
+						break;
+					}
+					drained += n;
+				}
+			} catch (SocketTimeoutException e) {
+				// Server is slow, not worth waiting
+			} catch (IOException e) {
+			}
+			if (!finished) {
+				finish(false);
+			}
+		}
+
+		private void finish(boolean complete) throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			if (socket != null) {
+				if (complete) {
+					socket.socket.setSoTimeout(0);
+				}
+				HttpConnectionPool.release(socket, complete && reusable);
+				socket = null;
+			}
+		}
+	}
+
+}
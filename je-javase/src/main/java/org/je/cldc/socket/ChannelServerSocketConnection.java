@@ -0,0 +1,62 @@
+package org.je.cldc.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.microedition.io.StreamConnection;
+
+/**
+ * Server socket connection on a non-blocking ServerSocketChannel, accepted
+ * connections are {@link ChannelSocketConnection}s.
+ */
+public class ChannelServerSocketConnection implements
+		javax.microedition.io.ServerSocketConnection {
+
+	private final ServerSocketChannel channel;
+
+	private final SocketSelector selector;
+
+	public ChannelServerSocketConnection() throws IOException {
+		this(0);
+	}
+
+	public ChannelServerSocketConnection(int port) throws IOException {
+		selector = SocketSelector.getInstance();
+		channel = ServerSocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public String getLocalAddress() throws IOException {
+		InetAddress localHost = InetAddress.getLocalHost();
+		return localHost.getHostAddress();
+	}
+
+	public int getLocalPort() throws IOException {
+		return channel.socket().getLocalPort();
+	}
+
+	public StreamConnection acceptAndOpen() throws IOException {
+		while (true) {
+			SocketChannel accepted = channel.accept();
+			if (accepted != null) {
+				return new ChannelSocketConnection(accepted);
+			}
+			selector.await(channel, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	public void close() throws IOException {
+		selector.close(channel);
+	}
+
+}
@@ -0,0 +1,206 @@
+package org.je.cldc.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.je.util.NetEventBus;
+import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
+
+/**
+ * Socket connection on a non-blocking SocketChannel. Reads and writes keep
+ * GCF blocking semantics, a thread that would block parks in
+ * {@link SocketSelector} instead of holding a blocked socket read.
+ *
+ * As GCF specifies, closing a stream doesn't close the connection.
+ */
+public class ChannelSocketConnection extends SocketConnection {
+
+	private final SocketChannel channel;
+
+	private final SocketSelector selector;
+
+	public ChannelSocketConnection(String host, int port) throws IOException {
+		InetSocketAddress addr = getRemoteAddress(host, port);
+		selector = SocketSelector.getInstance();
+		channel = SocketChannel.open();
+		track(NetMetrics.SOCKET, host, port);
+		try {
+			channel.configureBlocking(false);
+			// initial latency
+			applyInitialLatency();
+			long start = System.nanoTime();
+			if (!channel.connect(addr)) {
+				while (!channel.finishConnect()) {
+					selector.await(channel, SelectionKey.OP_CONNECT);
+				}
+			}
+			metrics.connected(System.nanoTime() - start);
+			flow.connected();
+		} catch (IOException e) {
+			connectFailed();
+			channel.close();
+			throw e;
+		}
+		socket = channel.socket();
+		try { NetEventBus.publish("TCP", "OUT", host+":"+addr.getPort(), "connect"); } catch (Throwable ignore) {}
+	}
+
+	ChannelSocketConnection(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = SocketSelector.getInstance();
+		channel.configureBlocking(false);
+		socket = channel.socket();
+		track(NetMetrics.SOCKET, socket.getInetAddress().getHostAddress(), socket.getPort());
+	}
+
+	public void close() throws IOException {
+		try {
+			String target;
+			try { target = getAddress()+":"+getPort(); } catch (Throwable t) { target = "?"; }
+			NetEventBus.publish("TCP", "IN", target, "close");
+		} catch (Throwable ignore) {}
+		if (metrics != null) {
+			metrics.close();
+		}
+		selector.close(channel);
+	}
+
+	public InputStream openInputStream() throws IOException {
+		InputStream in = new ChannelInputStream();
+		// Wrap for traffic shaping
+		in = NetConfig.Traffic.wrapInput(in, flow);
+		try { NetEventBus.publish("TCP", "IN", getAddress()+":"+getPort(), "openIn"); } catch (Throwable ignore) {}
+		return in;
+	}
+
+	public OutputStream openOutputStream() throws IOException {
+		OutputStream out = new ChannelOutputStream();
+		// Wrap for traffic shaping
+		out = NetConfig.Traffic.wrapOutput(out, flow);
+		try { NetEventBus.publish("TCP", "OUT", socket.getInetAddress().getHostAddress()+":"+socket.getPort(), "openOut"); } catch (Throwable ignore) {}
+		return out;
+	}
+
+	private final class ChannelInputStream extends InputStream {
+
+		private final byte[] single = new byte[1];
+
+		/** Received data not returned yet, pooled buffer held only while not empty */
+		private ByteBuffer buffer;
+
+		private boolean closed;
+
+		public int read() throws IOException {
+			return (read(single, 0, 1) == -1) ? -1 : (single[0] & 0xFF);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if ((buffer == null) && !fill(true)) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			if (!buffer.hasRemaining()) {
+				SocketSelector.BUFFERS.release(buffer);
+				buffer = null;
+			}
+			return n;
+		}
+
+		/**
+		 * Data already received counts as available, the channel is not
+		 * blocking
+		 */
+		public int available() throws IOException {
+			if ((buffer == null) && !closed) {
+				fill(false);
+			}
+			return (buffer == null) ? 0 : buffer.remaining();
+		}
+
+		/**
+		 * @return false at end of stream, or when not blocking and nothing
+		 *         was received
+		 */
+		private boolean fill(boolean block) throws IOException {
+			ByteBuffer received = SocketSelector.BUFFERS.acquire();
+			int n;
+			try {
+				while (((n = channel.read(received)) == 0) && block) {
+					selector.await(channel, SelectionKey.OP_READ);
+				}
+			} catch (IOException e) {
+				SocketSelector.BUFFERS.release(received);
+				throw e;
+			}
+			if (n <= 0) {
+				SocketSelector.BUFFERS.release(received);
+				return false;
+			}
+			received.flip();
+			buffer = received;
+			return true;
+		}
+
+		public void close() throws IOException {
+			closed = true;
+			if (buffer != null) {
+				SocketSelector.BUFFERS.release(buffer);
+				buffer = null;
+			}
+		}
+	}
+
+	private final class ChannelOutputStream extends OutputStream {
+
+		private final byte[] single = new byte[1];
+
+		private boolean closed;
+
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			ByteBuffer buffer = SocketSelector.BUFFERS.acquire();
+			try {
+				while (len > 0) {
+					int n = Math.min(len, buffer.capacity());
+					buffer.clear();
+					buffer.put(b, off, n);
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						if (channel.write(buffer) == 0) {
+							selector.await(channel, SelectionKey.OP_WRITE);
+						}
+					}
+					off += n;
+					len -= n;
+				}
+			} finally {
+				SocketSelector.BUFFERS.release(buffer);
+			}
+		}
+
+		public void close() throws IOException {
+			closed = true;
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package org.je.cldc.socket;
 import java.io.IOException;
 
 import org.je.cldc.ClosedConnection;
+import org.je.util.net.NetConfig;
 
 public class Connection implements ClosedConnection {
 
@@ -27,7 +28,12 @@ public class Connection implements ClosedConnection {
 			if (port == -1) {
 				throw new IllegalArgumentException("Port missing");
 			}
+			if (NetConfig.Sockets.nio) {
+				return new ChannelSocketConnection(host, port);
+			}
 			return new SocketConnection(host, port);
+		} else if (NetConfig.Sockets.nio) {
+			return new ChannelServerSocketConnection((port == -1) ? 0 : port);
 		} else {
 			if (port == -1) {
 				return new ServerSocketConnection();
@@ -10,18 +10,48 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import org.je.util.NetEventBus;
 import org.je.util.net.NetConfig;
+import org.je.util.net.NetMetrics;
 
 public class SocketConnection implements javax.microedition.io.SocketConnection {
 
 	protected Socket socket;
+
+	/**
+	 * Simulated link timing shared by input and output stream
+	 */
+	protected final NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+
+	/**
+	 * Measurements of this connection, null when not measured
+	 */
+	protected NetMetrics.Recorder metrics;
 	
 	public SocketConnection() {		
 	}
 
 	/**
-	 * Apply initial latency simulation in a non-blocking way.
+	 * Measure this connection and the traffic of its streams
 	 */
-	private void applyInitialLatency() {
+	protected void track(String protocol, String host, int port) {
+		metrics = NetMetrics.open(protocol, host, port);
+		flow.track(metrics, true);
+	}
+
+	/**
+	 * Record a failed connect, the connection isn't used
+	 */
+	protected void connectFailed() {
+		if (metrics != null) {
+			metrics.failed();
+			metrics.close();
+		}
+	}
+
+	/**
+	 * Connect takes the configured latency, the flow is started by
+	 * Flow.connected() once connected so the latency is not charged again
+	 */
+	protected void applyInitialLatency() {
 		int latency = Math.max(0, NetConfig.Traffic.latencyMs);
 		if (latency > 0) {
 			try {
@@ -29,28 +59,44 @@ public class SocketConnection implements javax.microedition.io.SocketConnection
 			} catch (InterruptedException ie) {
 				Thread.currentThread().interrupt();
 			}
+			if (metrics != null) {
+				metrics.delayed(latency * 1000000L);
+			}
 		}
 	}
 
-	public SocketConnection(String host, int port) throws IOException {
+	/**
+	 * Address to connect to with network policy and DNS overrides applied
+	 */
+	protected static InetSocketAddress getRemoteAddress(String host, int port) throws IOException {
 		if (NetConfig.Policy.offline) throw new IOException("No network");
-		String targetHost = host; int targetPort = port;
-		InetAddress addr;
 		if (NetConfig.Policy.captivePortal) {
-			addr = InetAddress.getByName("127.0.0.1");
-			targetPort = NetConfig.Policy.captivePort;
-		} else {
-			addr = NetConfig.Dns.resolveHost(host);
+			return new InetSocketAddress(InetAddress.getByName("127.0.0.1"), NetConfig.Policy.captivePort);
 		}
+		return new InetSocketAddress(NetConfig.Dns.resolveHost(host), port);
+	}
+
+	public SocketConnection(String host, int port) throws IOException {
+		InetSocketAddress addr = getRemoteAddress(host, port);
+		track(NetMetrics.SOCKET, host, port);
 		this.socket = new Socket();
 		// initial latency
 		applyInitialLatency();
-		this.socket.connect(new InetSocketAddress(addr, targetPort));
-		try { NetEventBus.publish("TCP", "OUT", targetHost+":"+targetPort, "connect"); } catch (Throwable ignore) {}
+		long start = System.nanoTime();
+		try {
+			this.socket.connect(addr);
+		} catch (IOException e) {
+			connectFailed();
+			throw e;
+		}
+		metrics.connected(System.nanoTime() - start);
+		flow.connected();
+		try { NetEventBus.publish("TCP", "OUT", host+":"+addr.getPort(), "connect"); } catch (Throwable ignore) {}
 	}
 	
 	public SocketConnection(Socket socket) {
 		this.socket = socket;
+		track(NetMetrics.SOCKET, socket.getInetAddress().getHostAddress(), socket.getPort());
 	}
 
 	public String getAddress() throws IOException {
@@ -173,13 +219,16 @@ public class SocketConnection implements javax.microedition.io.SocketConnection
 			try { target = getAddress()+":"+getPort(); } catch (Throwable t) { target = "?"; }
 			NetEventBus.publish("TCP", "IN", target, "close");
 		} catch (Throwable ignore) {}
+		if (metrics != null) {
+			metrics.close();
+		}
 		socket.close();
 	}
 
 	public InputStream openInputStream() throws IOException {
 		InputStream in = socket.getInputStream();
 		// Wrap for traffic shaping
-		in = NetConfig.Traffic.wrapInput(in);
+		in = NetConfig.Traffic.wrapInput(in, flow);
 		try { NetEventBus.publish("TCP", "IN", getAddress()+":"+getPort(), "openIn"); } catch (Throwable ignore) {}
 		return in;
 	}
@@ -191,7 +240,7 @@ public class SocketConnection implements javax.microedition.io.SocketConnection
 	public OutputStream openOutputStream() throws IOException {
 		OutputStream out = socket.getOutputStream();
 		// Wrap for traffic shaping
-		out = NetConfig.Traffic.wrapOutput(out);
+		out = NetConfig.Traffic.wrapOutput(out, flow);
 		try { NetEventBus.publish("TCP", "OUT", socket.getInetAddress().getHostAddress()+":"+socket.getPort(), "openOut"); } catch (Throwable ignore) {}
 		return out;
 	}
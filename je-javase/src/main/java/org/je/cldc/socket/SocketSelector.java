@@ -0,0 +1,211 @@
+package org.je.cldc.socket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.je.log.Logger;
+import org.je.util.net.BufferPool;
+
+/**
+ * Selector loop shared by all non-blocking socket and datagram connections.
+ *
+ * A thread that can't read, write, connect or accept parks in
+ * {@link #await(SelectableChannel, int)} until the selector thread finds the
+ * channel ready, so waiting connections don't hold a blocked read each.
+ * Registrations are handed to the selector thread through a queue, the
+ * selector is never blocked on by other threads.
+ */
+public final class SocketSelector implements Runnable {
+
+	/** Direct buffers for stream channel I/O */
+	static final BufferPool BUFFERS = new BufferPool(16 * 1024, 256);
+
+	/** Waiters check the channel after this time in case a close raced with registration */
+	private static final long PARK_NANOS = 1000L * 1000 * 1000;
+
+	private static final int[] OPS = { SelectionKey.OP_READ, SelectionKey.OP_WRITE, SelectionKey.OP_CONNECT,
+			SelectionKey.OP_ACCEPT };
+
+	private static SocketSelector instance;
+
+	private final Selector selector;
+
+	/** Waiters to register */
+	private final ConcurrentLinkedQueue<Waiter> pending = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Thread waiting for one operation
+	 */
+	private static final class Waiter {
+
+		final SelectableChannel channel;
+
+		final int op;
+
+		final Thread thread;
+
+		volatile boolean ready;
+
+		Waiter(SelectableChannel channel, int op) {
+			this.channel = channel;
+			this.op = op;
+			this.thread = Thread.currentThread();
+		}
+
+		void wake() {
+			ready = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	private SocketSelector() throws IOException {
+		selector = Selector.open();
+	}
+
+	public static synchronized SocketSelector getInstance() throws IOException {
+		if (instance == null) {
+			instance = new SocketSelector();
+			Thread thread = new Thread(instance, "SocketSelector");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Park until the channel is ready for op or closed
+	 */
+	public void await(SelectableChannel channel, int op) throws IOException {
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		Waiter waiter = new Waiter(channel, op);
+		pending.offer(waiter);
+		selector.wakeup();
+		while (!waiter.ready && channel.isOpen()) {
+			LockSupport.parkNanos(this, PARK_NANOS);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	/**
+	 * Close channel and wake its waiters
+	 */
+	public void close(SelectableChannel channel) throws IOException {
+		// Key is gone from the channel once the selector deregisters it
+		SelectionKey key = channel.keyFor(selector);
+		channel.close();
+		if (key != null) {
+			wakeAll(key);
+		}
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				processPending();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						wakeAll(key);
+						continue;
+					}
+					Waiter[] waiters = (Waiter[]) key.attachment();
+					try {
+						int ready = key.readyOps();
+						synchronized (waiters) {
+							for (int i = 0; i < OPS.length; i++) {
+								if (((ready & OPS[i]) != 0) && (waiters[i] != null)) {
+									waiters[i].wake();
+									waiters[i] = null;
+								}
+							}
+							key.interestOps(interestOps(waiters));
+						}
+					} catch (CancelledKeyException e) {
+						// Closed meanwhile
+						wakeAll(key);
+					}
+				}
+			} catch (Throwable e) {
+				Logger.error("Socket selector", e);
+			}
+		}
+	}
+
+	private void processPending() {
+		Waiter waiter;
+		while ((waiter = pending.poll()) != null) {
+			SelectionKey key = waiter.channel.keyFor(selector);
+			try {
+				Waiter[] waiters;
+				if ((key == null) || !key.isValid()) {
+					waiters = new Waiter[OPS.length];
+					waiters[index(waiter.op)] = waiter;
+					waiter.channel.register(selector, waiter.op, waiters);
+				} else {
+					waiters = (Waiter[]) key.attachment();
+					synchronized (waiters) {
+						waiters[index(waiter.op)] = waiter;
+						key.interestOps(interestOps(waiters));
+					}
+				}
+			} catch (ClosedChannelException e) {
+				waiter.wake();
+			} catch (RuntimeException e) {
+				// Cancelled key or closed selector, caller sees the channel state
+				waiter.wake();
+			}
+		}
+	}
+
+	private static void wakeAll(SelectionKey key) {
+		Waiter[] waiters = (Waiter[]) key.attachment();
+		synchronized (waiters) {
+			for (int i = 0; i < waiters.length; i++) {
+				if (waiters[i] != null) {
+					waiters[i].wake();
+					waiters[i] = null;
+				}
+			}
+		}
+	}
+
+	private static int interestOps(Waiter[] waiters) {
+		int ops = 0;
+		for (int i = 0; i < OPS.length; i++) {
+			if (waiters[i] != null) {
+				ops |= OPS[i];
+			}
+		}
+		return ops;
+	}
+
+	private static int index(int op) {
+		for (int i = 0; i < OPS.length; i++) {
+			if (OPS[i] == op) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+
+}
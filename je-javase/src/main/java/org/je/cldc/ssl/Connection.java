@@ -23,6 +23,7 @@ import javax.net.ssl.X509TrustManager;
 import org.je.cldc.CertificateImpl;
 import org.je.cldc.ClosedConnection;
 import org.je.cldc.SecurityInfoImpl;
+import org.je.util.net.NetMetrics;
 
 public class Connection extends org.je.cldc.socket.SocketConnection implements SecureConnection, ClosedConnection {
 	
@@ -52,7 +53,18 @@ public class Connection extends org.je.cldc.socket.SocketConnection implements S
 			SSLContext sc = SSLContext.getInstance("TLS");			
 			sc.init(null, trustManagers, new SecureRandom());
 			SSLSocketFactory factory = sc.getSocketFactory();
+			track(NetMetrics.SSL, host, port);
+			long start = System.nanoTime();
 			socket = factory.createSocket(host, port);
+			// Handshake now so connect time includes it
+			((SSLSocket) socket).startHandshake();
+			metrics.connected(System.nanoTime() - start);
+		} catch (IOException ex) {
+			connectFailed();
+			if (socket != null) {
+				socket.close();
+			}
+			throw ex;
 		} catch (NoSuchAlgorithmException ex) {
 			throw new IOException("SSL algorithm not available: " + ex.getMessage());
 		} catch (KeyManagementException ex) {
@@ -67,6 +79,9 @@ public class Connection extends org.je.cldc.socket.SocketConnection implements S
 	public void close() throws IOException {
 		// TODO fix differences between Java ME and Java SE
 		
+		if (metrics != null) {
+			metrics.close();
+		}
 		socket.close();
 	}
 
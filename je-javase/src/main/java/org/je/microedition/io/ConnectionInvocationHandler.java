@@ -16,6 +16,7 @@ import org.je.log.Logger;
  * Dynamic proxy class for GCF Connections returend to MIDlet
  * Used to debug excetions thrown to MIDlet
  * Makes PrivilegedCalls when rinning in Webstart
+ * Only used for connections without a {@link ConnectionWrapper}
  * 
  * @author vlads
  */
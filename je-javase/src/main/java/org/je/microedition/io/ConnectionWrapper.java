@@ -0,0 +1,429 @@
+package org.je.microedition.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+import javax.microedition.io.Connection;
+import javax.microedition.io.Datagram;
+import javax.microedition.io.HttpConnection;
+import javax.microedition.io.HttpsConnection;
+import javax.microedition.io.SecureConnection;
+import javax.microedition.io.SecurityInfo;
+import javax.microedition.io.ServerSocketConnection;
+import javax.microedition.io.SocketConnection;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.UDPDatagramConnection;
+
+import org.je.log.Logger;
+
+/**
+ * Delegating GCF Connections returned to MIDlet instead of a
+ * {@link ConnectionInvocationHandler} proxy. Calls are logged when
+ * ConnectorImpl.debugConnectionInvocations is set and made privileged when
+ * running in Webstart, without reflection.
+ *
+ * Connections implementing an interface without a wrapper still get a proxy.
+ */
+abstract class ConnectionWrapper implements Connection {
+
+	static {
+		Logger.addLogOrigin(ConnectionWrapper.class);
+		Class[] wrappers = ConnectionWrapper.class.getDeclaredClasses();
+		for (int i = 0; i < wrappers.length; i++) {
+			Logger.addLogOrigin(wrappers[i]);
+		}
+	}
+
+	interface Call<T> {
+		T call() throws IOException;
+	}
+
+	interface Get<T> {
+		T get();
+	}
+
+	private final Connection original;
+
+	/* The context to be used when connecting to network, null if not needed */
+	private final AccessControlContext acc;
+
+	ConnectionWrapper(Connection original, AccessControlContext acc) {
+		this.original = original;
+		this.acc = acc;
+	}
+
+	/**
+	 * @return wrapper implementing all Connection interfaces of con, or null
+	 */
+	static Connection wrap(Connection con, Class[] interfaces, boolean needPrivilegedCalls) {
+		AccessControlContext acc = needPrivilegedCalls ? AccessController.getContext() : null;
+		ConnectionWrapper wrapper;
+		if (con instanceof HttpsConnection) {
+			wrapper = new Https((HttpsConnection) con, acc);
+		} else if (con instanceof HttpConnection) {
+			wrapper = new Http((HttpConnection) con, acc);
+		} else if (con instanceof SecureConnection) {
+			wrapper = new Secure((SecureConnection) con, acc);
+		} else if (con instanceof SocketConnection) {
+			wrapper = new Socket((SocketConnection) con, acc);
+		} else if (con instanceof ServerSocketConnection) {
+			wrapper = new ServerSocket((ServerSocketConnection) con, acc);
+		} else if (con instanceof UDPDatagramConnection) {
+			wrapper = new UDPDatagram((UDPDatagramConnection) con, acc);
+		} else {
+			return null;
+		}
+		for (int i = 0; i < interfaces.length; i++) {
+			if (Connection.class.isAssignableFrom(interfaces[i]) && !interfaces[i].isInstance(wrapper)) {
+				return null;
+			}
+		}
+		return wrapper;
+	}
+
+	final <T> T call(String method, final Call<T> call) throws IOException {
+		if (ConnectorImpl.debugConnectionInvocations) {
+			Logger.debug("invoke", method);
+		}
+		try {
+			if (acc == null) {
+				return call.call();
+			}
+			try {
+				return AccessController.doPrivileged(new PrivilegedExceptionAction<T>() {
+					public T run() throws IOException {
+						return call.call();
+					}
+				}, acc);
+			} catch (PrivilegedActionException e) {
+				throw (IOException) e.getException();
+			}
+		} catch (IOException e) {
+			throw logged(method, e);
+		} catch (RuntimeException e) {
+			throw logged(method, e);
+		}
+	}
+
+	final <T> T get(String method, final Get<T> get) {
+		if (ConnectorImpl.debugConnectionInvocations) {
+			Logger.debug("invoke", method);
+		}
+		try {
+			if (acc == null) {
+				return get.get();
+			}
+			return AccessController.doPrivileged(new PrivilegedAction<T>() {
+				public T run() {
+					return get.get();
+				}
+			}, acc);
+		} catch (RuntimeException e) {
+			throw logged(method, e);
+		}
+	}
+
+	private static <E extends Throwable> E logged(String method, E e) {
+		if (ConnectorImpl.debugConnectionInvocations) {
+			Logger.error("Connection." + method, e);
+		}
+		return e;
+	}
+
+	public void close() throws IOException {
+		call("close", () -> {
+			original.close();
+			return null;
+		});
+	}
+
+	static class Stream extends ConnectionWrapper implements StreamConnection {
+
+		private final StreamConnection con;
+
+		Stream(StreamConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public InputStream openInputStream() throws IOException {
+			return call("openInputStream", con::openInputStream);
+		}
+
+		public DataInputStream openDataInputStream() throws IOException {
+			return call("openDataInputStream", con::openDataInputStream);
+		}
+
+		public OutputStream openOutputStream() throws IOException {
+			return call("openOutputStream", con::openOutputStream);
+		}
+
+		public DataOutputStream openDataOutputStream() throws IOException {
+			return call("openDataOutputStream", con::openDataOutputStream);
+		}
+	}
+
+	static class Http extends Stream implements HttpConnection {
+
+		private final HttpConnection con;
+
+		Http(HttpConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public String getType() {
+			return get("getType", con::getType);
+		}
+
+		public String getEncoding() {
+			return get("getEncoding", con::getEncoding);
+		}
+
+		public long getLength() {
+			return get("getLength", con::getLength).longValue();
+		}
+
+		public String getURL() {
+			return get("getURL", con::getURL);
+		}
+
+		public String getProtocol() {
+			return get("getProtocol", con::getProtocol);
+		}
+
+		public String getHost() {
+			return get("getHost", con::getHost);
+		}
+
+		public String getFile() {
+			return get("getFile", con::getFile);
+		}
+
+		public String getRef() {
+			return get("getRef", con::getRef);
+		}
+
+		public String getQuery() {
+			return get("getQuery", con::getQuery);
+		}
+
+		public int getPort() {
+			return get("getPort", con::getPort).intValue();
+		}
+
+		public String getRequestMethod() {
+			return get("getRequestMethod", con::getRequestMethod);
+		}
+
+		public void setRequestMethod(final String method) throws IOException {
+			call("setRequestMethod", () -> {
+				con.setRequestMethod(method);
+				return null;
+			});
+		}
+
+		public String getRequestProperty(final String key) {
+			return get("getRequestProperty", () -> con.getRequestProperty(key));
+		}
+
+		public void setRequestProperty(final String key, final String value) throws IOException {
+			call("setRequestProperty", () -> {
+				con.setRequestProperty(key, value);
+				return null;
+			});
+		}
+
+		public int getResponseCode() throws IOException {
+			return call("getResponseCode", con::getResponseCode).intValue();
+		}
+
+		public String getResponseMessage() throws IOException {
+			return call("getResponseMessage", con::getResponseMessage);
+		}
+
+		public long getExpiration() throws IOException {
+			return call("getExpiration", con::getExpiration).longValue();
+		}
+
+		public long getDate() throws IOException {
+			return call("getDate", con::getDate).longValue();
+		}
+
+		public long getLastModified() throws IOException {
+			return call("getLastModified", con::getLastModified).longValue();
+		}
+
+		public String getHeaderField(final String name) throws IOException {
+			return call("getHeaderField", () -> con.getHeaderField(name));
+		}
+
+		public int getHeaderFieldInt(final String name, final int def) throws IOException {
+			return call("getHeaderFieldInt", () -> con.getHeaderFieldInt(name, def)).intValue();
+		}
+
+		public long getHeaderFieldDate(final String name, final long def) throws IOException {
+			return call("getHeaderFieldDate", () -> con.getHeaderFieldDate(name, def)).longValue();
+		}
+
+		public String getHeaderField(final int n) throws IOException {
+			return call("getHeaderField", () -> con.getHeaderField(n));
+		}
+
+		public String getHeaderFieldKey(final int n) throws IOException {
+			return call("getHeaderFieldKey", () -> con.getHeaderFieldKey(n));
+		}
+	}
+
+	static class Https extends Http implements HttpsConnection {
+
+		private final HttpsConnection con;
+
+		Https(HttpsConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public SecurityInfo getSecurityInfo() throws IOException {
+			return call("getSecurityInfo", con::getSecurityInfo);
+		}
+	}
+
+	static class Socket extends Stream implements SocketConnection {
+
+		private final SocketConnection con;
+
+		Socket(SocketConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public void setSocketOption(final byte option, final int value) throws IOException {
+			call("setSocketOption", () -> {
+				con.setSocketOption(option, value);
+				return null;
+			});
+		}
+
+		public int getSocketOption(final byte option) throws IOException {
+			return call("getSocketOption", () -> con.getSocketOption(option)).intValue();
+		}
+
+		public String getLocalAddress() throws IOException {
+			return call("getLocalAddress", con::getLocalAddress);
+		}
+
+		public int getLocalPort() throws IOException {
+			return call("getLocalPort", con::getLocalPort).intValue();
+		}
+
+		public String getAddress() throws IOException {
+			return call("getAddress", con::getAddress);
+		}
+
+		public int getPort() throws IOException {
+			return call("getPort", con::getPort).intValue();
+		}
+	}
+
+	static class Secure extends Socket implements SecureConnection {
+
+		private final SecureConnection con;
+
+		Secure(SecureConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public SecurityInfo getSecurityInfo() throws IOException {
+			return call("getSecurityInfo", con::getSecurityInfo);
+		}
+	}
+
+	static class ServerSocket extends ConnectionWrapper implements ServerSocketConnection {
+
+		private final ServerSocketConnection con;
+
+		ServerSocket(ServerSocketConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public StreamConnection acceptAndOpen() throws IOException {
+			return call("acceptAndOpen", con::acceptAndOpen);
+		}
+
+		public String getLocalAddress() throws IOException {
+			return call("getLocalAddress", con::getLocalAddress);
+		}
+
+		public int getLocalPort() throws IOException {
+			return call("getLocalPort", con::getLocalPort).intValue();
+		}
+	}
+
+	static class UDPDatagram extends ConnectionWrapper implements UDPDatagramConnection {
+
+		private final UDPDatagramConnection con;
+
+		UDPDatagram(UDPDatagramConnection con, AccessControlContext acc) {
+			super(con, acc);
+			this.con = con;
+		}
+
+		public int getMaximumLength() throws IOException {
+			return call("getMaximumLength", con::getMaximumLength).intValue();
+		}
+
+		public int getNominalLength() throws IOException {
+			return call("getNominalLength", con::getNominalLength).intValue();
+		}
+
+		public void send(final Datagram dgram) throws IOException {
+			call("send", () -> {
+				con.send(dgram);
+				return null;
+			});
+		}
+
+		public void receive(final Datagram dgram) throws IOException {
+			call("receive", () -> {
+				con.receive(dgram);
+				return null;
+			});
+		}
+
+		public Datagram newDatagram(final int size) throws IOException {
+			return call("newDatagram", () -> con.newDatagram(size));
+		}
+
+		public Datagram newDatagram(final int size, final String addr) throws IOException {
+			return call("newDatagram", () -> con.newDatagram(size, addr));
+		}
+
+		public Datagram newDatagram(final byte[] buf, final int size) throws IOException {
+			return call("newDatagram", () -> con.newDatagram(buf, size));
+		}
+
+		public Datagram newDatagram(final byte[] buf, final int size, final String addr) throws IOException {
+			return call("newDatagram", () -> con.newDatagram(buf, size, addr));
+		}
+
+		public String getLocalAddress() throws IOException {
+			return call("getLocalAddress", con::getLocalAddress);
+		}
+
+		public int getLocalPort() throws IOException {
+			return call("getLocalPort", con::getLocalPort).intValue();
+		}
+	}
+
+}
@@ -96,6 +96,10 @@ public class ConnectorImpl extends ConnectorAdapter {
 		if (connectionClass == null) {
 			throw new ClassCastException(origConnection.getClass().getName() + " Connection expected");
 		}
+		Connection wrapper = ConnectionWrapper.wrap(origConnection, interfaces, needPrivilegedCalls);
+		if (wrapper != null) {
+			return wrapper;
+		}
 		return (Connection) Proxy.newProxyInstance(ConnectorImpl.class.getClassLoader(), interfaces,
 				new ConnectionInvocationHandler(origConnection, needPrivilegedCalls));
 	}
@@ -79,6 +79,9 @@ public class MemoryRecordStoreManager implements RecordStoreManager {
 	public void saveRecord(RecordStoreImpl recordStoreImpl, int recordId) {
 	}
 
+	public void closeRecordStore(RecordStoreImpl recordStoreImpl) {
+	}
+
 	public void init() {
 		deleteStores();
 	}
@@ -2,15 +2,26 @@ package org.je.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Lightweight global network event bus used by core I/O layers and UI.
  * Lives in je-javase so CLDC connections can publish without depending on Swing.
+ *
+ * Events are kept in a fixed-capacity ring buffer. Every event gets a sequence
+ * number, publishers claim it with a single atomic increment and never block.
+ * Consumers keep the next sequence they want and call {@link #readSince(long)}
+ * to get only new events; events overwritten before a consumer read them are
+ * reported as lost.
  */
 public final class NetEventBus {
     private NetEventBus() {}
 
+    public static final int CAPACITY = 8192;
+
+    private static final int MASK = CAPACITY - 1;
+
     public static final class NetEvent {
         public final long ts;
         public final String type;      // HTTP/HTTPS/TCP/UDP
@@ -18,40 +29,128 @@ public final class NetEventBus {
         public final String target;    // host:port or URL
         public final String info;      // short description
         public final long bytes;       // bytes transferred (optional, 0 if unknown)
+        long seq;
 
         public NetEvent(String type, String direction, String target, String info) {
             this(type, direction, target, info, 0);
         }
-        
+
         public NetEvent(String type, String direction, String target, String info, long bytes) {
             this.ts = System.currentTimeMillis();
-            this.type = type; 
-            this.direction = direction; 
-            this.target = target; 
+            this.type = type;
+            this.direction = direction;
+            this.target = target;
             this.info = info;
             this.bytes = bytes;
         }
+
+        /** Sequence number assigned when published */
+        public long getSeq() {
+            return seq;
+        }
+    }
+
+    /**
+     * Result of {@link #readSince(long)}
+     */
+    public static final class Batch {
+        /** New events in publish order */
+        public final List<NetEvent> events;
+        /** Cursor for the next read */
+        public final long nextSeq;
+        /** Events overwritten before they were read */
+        public final long lost;
+
+        Batch(List<NetEvent> events, long nextSeq, long lost) {
+            this.events = events;
+            this.nextSeq = nextSeq;
+            this.lost = lost;
+        }
     }
 
-    private static final CopyOnWriteArrayList<NetEvent> events = new CopyOnWriteArrayList<>();
+    private static final AtomicReferenceArray<NetEvent> ring = new AtomicReferenceArray<>(CAPACITY);
+
+    /** Next sequence to be claimed by a publisher */
+    private static final AtomicLong nextSeq = new AtomicLong();
+
+    /** Events before this sequence were cleared */
+    private static volatile long clearedSeq;
 
     public static void publish(String type, String direction, String target, String info) {
-        events.add(new NetEvent(type, direction, target, info));
+        publish(new NetEvent(type, direction, target, info));
     }
-    
+
     public static void publish(String type, String direction, String target, String info, long bytes) {
-        events.add(new NetEvent(type, direction, target, info, bytes));
+        publish(new NetEvent(type, direction, target, info, bytes));
     }
 
+    private static void publish(NetEvent event) {
+        long seq = nextSeq.getAndIncrement();
+        event.seq = seq;
+        // Volatile write publishes the event with its sequence
+        ring.set((int) (seq & MASK), event);
+    }
+
+    /**
+     * Read events published from seq on. Start with 0 or {@link #head()} to
+     * skip history, continue with {@link Batch#nextSeq}.
+     */
+    public static Batch readSince(long seq) {
+        long end = nextSeq.get();
+        long start = Math.max(seq, clearedSeq);
+        long lost = 0;
+        if (end - start > CAPACITY) {
+            // Overwritten before this consumer got to them
+            lost = end - CAPACITY - start;
+            start = end - CAPACITY;
+        }
+        List<NetEvent> events = new ArrayList<>((int) Math.max(0, end - start));
+        long s = start;
+        while (s < end) {
+            NetEvent event = ring.get((int) (s & MASK));
+            if (event == null || event.seq < s) {
+                // Claimed but not written yet, read it next time
+                break;
+            }
+            if (event.seq > s) {
+                // Overwritten by a publisher that wrapped around meanwhile
+                lost++;
+            } else if (s >= clearedSeq) {
+                events.add(event);
+            }
+            s++;
+        }
+        return new Batch(events, s, lost);
+    }
+
+    /** Sequence of the next event, a cursor that skips all history */
+    public static long head() {
+        return nextSeq.get();
+    }
+
+    /** Retained events */
     public static List<NetEvent> snapshot() {
-        return new ArrayList<>(events);
+        return readSince(0).events;
     }
 
+    /** Drop retained events, consumers continue after them */
     public static void clear() {
-        events.clear();
+        clearedSeq = nextSeq.get();
     }
 
+    /** Number of retained events */
     public static int count() {
-        return events.size();
+        long end = nextSeq.get();
+        return (int) Math.min(CAPACITY, end - clearedSeq);
+    }
+
+    /** Events published since the last clear */
+    public static long published() {
+        return nextSeq.get() - clearedSeq;
+    }
+
+    /** Events published since the last clear that no longer fit in the buffer */
+    public static long overflowCount() {
+        return Math.max(0, published() - CAPACITY);
     }
 }
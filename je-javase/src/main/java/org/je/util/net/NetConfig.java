@@ -10,17 +10,29 @@ import java.net.InetAddress;
 import java.net.URLConnection;
 import java.net.Socket;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.je.app.Common;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Global network configuration toggles and helpers used by CLDC I/O and UI tools.
@@ -34,112 +46,567 @@ public final class NetConfig {
         public static volatile int captivePort = 8081;
     }
 
+    /**
+     * Host name resolution for MIDlet connections.
+     *
+     * Overrides map a host to an IP or another host name. Names are looked up
+     * through a cache keeping addresses for positiveTtlSeconds and failures for
+     * negativeTtlSeconds; threads asking for a name already being looked up
+     * wait for that lookup instead of starting their own. IP literals bypass
+     * the cache.
+     */
     public static final class Dns {
-        private static final Map<String, String> overrides = new LinkedHashMap<>();
+        /** Addresses are reused for this time, 0 disables the cache */
+        public static volatile int positiveTtlSeconds = 60;
+        /** Unknown hosts fail without a lookup for this time */
+        public static volatile int negativeTtlSeconds = 10;
+        /** Resolve hosts of URLs in the JAD in the background when a suite is loaded */
+        public static volatile boolean prefetch = true;
+
+        private static final int MAX_ENTRIES = 1024;
+
+        private static final Pattern URL_HOST = Pattern.compile("(?i)\\b(?:https?|socket|ssl|datagram)://([^/:?#\\s\\[]+)");
+
+        /** Replaced on change, read without locking */
+        private static volatile Map<String, String> overrides = new LinkedHashMap<>();
+
+        private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+        private static final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+        private static final AtomicLong hits = new AtomicLong();
+        private static final AtomicLong negativeHits = new AtomicLong();
+        private static final AtomicLong lookups = new AtomicLong();
+        private static final AtomicLong coalesced = new AtomicLong();
+        private static final AtomicLong failures = new AtomicLong();
+        private static final AtomicLong prefetched = new AtomicLong();
+        private static final AtomicLong lookupNanos = new AtomicLong();
+
+        private static ExecutorService prefetcher;
+
+        /**
+         * Cached lookup result
+         */
+        public static final class Entry {
+            public final String host;
+            /** null if the host is unknown */
+            public final InetAddress address;
+            final UnknownHostException failure;
+            /** System.currentTimeMillis() */
+            public final long expires;
+            public final long lookupNanos;
+
+            Entry(String host, InetAddress address, UnknownHostException failure, long expires, long lookupNanos) {
+                this.host = host;
+                this.address = address;
+                this.failure = failure;
+                this.expires = expires;
+                this.lookupNanos = lookupNanos;
+            }
+        }
+
+        /**
+         * Counters since start or the last flush
+         */
+        public static final class Stats {
+            public final long hits;
+            public final long negativeHits;
+            public final long lookups;
+            public final long coalesced;
+            public final long failures;
+            public final long prefetched;
+            public final long lookupNanos;
+            public final int entries;
+
+            Stats() {
+                this.hits = Dns.hits.get();
+                this.negativeHits = Dns.negativeHits.get();
+                this.lookups = Dns.lookups.get();
+                this.coalesced = Dns.coalesced.get();
+                this.failures = Dns.failures.get();
+                this.prefetched = Dns.prefetched.get();
+                this.lookupNanos = Dns.lookupNanos.get();
+                this.entries = cache.size();
+            }
+
+            public double averageLookupMs() {
+                return (lookups == 0) ? 0 : lookupNanos / 1e6 / lookups;
+            }
+        }
+
         public static synchronized void put(String host, String ip) {
-            overrides.put(host.toLowerCase(Locale.ROOT), ip);
+            Map<String, String> map = new LinkedHashMap<>(overrides);
+            map.put(host.toLowerCase(Locale.ROOT), ip);
+            overrides = map;
         }
         public static synchronized void remove(String host) {
-            overrides.remove(host.toLowerCase(Locale.ROOT));
+            Map<String, String> map = new LinkedHashMap<>(overrides);
+            map.remove(host.toLowerCase(Locale.ROOT));
+            overrides = map;
         }
         public static synchronized void clear() {
-            overrides.clear();
+            overrides = new LinkedHashMap<>();
         }
-        public static synchronized Map<String, String> snapshot() {
+        public static Map<String, String> snapshot() {
             return new LinkedHashMap<>(overrides);
         }
+
         public static InetAddress resolveHost(String host) throws UnknownHostException {
-            String key = host.toLowerCase(Locale.ROOT);
-            String ip;
-            synchronized (Dns.class) { ip = overrides.get(key); }
+            String ip = overrides.get(host.toLowerCase(Locale.ROOT));
             if (ip != null && !ip.isEmpty()) {
-                return InetAddress.getByName(ip);
+                return lookup(ip);
+            }
+            return lookup(host);
+        }
+
+        private static InetAddress lookup(String host) throws UnknownHostException {
+            if (isLiteral(host) || (positiveTtlSeconds <= 0 && negativeTtlSeconds <= 0)) {
+                return InetAddress.getByName(host);
+            }
+            String key = host.toLowerCase(Locale.ROOT);
+            Entry entry = cache.get(key);
+            if (entry != null && entry.expires > System.currentTimeMillis()) {
+                (entry.address != null ? hits : negativeHits).incrementAndGet();
+            } else {
+                entry = resolve(key, host);
+            }
+            if (entry.address == null) {
+                // Each caller gets its own stack trace
+                throw new UnknownHostException(entry.failure.getMessage());
+            }
+            return entry.address;
+        }
+
+        private static Entry resolve(String key, String host) {
+            CompletableFuture<Entry> mine = new CompletableFuture<>();
+            CompletableFuture<Entry> running = inFlight.putIfAbsent(key, mine);
+            if (running != null) {
+                coalesced.incrementAndGet();
+                try {
+                    return running.join();
+                } catch (CompletionException e) {
+                    throw (RuntimeException) e.getCause();
+                }
+            }
+            try {
+                Entry entry;
+                long start = System.nanoTime();
+                try {
+                    InetAddress address = InetAddress.getByName(host);
+                    long nanos = System.nanoTime() - start;
+                    entry = new Entry(host, address, null, System.currentTimeMillis() + positiveTtlSeconds * 1000L, nanos);
+                } catch (UnknownHostException e) {
+                    long nanos = System.nanoTime() - start;
+                    failures.incrementAndGet();
+                    entry = new Entry(host, null, e, System.currentTimeMillis() + negativeTtlSeconds * 1000L, nanos);
+                }
+                lookups.incrementAndGet();
+                lookupNanos.addAndGet(entry.lookupNanos);
+                if (entry.expires > System.currentTimeMillis()) {
+                    store(key, entry);
+                }
+                try { org.je.util.NetEventBus.publish("DNS", "OUT", host, (entry.address != null ? entry.address.getHostAddress() : "unknown") + " in " + (entry.lookupNanos / 1_000_000) + " ms"); } catch (Throwable ignore) {}
+                mine.complete(entry);
+                return entry;
+            } catch (RuntimeException e) {
+                // SecurityException, not cached
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+
+        private static void store(String key, Entry entry) {
+            if (cache.size() >= MAX_ENTRIES) {
+                long now = System.currentTimeMillis();
+                cache.values().removeIf(e -> e.expires <= now);
+                if (cache.size() >= MAX_ENTRIES) {
+                    cache.clear();
+                }
+            }
+            cache.put(key, entry);
+        }
+
+        private static boolean isLiteral(String host) {
+            if (host.indexOf(':') >= 0) {
+                return true;
             }
-            return InetAddress.getByName(host);
+            for (int i = 0; i < host.length(); i++) {
+                char c = host.charAt(i);
+                if (c != '.' && (c < '0' || c > '9')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Resolve hosts of URLs found in values, e.g. JAD properties, in the
+         * background so the first connection finds them cached
+         */
+        public static void prefetch(Collection<?> values) {
+            Set<String> hosts = new LinkedHashSet<>();
+            for (Object value : values) {
+                if (!(value instanceof String)) {
+                    continue;
+                }
+                Matcher m = URL_HOST.matcher((String) value);
+                while (m.find()) {
+                    hosts.add(m.group(1).toLowerCase(Locale.ROOT));
+                }
+            }
+            if (hosts.isEmpty() || positiveTtlSeconds <= 0) {
+                return;
+            }
+            ExecutorService executor = getPrefetcher();
+            for (String host : hosts) {
+                executor.execute(() -> {
+                    try {
+                        resolveHost(host);
+                        prefetched.incrementAndGet();
+                    } catch (UnknownHostException | RuntimeException ignore) {
+                    }
+                });
+            }
+        }
+
+        private static synchronized ExecutorService getPrefetcher() {
+            if (prefetcher == null) {
+                prefetcher = Executors.newFixedThreadPool(2, r -> {
+                    Thread thread = new Thread(r, "DnsPrefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return prefetcher;
+        }
+
+        public static Stats stats() {
+            return new Stats();
+        }
+
+        /** Cached entries, expired ones included until replaced */
+        public static List<Entry> entries() {
+            return new ArrayList<>(cache.values());
+        }
+
+        /** Forget cached addresses and reset counters */
+        public static void flush() {
+            cache.clear();
+            hits.set(0);
+            negativeHits.set(0);
+            lookups.set(0);
+            coalesced.set(0);
+            failures.set(0);
+            prefetched.set(0);
+            lookupNanos.set(0);
         }
     }
 
+    public static final class Sockets {
+        /** socket:// connections on non-blocking channels sharing one selector thread */
+        public static volatile boolean nio = false;
+    }
+
+    /**
+     * HTTP client used for MIDlet HttpConnections
+     */
+    public static final class Http {
+        /** Keep connections open between requests */
+        public static volatile boolean keepAlive = true;
+        /** Connections per host, in use or idle */
+        public static volatile int maxConnectionsPerHost = 6;
+        /** Idle connections are closed after this time */
+        public static volatile int idleTimeoutMs = 15_000;
+
+        public static final String CACHE_OFF = "off";
+        /** Write exchanges to the archive */
+        public static final String CACHE_RECORD = "record";
+        /** Serve responses from the archive without network */
+        public static final String CACHE_REPLAY = "replay";
+        /** Private HTTP cache in memory */
+        public static final String CACHE_MEMORY = "cache";
+        /** Response cache mode, set for a session and not persisted */
+        public static volatile String cacheMode = CACHE_OFF;
+        /** Replayed responses take as long as when recorded */
+        public static volatile boolean replayTiming = false;
+        /** Archive for record and replay, null for http-archive.jeha in the configuration directory */
+        public static volatile String archive;
+        public static volatile int cacheMaxBytes = 8 * 1024 * 1024;
+    }
+
+    /**
+     * Simulated mobile link shared by all HTTP, socket and datagram connections.
+     *
+     * Uplink and downlink are token buckets kept in nanosecond virtual time, so
+     * concurrent connections share the configured bandwidth and small transfers
+     * are charged exactly; waits shorter than MIN_SLEEP_NANOS are carried over
+     * to the next transfer instead of being rounded up to a millisecond.
+     *
+     * Latency is one-way and pipelined per connection (Flow): written data
+     * reaches the peer one latency after it went through the uplink, and the
+     * response starts one latency (with jitter) after that. Further reads of the
+     * same response only pay for bandwidth.
+     */
     public static final class Traffic {
-        public static volatile int bandwidthKbps = 0; // 0 = unlimited
+        public static volatile int bandwidthKbps = 0; // downlink, 0 = unlimited
+        public static volatile int uplinkKbps = 0; // 0 = same as bandwidthKbps
         public static volatile int latencyMs = 0;
         public static volatile int jitterMs = 0;
         public static volatile int packetLossPct = 0; // for UDP only
 
-        private static int computeSleepMs(int bytes) {
-            int bw = bandwidthKbps;
-            if (bw <= 0) return 0;
-            // time in ms to send 'bytes' at bw kbps = ceil((bytes*8 bits)/(bw*1000 bits/s) * 1000)
-            double ms = Math.ceil((bytes * 8.0) / (bw * 1000.0) * 1000.0);
-            return (int) ms;
+        /** Credit an idle link collects, one packet */
+        private static final int BURST_BYTES = 1500;
+
+        /** Shorter waits are carried over to the next transfer */
+        private static final long MIN_SLEEP_NANOS = 200_000L;
+
+        private static final Link UPLINK = new Link();
+        private static final Link DOWNLINK = new Link();
+
+        static int getUplinkKbps() {
+            int up = uplinkKbps;
+            return up > 0 ? up : bandwidthKbps;
+        }
+
+        /**
+         * One direction of the link. nextFree is the time the bytes queued so
+         * far are through.
+         */
+        private static final class Link {
+            private long nextFree = System.nanoTime();
+
+            /**
+             * @return nanoTime when bytes are through the link, transmission
+             *         does not start before notBefore
+             */
+            synchronized long transmit(int bytes, int kbps, long notBefore) {
+                if (kbps <= 0) return notBefore;
+                long now = System.nanoTime();
+                long burst = BURST_BYTES * 8_000_000L / kbps;
+                if (nextFree - (now - burst) < 0) {
+                    nextFree = now - burst;
+                }
+                // Credit collected until notBefore sends the first packet at once
+                long start = (notBefore - burst - nextFree > 0) ? notBefore - burst : nextFree;
+                nextFree = start + bytes * 8_000_000L / kbps;
+                return (nextFree - notBefore > 0) ? nextFree : notBefore;
+            }
+        }
+
+        /**
+         * Request/response timing of one connection, shared by its input and
+         * output streams
+         */
+        public static final class Flow {
+            private final Random rnd = new Random();
+            /** When data written last reaches the peer */
+            private long requestArrival = System.nanoTime() + latencyNanos(rnd);
+            /** When the current response starts arriving, 0 when data was written since */
+            private long responseStart;
+            /** Measurements of the connection, null when not measured */
+            private volatile NetMetrics.Recorder metrics;
+            /** Bytes and requests are measured here, not only the shaping delay */
+            private volatile boolean exchanges;
+            /** When written data last went to the network, 0 before */
+            private long lastSent;
+
+            /**
+             * Connection is established and the connect paid its latency,
+             * data the peer sends first arrives one latency from now
+             */
+            public void connected() {
+                synchronized (this) {
+                    requestArrival = System.nanoTime();
+                }
+            }
+
+            /**
+             * @param exchanges
+             *            count bytes and requests of the streams, false when
+             *            the connection measures them itself
+             */
+            public void track(NetMetrics.Recorder metrics, boolean exchanges) {
+                this.exchanges = exchanges;
+                this.metrics = metrics;
+            }
+
+            long written(int bytes) {
+                long now = System.nanoTime();
+                long end = UPLINK.transmit(bytes, getUplinkKbps(), now);
+                synchronized (this) {
+                    requestArrival = end + latencyNanos(rnd);
+                    responseStart = 0;
+                }
+                NetMetrics.Recorder m = metrics;
+                if ((m != null) && (end - now > 0)) {
+                    m.delayed(end - now);
+                }
+                return end;
+            }
+
+            /**
+             * Data given to written went to the network
+             */
+            void sent(int bytes) {
+                NetMetrics.Recorder m = metrics;
+                if ((m != null) && exchanges) {
+                    synchronized (this) {
+                        lastSent = System.nanoTime();
+                    }
+                    m.bytesOut(bytes);
+                }
+            }
+
+            /**
+             * @return true when the next data read starts a response whose time
+             *         to first byte is measured
+             */
+            boolean awaitingResponse() {
+                if ((metrics == null) || !exchanges) {
+                    return false;
+                }
+                synchronized (this) {
+                    return (responseStart == 0) && (lastSent != 0);
+                }
+            }
+
+            long read(int bytes) {
+                return read(bytes, true);
+            }
+
+            /**
+             * @param waited
+             *            the read was waiting for the data, it arrived now;
+             *            otherwise it arrived earlier at an unknown time and
+             *            no time to first byte is taken
+             */
+            long read(int bytes, boolean waited) {
+                long now = System.nanoTime();
+                long start;
+                long ttfb = -2;
+                synchronized (this) {
+                    if (responseStart == 0) {
+                        long arrival = requestArrival - now > 0 ? requestArrival : now;
+                        responseStart = arrival + latencyNanos(rnd);
+                        if (lastSent != 0) {
+                            ttfb = waited ? now - lastSent : -1;
+                        }
+                    }
+                    start = responseStart;
+                }
+                long end = DOWNLINK.transmit(bytes, bandwidthKbps, start);
+                NetMetrics.Recorder m = metrics;
+                if (m != null) {
+                    if (exchanges) {
+                        m.bytesIn(bytes);
+                        if (ttfb >= -1) {
+                            m.request(ttfb);
+                        }
+                    }
+                    if (end - now > 0) {
+                        m.delayed(end - now);
+                    }
+                }
+                return end;
+            }
         }
 
-        private static int computeLatencyOnce(Random rnd) {
+        private static long latencyNanos(Random rnd) {
             int base = Math.max(0, latencyMs);
             int jit = Math.max(0, jitterMs);
-            if (jit == 0) return base;
+            if (jit == 0) return base * 1_000_000L;
             // jitter +/- up to jitterMs/2
-            int delta = jit == 0 ? 0 : (rnd.nextInt(jit + 1) - jit / 2);
-            int total = base + delta;
-            return Math.max(0, total);
+            int delta = rnd.nextInt(jit + 1) - jit / 2;
+            return Math.max(0, base + delta) * 1_000_000L;
         }
 
         public static InputStream wrapInput(InputStream in) {
-            return new ThrottledInputStream(in);
+            return wrapInput(in, new Flow());
         }
 
         public static OutputStream wrapOutput(OutputStream out) {
-            return new ThrottledOutputStream(out);
+            return wrapOutput(out, new Flow());
+        }
+
+        public static InputStream wrapInput(InputStream in, Flow flow) {
+            return new ThrottledInputStream(in, flow);
         }
 
-        public static boolean udpPermitAndDelay(int bytes, Random rnd) {
-            if (rnd == null) rnd = new Random();
+        public static OutputStream wrapOutput(OutputStream out, Flow flow) {
+            return new ThrottledOutputStream(out, flow);
+        }
+
+        /**
+         * Datagram is sent through the uplink, the sender waits for bandwidth
+         * only, latency is charged to the response
+         *
+         * @return false when the datagram is lost
+         */
+        public static boolean udpSend(Flow flow, int bytes) {
             int loss = Math.max(0, Math.min(100, packetLossPct));
-            if (loss > 0 && rnd.nextInt(100) < loss) {
+            if (loss > 0 && flow.rnd.nextInt(100) < loss) {
                 return false; // drop
             }
-            // apply latency+jitter and bandwidth delay
-            sleepQuiet(computeLatencyOnce(rnd));
-            int d = computeSleepMs(bytes);
-            if (d > 0) sleepQuiet(d);
+            sleepUntil(flow.written(bytes));
             return true;
         }
 
-        private static void sleepQuiet(int ms) {
-            if (ms <= 0) return;
-            try { 
-                Thread.sleep(ms); 
-            } catch (InterruptedException ie) { 
-                Thread.currentThread().interrupt(); 
+        /**
+         * Datagram passed by udpSend went to the network
+         */
+        public static void udpSent(Flow flow, int bytes) {
+            flow.sent(bytes);
+        }
+
+        public static void udpReceive(Flow flow, int bytes) {
+            sleepUntil(flow.read(bytes));
+        }
+
+        private static void sleepUntil(long deadline) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining < MIN_SLEEP_NANOS) return;
+            while (remaining > 0) {
+                java.util.concurrent.locks.LockSupport.parkNanos(remaining);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.nanoTime();
             }
         }
 
         private static final class ThrottledInputStream extends FilterInputStream {
-            private boolean first = true;
-            private final Random rnd = new Random();
+            private final Flow flow;
             private long bytesSinceLastEvent = 0;
             private long lastEventTime = System.currentTimeMillis();
             private final String target = "throttled-stream";
-            protected ThrottledInputStream(InputStream in) { super(in); }
+            protected ThrottledInputStream(InputStream in, Flow flow) { super(in); this.flow = flow; }
             @Override public int read() throws IOException {
+                boolean waited = waiting();
                 int r = super.read();
                 if (r >= 0) {
-                    applyDelay(1);
+                    sleepUntil(flow.read(1, waited));
                     publishBytes(1);
                 }
                 return r;
             }
             @Override public int read(byte[] b, int off, int len) throws IOException {
+                boolean waited = waiting();
                 int n = super.read(b, off, len);
                 if (n > 0) {
-                    applyDelay(n);
+                    sleepUntil(flow.read(n, waited));
                     publishBytes(n);
                 }
                 return n;
             }
-            private void applyDelay(int bytes) {
-                if (first) { first = false; sleepQuiet(computeLatencyOnce(rnd)); }
-                int d = computeSleepMs(bytes);
-                if (d > 0) sleepQuiet(d);
+            /**
+             * A read with nothing received yet returns as the response arrives,
+             * data received before is not timed
+             */
+            private boolean waiting() throws IOException {
+                return !flow.awaitingResponse() || (in.available() == 0);
             }
             private void publishBytes(long n) {
                 bytesSinceLastEvent += n;
@@ -165,27 +632,23 @@ public final class NetConfig {
         }
 
         private static final class ThrottledOutputStream extends FilterOutputStream {
-            private boolean first = true;
-            private final Random rnd = new Random();
+            private final Flow flow;
             private long bytesSinceLastEvent = 0;
             private long lastEventTime = System.currentTimeMillis();
             private final String target = "throttled-stream";
-            protected ThrottledOutputStream(OutputStream out) { super(out); }
+            protected ThrottledOutputStream(OutputStream out, Flow flow) { super(out); this.flow = flow; }
             @Override public void write(int b) throws IOException {
-                applyDelay(1);
+                sleepUntil(flow.written(1));
                 super.write(b);
+                flow.sent(1);
                 publishBytes(1);
             }
             @Override public void write(byte[] b, int off, int len) throws IOException {
-                applyDelay(len);
-                super.write(b, off, len);
+                sleepUntil(flow.written(len));
+                out.write(b, off, len);
+                flow.sent(len);
                 publishBytes(len);
             }
-            private void applyDelay(int bytes) {
-                if (first) { first = false; sleepQuiet(computeLatencyOnce(rnd)); }
-                int d = computeSleepMs(bytes);
-                if (d > 0) sleepQuiet(d);
-            }
             private void publishBytes(long n) {
                 bytesSinceLastEvent += n;
                 long now = System.currentTimeMillis();
@@ -343,10 +806,22 @@ public final class NetConfig {
                 TLS.trustAll = Boolean.parseBoolean(p.getProperty("trustAll", Boolean.toString(TLS.trustAll)));
                 try {
                     Traffic.bandwidthKbps = Integer.parseInt(p.getProperty("bandwidthKbps", Integer.toString(Traffic.bandwidthKbps)));
+                    Traffic.uplinkKbps = Integer.parseInt(p.getProperty("uplinkKbps", Integer.toString(Traffic.uplinkKbps)));
                     Traffic.latencyMs = Integer.parseInt(p.getProperty("latencyMs", Integer.toString(Traffic.latencyMs)));
                     Traffic.jitterMs = Integer.parseInt(p.getProperty("jitterMs", Integer.toString(Traffic.jitterMs)));
                     Traffic.packetLossPct = Integer.parseInt(p.getProperty("packetLossPct", Integer.toString(Traffic.packetLossPct)));
                 } catch (NumberFormatException ignored) {}
+                Sockets.nio = Boolean.parseBoolean(p.getProperty("nioSockets", Boolean.toString(Sockets.nio)));
+                Http.keepAlive = Boolean.parseBoolean(p.getProperty("httpKeepAlive", Boolean.toString(Http.keepAlive)));
+                try {
+                    Http.maxConnectionsPerHost = Integer.parseInt(p.getProperty("httpMaxConnectionsPerHost", Integer.toString(Http.maxConnectionsPerHost)));
+                    Http.idleTimeoutMs = Integer.parseInt(p.getProperty("httpIdleTimeoutMs", Integer.toString(Http.idleTimeoutMs)));
+                } catch (NumberFormatException ignored) {}
+                try {
+                    Dns.positiveTtlSeconds = Integer.parseInt(p.getProperty("dnsTtlSeconds", Integer.toString(Dns.positiveTtlSeconds)));
+                    Dns.negativeTtlSeconds = Integer.parseInt(p.getProperty("dnsNegativeTtlSeconds", Integer.toString(Dns.negativeTtlSeconds)));
+                } catch (NumberFormatException ignored) {}
+                Dns.prefetch = Boolean.parseBoolean(p.getProperty("dnsPrefetch", Boolean.toString(Dns.prefetch)));
                 synchronized (Dns.class) {
                     Dns.clear();
                     for (String key : p.stringPropertyNames()) {
@@ -397,9 +872,17 @@ public final class NetConfig {
         p.setProperty("captivePort", Integer.toString(Policy.captivePort));
         p.setProperty("trustAll", Boolean.toString(TLS.trustAll));
         p.setProperty("bandwidthKbps", Integer.toString(Traffic.bandwidthKbps));
+        p.setProperty("uplinkKbps", Integer.toString(Traffic.uplinkKbps));
         p.setProperty("latencyMs", Integer.toString(Traffic.latencyMs));
         p.setProperty("jitterMs", Integer.toString(Traffic.jitterMs));
         p.setProperty("packetLossPct", Integer.toString(Traffic.packetLossPct));
+        p.setProperty("nioSockets", Boolean.toString(Sockets.nio));
+        p.setProperty("httpKeepAlive", Boolean.toString(Http.keepAlive));
+        p.setProperty("httpMaxConnectionsPerHost", Integer.toString(Http.maxConnectionsPerHost));
+        p.setProperty("httpIdleTimeoutMs", Integer.toString(Http.idleTimeoutMs));
+        p.setProperty("dnsTtlSeconds", Integer.toString(Dns.positiveTtlSeconds));
+        p.setProperty("dnsNegativeTtlSeconds", Integer.toString(Dns.negativeTtlSeconds));
+        p.setProperty("dnsPrefetch", Boolean.toString(Dns.prefetch));
         for (Map.Entry<String,String> e : Dns.snapshot().entrySet()) {
             p.setProperty("dns."+e.getKey(), e.getValue());
         }
@@ -423,11 +906,21 @@ public final class NetConfig {
         TLS.resetDefaultContext();
         // Traffic shaping
         Traffic.bandwidthKbps = 0;
+        Traffic.uplinkKbps = 0;
         Traffic.latencyMs = 0;
         Traffic.jitterMs = 0;
         Traffic.packetLossPct = 0;
-        // DNS overrides
+        // Sockets and HTTP client
+        Sockets.nio = false;
+        Http.keepAlive = true;
+        Http.maxConnectionsPerHost = 6;
+        Http.idleTimeoutMs = 15_000;
+        // DNS overrides and cache
         Dns.clear();
+        Dns.positiveTtlSeconds = 60;
+        Dns.negativeTtlSeconds = 10;
+        Dns.prefetch = true;
+        Dns.flush();
         // Persist
         savePreferencesAsync();
     }
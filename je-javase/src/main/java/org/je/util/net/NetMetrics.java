@@ -0,0 +1,868 @@
+package org.je.util.net;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.je.log.Logger;
+
+/**
+ * Measurements of MIDlet network connections, per connection and per
+ * protocol and host: connect time (TCP connect and TLS handshake), time to
+ * first byte of each response, requests, bytes, failed connects and the delay
+ * added by {@link NetConfig.Traffic} shaping.
+ *
+ * TTFB is taken when the response reaches the emulator, before shaping, so it
+ * is backend and real network latency; the emulated delay is reported
+ * separately. A socket response received before the MIDlet reads it counts as
+ * a request without a time. For sockets and datagrams a request is data sent followed by
+ * data received.
+ *
+ * Host counters and histograms are kept per thread and written only by that
+ * thread, without locks or atomic read-modify-write; snapshots add up all
+ * threads. Cells of finished threads are folded into retired totals and
+ * dropped when a snapshot is taken or a thread starts recording. Histograms
+ * are log-linear like HdrHistogram: microsecond values below 64 are exact,
+ * larger ones fall into 32 buckets per power of two, within about 3 %.
+ *
+ * Published as the MXBean {@value #OBJECT_NAME}.
+ */
+public final class NetMetrics {
+
+    public static final String HTTP = "http";
+    public static final String HTTPS = "https";
+    public static final String SOCKET = "socket";
+    public static final String SSL = "ssl";
+    public static final String DATAGRAM = "datagram";
+
+    public static final String OBJECT_NAME = "org.je:type=NetMetrics";
+
+    /** Closed connections kept for display */
+    private static final int MAX_CLOSED = 200;
+
+    private static final int CONNECTIONS = 0;
+    private static final int FAILURES = 1;
+    private static final int REQUESTS = 2;
+    private static final int BYTES_IN = 3;
+    private static final int BYTES_OUT = 4;
+    private static final int DELAY_NANOS = 5;
+    private static final int COUNTERS = 6;
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    /** Cells of live threads that recorded something */
+    private static final List<Shard> shards = new CopyOnWriteArrayList<>();
+
+    private static final ThreadLocal<Shard> shard = ThreadLocal.withInitial(() -> {
+        sweep();
+        Shard cells = new Shard();
+        shards.add(cells);
+        return cells;
+    });
+
+    /** Totals of finished threads by protocol and host, guarded by itself */
+    private static final Map<String, HostStats> retired = new TreeMap<>();
+
+    /**
+     * Open connections by id, guarded by itself. Held weakly, MIDlets drop
+     * connections without closing them.
+     */
+    private static final Map<Long, OpenConnection> open = new LinkedHashMap<>();
+
+    /** Connections collected without close, guarded by open */
+    private static final ReferenceQueue<Recorder> leaked = new ReferenceQueue<>();
+
+    /** Recently closed connections, newest last, guarded by open */
+    private static final ArrayDeque<Recorder> closed = new ArrayDeque<>();
+
+    /** Host totals at the last reset, subtracted from snapshots */
+    private static volatile Map<String, HostStats> baseline = Collections.emptyMap();
+
+    static {
+        Thread thread = new Thread(NetMetrics::register, "NetMetrics JMX");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private NetMetrics() {
+    }
+
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+        } catch (Throwable e) {
+            // No JMX in this runtime or not allowed in the sandbox
+            Logger.debug("NetMetrics MBean not registered", e);
+        }
+    }
+
+    /**
+     * Start measuring a connection, call {@link Recorder#close()} when it is
+     * closed or failed to open
+     *
+     * @param port
+     *            -1 when not known
+     */
+    public static Recorder open(String protocol, String host, int port) {
+        Recorder recorder = new Recorder(protocol, (port == -1) ? host : host + ":" + port);
+        recorder.cell().add(CONNECTIONS, 1);
+        synchronized (open) {
+            expunge();
+            open.put(recorder.id, new OpenConnection(recorder));
+        }
+        return recorder;
+    }
+
+    private static final class OpenConnection extends WeakReference<Recorder> {
+        final long id;
+
+        OpenConnection(Recorder recorder) {
+            super(recorder, leaked);
+            this.id = recorder.id;
+        }
+    }
+
+    /**
+     * Forget connections collected without close, guarded by open
+     */
+    private static void expunge() {
+        Reference<? extends Recorder> ref;
+        while ((ref = leaked.poll()) != null) {
+            open.remove(((OpenConnection) ref).id);
+        }
+    }
+
+    /**
+     * Measurements of one connection. Host totals go to the cell of the
+     * calling thread.
+     */
+    public static final class Recorder {
+        private final long id = ids.incrementAndGet();
+        private final String protocol;
+        private final String host;
+        private final String key;
+        private final long opened = System.currentTimeMillis();
+        private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+        private final AtomicLong ttfbNanos = new AtomicLong();
+        private final AtomicLong ttfbCount = new AtomicLong();
+        private volatile long ttfbMaxNanos;
+        private volatile long connectNanos = -1;
+        private volatile long closedAt;
+        /** Cell of the thread that recorded last */
+        private volatile Cell last;
+
+        Recorder(String protocol, String host) {
+            this.protocol = protocol;
+            this.host = host;
+            this.key = protocol + " " + host;
+        }
+
+        private Cell cell() {
+            Cell cell = last;
+            if ((cell == null) || (cell.owner.get() != Thread.currentThread())) {
+                Shard cells = shard.get();
+                cell = cells.cells.computeIfAbsent(key, k -> new Cell(cells.owner, protocol, host));
+                last = cell;
+            }
+            return cell;
+        }
+
+        /**
+         * Connection is established, TLS handshake included
+         */
+        public void connected(long nanos) {
+            connectNanos = nanos;
+            Histogram.record(cell().connect, nanos / 1000);
+        }
+
+        /**
+         * Connect failed or the connection broke
+         */
+        public void failed() {
+            counters.incrementAndGet(FAILURES);
+            cell().add(FAILURES, 1);
+        }
+
+        /**
+         * First byte of a response arrived
+         *
+         * @param nanos
+         *            since the request was sent, -1 when the response was
+         *            received before it was read and the time is not known
+         */
+        public void request(long nanos) {
+            counters.incrementAndGet(REQUESTS);
+            Cell cell = cell();
+            cell.add(REQUESTS, 1);
+            if (nanos < 0) {
+                return;
+            }
+            ttfbCount.incrementAndGet();
+            ttfbNanos.addAndGet(nanos);
+            if (nanos > ttfbMaxNanos) {
+                ttfbMaxNanos = nanos;
+            }
+            Histogram.record(cell.ttfb, nanos / 1000);
+        }
+
+        public void bytesIn(long bytes) {
+            counters.addAndGet(BYTES_IN, bytes);
+            cell().add(BYTES_IN, bytes);
+        }
+
+        public void bytesOut(long bytes) {
+            counters.addAndGet(BYTES_OUT, bytes);
+            cell().add(BYTES_OUT, bytes);
+        }
+
+        /**
+         * Time added by traffic shaping
+         */
+        public void delayed(long nanos) {
+            counters.addAndGet(DELAY_NANOS, nanos);
+            cell().add(DELAY_NANOS, nanos);
+        }
+
+        public void close() {
+            synchronized (open) {
+                if (open.remove(id) == null) {
+                    return;
+                }
+                closedAt = System.currentTimeMillis();
+                // Kept closed connections must not pin cells of finished threads
+                last = null;
+                closed.addLast(this);
+                if (closed.size() > MAX_CLOSED) {
+                    closed.removeFirst();
+                }
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /** currentTimeMillis when opened */
+        public long getOpened() {
+            return opened;
+        }
+
+        /** currentTimeMillis when closed, 0 while open */
+        public long getClosed() {
+            return closedAt;
+        }
+
+        /** -1 when the connection was reused from a pool or has no connect */
+        public double getConnectMs() {
+            long nanos = connectNanos;
+            return (nanos < 0) ? -1 : nanos / 1e6;
+        }
+
+        public long getFailures() {
+            return counters.get(FAILURES);
+        }
+
+        public long getRequests() {
+            return counters.get(REQUESTS);
+        }
+
+        public long getBytesIn() {
+            return counters.get(BYTES_IN);
+        }
+
+        public long getBytesOut() {
+            return counters.get(BYTES_OUT);
+        }
+
+        public double getTtfbMeanMs() {
+            long timed = ttfbCount.get();
+            return (timed == 0) ? 0 : ttfbNanos.get() / 1e6 / timed;
+        }
+
+        public double getTtfbMaxMs() {
+            return ttfbMaxNanos / 1e6;
+        }
+
+        public double getDelayMs() {
+            return counters.get(DELAY_NANOS) / 1e6;
+        }
+    }
+
+    /**
+     * Cells of one thread by protocol and host. The thread is not kept from
+     * being collected, nor the MIDlet class loader it references.
+     */
+    private static final class Shard {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final Map<String, Cell> cells = new ConcurrentHashMap<>();
+
+        boolean isRetired() {
+            Thread thread = owner.get();
+            return (thread == null) || !thread.isAlive();
+        }
+    }
+
+    /**
+     * Totals of one protocol and host on one thread. Only the owner thread
+     * writes, lazySet is enough to publish to snapshots.
+     */
+    private static final class Cell {
+        final WeakReference<Thread> owner;
+        final String protocol;
+        final String host;
+        final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+        final AtomicLongArray connect = new AtomicLongArray(Histogram.LENGTH);
+        final AtomicLongArray ttfb = new AtomicLongArray(Histogram.LENGTH);
+
+        Cell(WeakReference<Thread> owner, String protocol, String host) {
+            this.owner = owner;
+            this.protocol = protocol;
+            this.host = host;
+        }
+
+        void add(int counter, long n) {
+            counters.lazySet(counter, counters.get(counter) + n);
+        }
+    }
+
+    /**
+     * Log-linear histogram of microsecond values
+     */
+    public static final class Histogram {
+        private static final int LINEAR = 64;
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        /** Highest power of two, larger values are clamped (19 hours) */
+        private static final int MAX_EXPONENT = 35;
+        private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+        static final int BUCKETS = LINEAR + (MAX_EXPONENT - 5) * SUB;
+        /** Recording array: buckets, sum and max */
+        static final int LENGTH = BUCKETS + 2;
+        private static final int SUM = BUCKETS;
+        private static final int MAX = BUCKETS + 1;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        static int index(long micros) {
+            if (micros < LINEAR) {
+                return (int) micros;
+            }
+            long v = Math.min(micros, MAX_VALUE);
+            int exponent = 63 - Long.numberOfLeadingZeros(v);
+            return LINEAR + (exponent - 6) * SUB + (int) (v >> (exponent - SUB_BITS)) - SUB;
+        }
+
+        /** Lowest value of a bucket */
+        static long lowest(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exponent = (index - LINEAR) / SUB + 6;
+            return (long) (SUB + (index - LINEAR) % SUB) << (exponent - SUB_BITS);
+        }
+
+        /** Highest value of a bucket */
+        static long highest(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            return lowest(index) + (1L << ((index - LINEAR) / SUB + 6 - SUB_BITS)) - 1;
+        }
+
+        /**
+         * Record in an array written by the calling thread only
+         */
+        static void record(AtomicLongArray a, long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            int i = index(micros);
+            a.lazySet(i, a.get(i) + 1);
+            a.lazySet(SUM, a.get(SUM) + micros);
+            if (micros > a.get(MAX)) {
+                a.lazySet(MAX, micros);
+            }
+        }
+
+        void add(AtomicLongArray a) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = a.get(i);
+                counts[i] += n;
+                count += n;
+            }
+            sum += a.get(SUM);
+            max = Math.max(max, a.get(MAX));
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        void subtract(Histogram base) {
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = Math.max(0, counts[i] - base.counts[i]);
+                if (counts[i] > 0) {
+                    highest = i;
+                }
+            }
+            count = Math.max(0, count - base.count);
+            sum = Math.max(0, sum - base.sum);
+            // The maximum before the reset may be gone
+            max = (highest == -1) ? 0 : Math.min(max, highest(highest));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+
+        public double getMeanMicros() {
+            return (count == 0) ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return highest value of the bucket holding the percentile, 0 when
+         *         empty
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, highest(i));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @return lowest value and count of non-empty buckets
+         */
+        public List<long[]> buckets() {
+            List<long[]> buckets = new ArrayList<>();
+            for (int i = 0; i < BUCKETS; i++) {
+                if (counts[i] > 0) {
+                    buckets.add(new long[] { lowest(i), counts[i] });
+                }
+            }
+            return buckets;
+        }
+    }
+
+    /**
+     * Totals of one protocol and host
+     */
+    public static final class HostStats {
+        private final String protocol;
+        private final String host;
+        private final long[] counters = new long[COUNTERS];
+        private final Histogram connect = new Histogram();
+        private final Histogram ttfb = new Histogram();
+
+        HostStats(String protocol, String host) {
+            this.protocol = protocol;
+            this.host = host;
+        }
+
+        void add(Cell cell) {
+            for (int i = 0; i < COUNTERS; i++) {
+                counters[i] += cell.counters.get(i);
+            }
+            connect.add(cell.connect);
+            ttfb.add(cell.ttfb);
+        }
+
+        void add(HostStats other) {
+            for (int i = 0; i < COUNTERS; i++) {
+                counters[i] += other.counters[i];
+            }
+            connect.add(other.connect);
+            ttfb.add(other.ttfb);
+        }
+
+        void subtract(HostStats base) {
+            for (int i = 0; i < COUNTERS; i++) {
+                counters[i] = Math.max(0, counters[i] - base.counters[i]);
+            }
+            connect.subtract(base.connect);
+            ttfb.subtract(base.ttfb);
+        }
+
+        boolean isEmpty() {
+            for (int i = 0; i < COUNTERS; i++) {
+                if (counters[i] != 0) {
+                    return false;
+                }
+            }
+            return (connect.getCount() == 0) && (ttfb.getCount() == 0);
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getConnections() {
+            return counters[CONNECTIONS];
+        }
+
+        public long getFailures() {
+            return counters[FAILURES];
+        }
+
+        /** New TCP connections, less than getConnections with pooled HTTP */
+        public long getConnects() {
+            return connect.getCount();
+        }
+
+        public long getRequests() {
+            return counters[REQUESTS];
+        }
+
+        public long getBytesIn() {
+            return counters[BYTES_IN];
+        }
+
+        public long getBytesOut() {
+            return counters[BYTES_OUT];
+        }
+
+        public double getConnectP50Ms() {
+            return connect.percentile(50) / 1e3;
+        }
+
+        public double getConnectP99Ms() {
+            return connect.percentile(99) / 1e3;
+        }
+
+        public double getTtfbMeanMs() {
+            return ttfb.getMeanMicros() / 1e3;
+        }
+
+        public double getTtfbP50Ms() {
+            return ttfb.percentile(50) / 1e3;
+        }
+
+        public double getTtfbP90Ms() {
+            return ttfb.percentile(90) / 1e3;
+        }
+
+        public double getTtfbP99Ms() {
+            return ttfb.percentile(99) / 1e3;
+        }
+
+        public double getTtfbMaxMs() {
+            return ttfb.getMaxMicros() / 1e3;
+        }
+
+        /** Total time added by traffic shaping */
+        public double getDelayMs() {
+            return counters[DELAY_NANOS] / 1e6;
+        }
+
+        public Histogram connectHistogram() {
+            return connect;
+        }
+
+        public Histogram ttfbHistogram() {
+            return ttfb;
+        }
+    }
+
+    /**
+     * @return totals since start or the last reset, by protocol and host
+     */
+    public static List<HostStats> hosts() {
+        Map<String, HostStats> base = baseline;
+        List<HostStats> list = new ArrayList<>();
+        for (Map.Entry<String, HostStats> e : sum().entrySet()) {
+            HostStats stats = e.getValue();
+            HostStats b = base.get(e.getKey());
+            if (b != null) {
+                stats.subtract(b);
+                if (stats.isEmpty()) {
+                    // Nothing since the reset
+                    continue;
+                }
+            }
+            list.add(stats);
+        }
+        return list;
+    }
+
+    private static Map<String, HostStats> sum() {
+        Map<String, HostStats> hosts = new TreeMap<>();
+        synchronized (retired) {
+            sweep();
+            for (Map.Entry<String, HostStats> e : retired.entrySet()) {
+                HostStats stats = new HostStats(e.getValue().protocol, e.getValue().host);
+                stats.add(e.getValue());
+                hosts.put(e.getKey(), stats);
+            }
+            for (Shard s : shards) {
+                addTo(hosts, s);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Fold cells of finished threads into the retired totals
+     */
+    private static void sweep() {
+        synchronized (retired) {
+            for (Shard s : shards) {
+                // Termination of the owner makes its last writes visible
+                if (s.isRetired()) {
+                    shards.remove(s);
+                    addTo(retired, s);
+                }
+            }
+        }
+    }
+
+    private static void addTo(Map<String, HostStats> hosts, Shard s) {
+        for (Map.Entry<String, Cell> e : s.cells.entrySet()) {
+            Cell cell = e.getValue();
+            HostStats stats = hosts.get(e.getKey());
+            if (stats == null) {
+                stats = new HostStats(cell.protocol, cell.host);
+                hosts.put(e.getKey(), stats);
+            }
+            stats.add(cell);
+        }
+    }
+
+    /**
+     * @return open connections, then recently closed ones, newest first
+     */
+    public static List<Recorder> connections() {
+        List<Recorder> list = new ArrayList<>();
+        synchronized (open) {
+            expunge();
+            for (OpenConnection ref : open.values()) {
+                Recorder recorder = ref.get();
+                if (recorder != null) {
+                    list.add(recorder);
+                }
+            }
+            Collections.reverse(list);
+            List<Recorder> recent = new ArrayList<>(closed);
+            Collections.reverse(recent);
+            list.addAll(recent);
+        }
+        return list;
+    }
+
+    public static int openConnections() {
+        synchronized (open) {
+            expunge();
+            return open.size();
+        }
+    }
+
+    /**
+     * Start host totals from zero and forget closed connections
+     */
+    public static void reset() {
+        baseline = sum();
+        synchronized (open) {
+            closed.clear();
+        }
+    }
+
+    public static String toCsv() {
+        StringBuilder b = new StringBuilder();
+        b.append("protocol,host,connections,failures,connects,requests,bytes_in,bytes_out,"
+                + "connect_p50_ms,connect_p99_ms,ttfb_mean_ms,ttfb_p50_ms,ttfb_p90_ms,ttfb_p99_ms,ttfb_max_ms,delay_ms\n");
+        for (HostStats h : hosts()) {
+            b.append(csv(h.getProtocol())).append(',').append(csv(h.getHost())).append(',')
+                    .append(h.getConnections()).append(',').append(h.getFailures()).append(',')
+                    .append(h.getConnects()).append(',').append(h.getRequests()).append(',')
+                    .append(h.getBytesIn()).append(',').append(h.getBytesOut()).append(',')
+                    .append(ms(h.getConnectP50Ms())).append(',').append(ms(h.getConnectP99Ms())).append(',')
+                    .append(ms(h.getTtfbMeanMs())).append(',').append(ms(h.getTtfbP50Ms())).append(',')
+                    .append(ms(h.getTtfbP90Ms())).append(',').append(ms(h.getTtfbP99Ms())).append(',')
+                    .append(ms(h.getTtfbMaxMs())).append(',').append(ms(h.getDelayMs())).append('\n');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Host totals with histogram buckets as [lowest microseconds, count] and
+     * the connections
+     */
+    public static String toJson() {
+        StringBuilder b = new StringBuilder("{\n  \"hosts\": [");
+        String sep = "\n";
+        for (HostStats h : hosts()) {
+            b.append(sep).append("    {\"protocol\": ").append(json(h.getProtocol()))
+                    .append(", \"host\": ").append(json(h.getHost()))
+                    .append(", \"connections\": ").append(h.getConnections())
+                    .append(", \"failures\": ").append(h.getFailures())
+                    .append(", \"connects\": ").append(h.getConnects())
+                    .append(", \"requests\": ").append(h.getRequests())
+                    .append(", \"bytesIn\": ").append(h.getBytesIn())
+                    .append(", \"bytesOut\": ").append(h.getBytesOut())
+                    .append(", \"delayMs\": ").append(ms(h.getDelayMs()))
+                    .append(",\n     \"connect\": ");
+            json(b, h.connectHistogram());
+            b.append(",\n     \"ttfb\": ");
+            json(b, h.ttfbHistogram());
+            b.append('}');
+            sep = ",\n";
+        }
+        b.append("\n  ],\n  \"connections\": [");
+        sep = "\n";
+        for (Recorder r : connections()) {
+            b.append(sep).append("    {\"id\": ").append(r.getId())
+                    .append(", \"protocol\": ").append(json(r.getProtocol()))
+                    .append(", \"host\": ").append(json(r.getHost()))
+                    .append(", \"opened\": ").append(r.getOpened())
+                    .append(", \"closed\": ").append(r.getClosed())
+                    .append(", \"connectMs\": ").append(ms(r.getConnectMs()))
+                    .append(", \"failures\": ").append(r.getFailures())
+                    .append(", \"requests\": ").append(r.getRequests())
+                    .append(", \"bytesIn\": ").append(r.getBytesIn())
+                    .append(", \"bytesOut\": ").append(r.getBytesOut())
+                    .append(", \"ttfbMeanMs\": ").append(ms(r.getTtfbMeanMs()))
+                    .append(", \"ttfbMaxMs\": ").append(ms(r.getTtfbMaxMs()))
+                    .append(", \"delayMs\": ").append(ms(r.getDelayMs())).append('}');
+            sep = ",\n";
+        }
+        b.append("\n  ]\n}\n");
+        return b.toString();
+    }
+
+    private static void json(StringBuilder b, Histogram h) {
+        b.append("{\"count\": ").append(h.getCount())
+                .append(", \"meanUs\": ").append(Math.round(h.getMeanMicros()))
+                .append(", \"p50Us\": ").append(h.percentile(50))
+                .append(", \"p90Us\": ").append(h.percentile(90))
+                .append(", \"p99Us\": ").append(h.percentile(99))
+                .append(", \"p999Us\": ").append(h.percentile(99.9))
+                .append(", \"maxUs\": ").append(h.getMaxMicros())
+                .append(", \"buckets\": [");
+        String sep = "";
+        for (long[] bucket : h.buckets()) {
+            b.append(sep).append('[').append(bucket[0]).append(", ").append(bucket[1]).append(']');
+            sep = ", ";
+        }
+        b.append("]}");
+    }
+
+    private static String ms(double ms) {
+        return String.format(Locale.ROOT, "%.3f", ms);
+    }
+
+    private static String csv(String s) {
+        if ((s.indexOf(',') == -1) && (s.indexOf('"') == -1)) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String json(String s) {
+        StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    private static final class MBean implements NetMetricsMXBean {
+
+        public List<HostStats> getHosts() {
+            return hosts();
+        }
+
+        public int getOpenConnections() {
+            return openConnections();
+        }
+
+        public long getRequests() {
+            long n = 0;
+            for (HostStats h : hosts()) {
+                n += h.getRequests();
+            }
+            return n;
+        }
+
+        public long getBytesIn() {
+            long n = 0;
+            for (HostStats h : hosts()) {
+                n += h.getBytesIn();
+            }
+            return n;
+        }
+
+        public long getBytesOut() {
+            long n = 0;
+            for (HostStats h : hosts()) {
+                n += h.getBytesOut();
+            }
+            return n;
+        }
+
+        public String exportCsv() {
+            return toCsv();
+        }
+
+        public String exportJson() {
+            return toJson();
+        }
+
+        public void reset() {
+            NetMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.je.util.net;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link NetMetrics}
+ */
+public interface NetMetricsMXBean {
+
+    List<NetMetrics.HostStats> getHosts();
+
+    int getOpenConnections();
+
+    long getRequests();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    String exportCsv();
+
+    String exportJson();
+
+    void reset();
+}
@@ -0,0 +1,279 @@
+package org.je.util.net.mock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Declarative configuration of a {@link MockServer}, one directive per line.
+ *
+ * <pre>
+ * # comment
+ * bind 127.0.0.1              address listeners bind to
+ * threads 2                   selector threads
+ * http 8081                   HTTP/1.1 listener
+ * tcp-echo 9000               raw TCP echo listener
+ * udp-echo 9001               UDP echo listener
+ * latency 150                 ms before a response or echo is sent
+ * jitter 50                   ms added at random to latency
+ * bandwidth 256               kbps per connection for sending, 0 = unlimited
+ * loss 5                      % of echoed datagrams dropped
+ * header X-Mock: 1            header added to all HTTP responses
+ * route METHOD PATH STATUS [option=value ...] [body]
+ * </pre>
+ *
+ * Routes are matched in order. METHOD may be *, GET routes also answer HEAD
+ * requests. A * in PATH matches any characters; the query string is not part
+ * of the path. Route options are type=content-type, file=body file relative
+ * to the rules file, delay=ms added to latency, header=Name:Value
+ * (repeatable) and echo=true to answer with the request body. The body is the
+ * rest of the line, \n \r \t and \\ are unescaped. Requests matching no
+ * route get 404.
+ */
+public final class MockRules {
+
+    public static final String HTTP = "http";
+    public static final String TCP_ECHO = "tcp-echo";
+    public static final String UDP_ECHO = "udp-echo";
+
+    /** Equivalent of the former single-page mock */
+    public static final String DEFAULT_RULES =
+            "# Mock server rules\n"
+            + "http 8081\n"
+            + "latency 0\n"
+            + "bandwidth 0\n"
+            + "route GET / 200 type=text/plain;charset=utf-8 Hello from Mock Server\\n\n";
+
+    String bindAddress = "127.0.0.1";
+    int threads = 2;
+    int latencyMs;
+    int jitterMs;
+    int bandwidthKbps;
+    int lossPct;
+    final List<Listener> listeners = new ArrayList<>();
+    final List<String[]> headers = new ArrayList<>();
+    final List<Route> routes = new ArrayList<>();
+
+    /**
+     * Port to open
+     */
+    public static final class Listener {
+        public final String protocol;
+        public final int port;
+
+        Listener(String protocol, int port) {
+            this.protocol = protocol;
+            this.port = port;
+        }
+    }
+
+    static final class Route {
+        final String method;
+        final Pattern path;
+        final int status;
+        final List<String[]> headers = new ArrayList<>();
+        String type;
+        int delayMs;
+        boolean echo;
+        /** Shared, duplicate before use */
+        ByteBuffer body = ByteBuffer.allocate(0);
+
+        Route(String method, String path, int status) {
+            this.method = method;
+            this.path = glob(path);
+            this.status = status;
+        }
+
+        boolean matches(String method, String path) {
+            boolean methodMatches = "*".equals(this.method) || this.method.equalsIgnoreCase(method)
+                    || ("HEAD".equalsIgnoreCase(method) && "GET".equalsIgnoreCase(this.method));
+            return methodMatches && this.path.matcher(path).matches();
+        }
+    }
+
+    public static MockRules parse(String text) throws IOException {
+        return parse(new StringReader(text), null);
+    }
+
+    public static MockRules load(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return parse(reader, file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    /**
+     * @param baseDir
+     *            directory for route files, null for the current directory
+     */
+    public static MockRules parse(Reader reader, File baseDir) throws IOException {
+        MockRules rules = new MockRules();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                rules.parseLine(line, baseDir);
+            } catch (RuntimeException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage() + ": " + line);
+            }
+        }
+        if (rules.listeners.isEmpty()) {
+            throw new IOException("No http, tcp-echo or udp-echo listener");
+        }
+        return rules;
+    }
+
+    private void parseLine(String line, File baseDir) throws IOException {
+        String[] words = line.split("\\s+", 2);
+        String directive = words[0].toLowerCase(Locale.ROOT);
+        String arg = (words.length > 1) ? words[1].trim() : "";
+        switch (directive) {
+        case "bind":
+            bindAddress = arg;
+            break;
+        case "threads":
+            threads = Math.max(1, Integer.parseInt(arg));
+            break;
+        case HTTP:
+        case TCP_ECHO:
+        case UDP_ECHO:
+            listeners.add(new Listener(directive, Integer.parseInt(arg)));
+            break;
+        case "latency":
+            latencyMs = Integer.parseInt(arg);
+            break;
+        case "jitter":
+            jitterMs = Integer.parseInt(arg);
+            break;
+        case "bandwidth":
+            bandwidthKbps = Integer.parseInt(arg);
+            break;
+        case "loss":
+            lossPct = Integer.parseInt(arg);
+            break;
+        case "header":
+            headers.add(header(arg));
+            break;
+        case "route":
+            routes.add(parseRoute(arg, baseDir));
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown directive " + words[0]);
+        }
+    }
+
+    private static Route parseRoute(String arg, File baseDir) throws IOException {
+        String[] words = arg.split("\\s+", 4);
+        if (words.length < 3) {
+            throw new IllegalArgumentException("Expected METHOD PATH STATUS");
+        }
+        Route route = new Route(words[0], words[1], Integer.parseInt(words[2]));
+        String rest = (words.length > 3) ? words[3] : "";
+        while (!rest.isEmpty()) {
+            String[] split = rest.split("\\s+", 2);
+            int eq = split[0].indexOf('=');
+            String key = (eq > 0) ? split[0].substring(0, eq) : "";
+            String value = (eq > 0) ? split[0].substring(eq + 1) : "";
+            if ("type".equals(key)) {
+                route.type = value;
+            } else if ("delay".equals(key)) {
+                route.delayMs = Integer.parseInt(value);
+            } else if ("echo".equals(key)) {
+                route.echo = Boolean.parseBoolean(value);
+            } else if ("header".equals(key)) {
+                route.headers.add(header(value));
+            } else if ("file".equals(key)) {
+                File file = new File(value);
+                if (!file.isAbsolute() && (baseDir != null)) {
+                    file = new File(baseDir, value);
+                }
+                route.body = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asReadOnlyBuffer();
+            } else {
+                // Body is the rest of the line
+                route.body = ByteBuffer.wrap(unescape(rest).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+                break;
+            }
+            rest = (split.length > 1) ? split[1] : "";
+        }
+        return route;
+    }
+
+    private static String[] header(String value) {
+        int colon = value.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected Name:Value");
+        }
+        return new String[] { value.substring(0, colon).trim(), value.substring(colon + 1).trim() };
+    }
+
+    private static String unescape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '\\') && (i + 1 < s.length())) {
+                char n = s.charAt(++i);
+                switch (n) {
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                default:
+                    b.append(n);
+                }
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static Pattern glob(String path) {
+        StringBuilder regex = new StringBuilder();
+        String[] parts = path.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(parts[i]));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    Route match(String method, String path) {
+        for (Route route : routes) {
+            if (route.matches(method, path)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    public List<Listener> getListeners() {
+        return listeners;
+    }
+
+    public String getBindAddress() {
+        return bindAddress;
+    }
+}
@@ -0,0 +1,772 @@
+package org.je.util.net.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.je.log.Logger;
+
+/**
+ * Local backend for testing MIDlets without external services: HTTP routes,
+ * TCP and UDP echo as configured by {@link MockRules}.
+ *
+ * All connections are served by a few selector threads, each connection
+ * stays on one thread. Latency is applied per request or echoed packet, and
+ * bandwidth per connection by pacing writes in packet sized pieces, without
+ * a thread waiting for either.
+ *
+ * Runs headless with
+ *
+ * <pre>
+ * java -cp je-javase.jar org.je.util.net.mock.MockServer {rules file}
+ * </pre>
+ */
+public final class MockServer {
+
+    private static final int READ_BUFFER = 8 * 1024;
+
+    /** Request line and headers */
+    private static final int MAX_HEAD = 64 * 1024;
+
+    /** Request body kept for echo=true routes */
+    private static final int MAX_ECHO = 1024 * 1024;
+
+    /** Connection stops reading while this much output is queued */
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    /** Bytes written at once when bandwidth is limited */
+    private static final int PACKET = 1460;
+
+    private static final int DATAGRAM = 64 * 1024;
+
+    private final MockRules rules;
+
+    private Worker[] workers;
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private volatile boolean running;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong active = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong datagrams = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    public MockServer(MockRules rules) {
+        this.rules = rules;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        running = true;
+        workers = new Worker[rules.threads];
+        try {
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker("MockServer-" + i);
+            }
+            InetAddress bind = InetAddress.getByName(rules.bindAddress);
+            for (MockRules.Listener listener : rules.listeners) {
+                InetSocketAddress address = new InetSocketAddress(bind, listener.port);
+                Worker worker = nextWorker();
+                if (MockRules.UDP_ECHO.equals(listener.protocol)) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    channel.configureBlocking(false);
+                    channel.bind(address);
+                    worker.register(channel, SelectionKey.OP_READ, new UdpEcho(worker, channel));
+                } else {
+                    ServerSocketChannel channel = ServerSocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.socket().setReuseAddress(true);
+                    channel.bind(address, 256);
+                    worker.register(channel, SelectionKey.OP_ACCEPT,
+                            new Acceptor(channel, MockRules.HTTP.equals(listener.protocol)));
+                }
+                Logger.info("Mock " + listener.protocol + " listening on " + rules.bindAddress + ":" + listener.port);
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].thread.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (int i = 0; (i < workers.length) && (workers[i] != null); i++) {
+            workers[i].selector.wakeup();
+            if (workers[i].thread.getState() == Thread.State.NEW) {
+                // Never started, close what was registered
+                workers[i].closeAll();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getActive() {
+        return active.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getDatagrams() {
+        return datagrams.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public String toString() {
+        return active.get() + " open of " + accepted.get() + " connections, " + requests.get() + " HTTP requests, "
+                + datagrams.get() + " datagrams, " + bytesIn.get() + " bytes in, " + bytesOut.get() + " bytes out";
+    }
+
+    private Worker nextWorker() {
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    private long delayNanos(MockRules.Route route) {
+        long ms = rules.latencyMs;
+        if (rules.jitterMs > 0) {
+            ms += ThreadLocalRandom.current().nextInt(rules.jitterMs + 1);
+        }
+        if (route != null) {
+            ms += route.delayMs;
+        }
+        return ms * 1_000_000L;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long due;
+        final long seq;
+        final Runnable task;
+
+        Timer(long due, long seq, Runnable task) {
+            this.due = due;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        public int compareTo(Timer o) {
+            int c = Long.compare(due, o.due);
+            return (c != 0) ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Selector thread, timers are only used from it
+     */
+    private final class Worker implements Runnable {
+
+        final Selector selector;
+
+        final Thread thread;
+
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+        long timerSeq;
+
+        Worker(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SelectableChannel channel, int ops, Endpoint endpoint) {
+            execute(() -> {
+                try {
+                    endpoint.key = channel.register(selector, ops, endpoint);
+                } catch (ClosedChannelException e) {
+                    endpoint.close();
+                }
+            });
+        }
+
+        void schedule(long due, Runnable task) {
+            timers.add(new Timer(due, timerSeq++, task));
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    Timer next = timers.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long wait = next.due - System.nanoTime();
+                        if (wait <= 0) {
+                            selector.selectNow();
+                        } else {
+                            selector.select(Math.max(1, wait / 1_000_000));
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Endpoint endpoint = (Endpoint) key.attachment();
+                        try {
+                            if (key.isValid()) {
+                                endpoint.ready(key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            endpoint.close();
+                        }
+                    }
+                    long now = System.nanoTime();
+                    while (((next = timers.peek()) != null) && (next.due <= now)) {
+                        timers.poll();
+                        next.task.run();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Logger.error("Mock server", e);
+                }
+            }
+            closeAll();
+        }
+
+        void closeAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Endpoint) key.attachment()).close();
+            }
+            timers.clear();
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private abstract static class Endpoint {
+
+        SelectionKey key;
+
+        abstract void ready(SelectionKey key) throws IOException;
+
+        abstract void close();
+    }
+
+    private final class Acceptor extends Endpoint {
+
+        final ServerSocketChannel channel;
+
+        final boolean http;
+
+        Acceptor(ServerSocketChannel channel, boolean http) {
+            this.channel = channel;
+            this.http = http;
+        }
+
+        void ready(SelectionKey key) throws IOException {
+            SocketChannel client;
+            while ((client = channel.accept()) != null) {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                accepted.incrementAndGet();
+                active.incrementAndGet();
+                Worker worker = nextWorker();
+                Session session = http ? new HttpSession(worker, client) : new EchoSession(worker, client);
+                worker.register(client, SelectionKey.OP_READ, session);
+            }
+        }
+
+        void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    private static final class Chunk {
+        final ByteBuffer data;
+        final long due;
+
+        Chunk(ByteBuffer data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    /**
+     * TCP connection, output is queued with the time it may be sent
+     */
+    private abstract class Session extends Endpoint {
+
+        final Worker worker;
+
+        final SocketChannel channel;
+
+        /** Read mode only inside received() */
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+        final ArrayDeque<Chunk> out = new ArrayDeque<>();
+
+        int pending;
+
+        /** Bandwidth virtual time */
+        long paceNanos;
+
+        long wakeAt = Long.MAX_VALUE;
+
+        boolean inputDone;
+
+        boolean closeWhenFlushed;
+
+        boolean closed;
+
+        Session(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        void ready(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                int n = channel.read(in);
+                if (n < 0) {
+                    inputDone = true;
+                    closeWhenFlushed = true;
+                } else if (n > 0) {
+                    bytesIn.addAndGet(n);
+                    in.flip();
+                    received();
+                    in.compact();
+                    if (!in.hasRemaining() && (in.capacity() < MAX_HEAD)) {
+                        ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                        in.flip();
+                        bigger.put(in);
+                        in = bigger;
+                    }
+                }
+            }
+            if (!closed) {
+                flush();
+            }
+        }
+
+        /**
+         * Consume input between position and limit
+         */
+        abstract void received() throws IOException;
+
+        void send(ByteBuffer data, long due) {
+            out.add(new Chunk(data, due));
+            pending += data.remaining();
+        }
+
+        void flush() throws IOException {
+            boolean wantWrite = false;
+            int kbps = rules.bandwidthKbps;
+            Chunk chunk;
+            while ((chunk = out.peek()) != null) {
+                long now = System.nanoTime();
+                long start = (kbps > 0) ? Math.max(chunk.due, paceNanos) : chunk.due;
+                if (start > now) {
+                    wakeAt(start);
+                    break;
+                }
+                ByteBuffer data = chunk.data;
+                int size = (kbps > 0) ? Math.min(data.remaining(), PACKET) : data.remaining();
+                int limit = data.limit();
+                data.limit(data.position() + size);
+                int n = channel.write(data);
+                data.limit(limit);
+                pending -= n;
+                bytesOut.addAndGet(n);
+                if (kbps > 0) {
+                    paceNanos = Math.max(now, paceNanos) + n * 8_000_000L / kbps;
+                }
+                if (!data.hasRemaining()) {
+                    out.poll();
+                } else if (n < size) {
+                    // Socket buffer full
+                    wantWrite = true;
+                    break;
+                }
+            }
+            if (out.isEmpty() && closeWhenFlushed) {
+                close();
+                return;
+            }
+            int ops = (wantWrite ? SelectionKey.OP_WRITE : 0);
+            if (!inputDone && !closeWhenFlushed && (pending < MAX_PENDING)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        void wakeAt(long due) {
+            if (due < wakeAt) {
+                wakeAt = due;
+                worker.schedule(due, () -> {
+                    wakeAt = Long.MAX_VALUE;
+                    if (!closed) {
+                        try {
+                            flush();
+                        } catch (IOException | RuntimeException e) {
+                            close();
+                        }
+                    }
+                });
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private final class EchoSession extends Session {
+
+        EchoSession(Worker worker, SocketChannel channel) {
+            super(worker, channel);
+        }
+
+        void received() {
+            ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+            copy.put(in);
+            copy.flip();
+            send(copy, System.nanoTime() + delayNanos(null));
+        }
+    }
+
+    private final class HttpSession extends Session {
+
+        MockRules.Route route;
+
+        boolean headRequest;
+
+        boolean keepAlive;
+
+        long bodyRemaining;
+
+        ByteArrayOutputStream echoBody;
+
+        HttpSession(Worker worker, SocketChannel channel) {
+            super(worker, channel);
+        }
+
+        void received() {
+            while (!closeWhenFlushed) {
+                if (bodyRemaining > 0) {
+                    int n = (int) Math.min(bodyRemaining, in.remaining());
+                    if (n == 0) {
+                        return;
+                    }
+                    if ((echoBody != null) && (echoBody.size() < MAX_ECHO)) {
+                        echoBody.write(in.array(), in.arrayOffset() + in.position(), Math.min(n, MAX_ECHO - echoBody.size()));
+                    }
+                    in.position(in.position() + n);
+                    bodyRemaining -= n;
+                    if (bodyRemaining == 0) {
+                        respond();
+                    }
+                    continue;
+                }
+                // Blank lines between requests
+                while (in.hasRemaining() && ((in.get(in.position()) == '\r') || (in.get(in.position()) == '\n'))) {
+                    in.get();
+                }
+                int end = headEnd();
+                if (end < 0) {
+                    if (in.remaining() >= MAX_HEAD) {
+                        error(431);
+                    }
+                    return;
+                }
+                String head = new String(in.array(), in.arrayOffset() + in.position(), end - in.position(),
+                        StandardCharsets.ISO_8859_1);
+                in.position(end);
+                if (!parse(head)) {
+                    error(400);
+                    return;
+                }
+                if (closeWhenFlushed) {
+                    // Rejected
+                    return;
+                }
+                if (bodyRemaining == 0) {
+                    respond();
+                }
+            }
+        }
+
+        /**
+         * @return index after the blank line ending the request head, -1 if
+         *         not received yet
+         */
+        private int headEnd() {
+            for (int i = in.position(); i + 3 < in.limit(); i++) {
+                if ((in.get(i) == '\r') && (in.get(i + 1) == '\n') && (in.get(i + 2) == '\r') && (in.get(i + 3) == '\n')) {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+
+        private boolean parse(String head) {
+            String[] lines = head.split("\r\n");
+            String[] request = lines[0].split(" ");
+            if (request.length != 3) {
+                return false;
+            }
+            String method = request[0];
+            String path = request[1];
+            if (path.startsWith("http://") || path.startsWith("https://")) {
+                int slash = path.indexOf('/', path.indexOf("//") + 2);
+                path = (slash < 0) ? "/" : path.substring(slash);
+            }
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+            String connection = null;
+            long length = 0;
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if ("connection".equals(name)) {
+                    connection = value;
+                } else if ("content-length".equals(name)) {
+                    try {
+                        length = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                } else if ("transfer-encoding".equals(name)) {
+                    chunked = !"identity".equalsIgnoreCase(value);
+                }
+            }
+            if (chunked) {
+                // Request bodies are sent with Content-Length by the emulator
+                error(411);
+                return true;
+            }
+            if ("HTTP/1.1".equals(request[2])) {
+                keepAlive = !"close".equalsIgnoreCase(connection);
+            } else {
+                keepAlive = "keep-alive".equalsIgnoreCase(connection);
+            }
+            requests.incrementAndGet();
+            headRequest = "HEAD".equals(method);
+            route = rules.match(method, path);
+            bodyRemaining = Math.max(0, length);
+            echoBody = ((route != null) && route.echo) ? new ByteArrayOutputStream((int) Math.min(length, MAX_ECHO)) : null;
+            return true;
+        }
+
+        private void respond() {
+            int status;
+            ByteBuffer body;
+            String type;
+            if (route == null) {
+                status = 404;
+                body = ByteBuffer.wrap("Not Found\n".getBytes(StandardCharsets.ISO_8859_1));
+                type = "text/plain";
+            } else {
+                status = route.status;
+                body = (echoBody != null) ? ByteBuffer.wrap(echoBody.toByteArray()) : route.body.duplicate();
+                type = route.type;
+            }
+            StringBuilder h = new StringBuilder(256);
+            h.append("HTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+            h.append("Server: JarEngine-Mock\r\n");
+            for (String[] header : rules.headers) {
+                h.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+            if (route != null) {
+                for (String[] header : route.headers) {
+                    h.append(header[0]).append(": ").append(header[1]).append("\r\n");
+                }
+            }
+            if (type != null) {
+                h.append("Content-Type: ").append(type).append("\r\n");
+            }
+            boolean noBody = headRequest || (status == 204) || (status == 304) || (status < 200);
+            if ((status != 204) && (status != 304) && (status >= 200)) {
+                h.append("Content-Length: ").append(body.remaining()).append("\r\n");
+            }
+            if (!keepAlive) {
+                h.append("Connection: close\r\n");
+            }
+            h.append("\r\n");
+            long due = System.nanoTime() + delayNanos(route);
+            send(ByteBuffer.wrap(h.toString().getBytes(StandardCharsets.ISO_8859_1)), due);
+            if (!noBody && body.hasRemaining()) {
+                send(body, due);
+            }
+            if (!keepAlive) {
+                closeWhenFlushed = true;
+            }
+            route = null;
+            echoBody = null;
+        }
+
+        private void error(int status) {
+            keepAlive = false;
+            route = null;
+            echoBody = null;
+            bodyRemaining = 0;
+            long due = System.nanoTime();
+            send(ByteBuffer.wrap(("HTTP/1.1 " + status + " " + reason(status)
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1)), due);
+            closeWhenFlushed = true;
+        }
+    }
+
+    private final class UdpEcho extends Endpoint {
+
+        final Worker worker;
+
+        final DatagramChannel channel;
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(DATAGRAM);
+
+        UdpEcho(Worker worker, DatagramChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        void ready(SelectionKey key) throws IOException {
+            SocketAddress from;
+            while ((from = channel.receive(buffer)) != null) {
+                buffer.flip();
+                datagrams.incrementAndGet();
+                bytesIn.addAndGet(buffer.remaining());
+                if ((rules.lossPct > 0) && (ThreadLocalRandom.current().nextInt(100) < rules.lossPct)) {
+                    buffer.clear();
+                    continue;
+                }
+                ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+                copy.put(buffer);
+                copy.flip();
+                buffer.clear();
+                SocketAddress to = from;
+                worker.schedule(System.nanoTime() + delayNanos(null), () -> {
+                    try {
+                        bytesOut.addAndGet(channel.send(copy, to));
+                    } catch (IOException ignore) {
+                        // Dropped like any datagram
+                    }
+                });
+            }
+        }
+
+        void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+        case 200: return "OK";
+        case 201: return "Created";
+        case 204: return "No Content";
+        case 301: return "Moved Permanently";
+        case 302: return "Found";
+        case 304: return "Not Modified";
+        case 400: return "Bad Request";
+        case 401: return "Unauthorized";
+        case 403: return "Forbidden";
+        case 404: return "Not Found";
+        case 411: return "Length Required";
+        case 431: return "Request Header Fields Too Large";
+        case 500: return "Internal Server Error";
+        case 502: return "Bad Gateway";
+        case 503: return "Service Unavailable";
+        case 504: return "Gateway Timeout";
+        default: return "Mock";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: java org.je.util.net.mock.MockServer {rules file}");
+            System.exit(2);
+        }
+        final MockServer server = new MockServer(MockRules.load(new File(args[0])));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "MockServerStop"));
+        while (server.isRunning()) {
+            Thread.sleep(10_000);
+            System.out.println(server);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.je.app.util;
+
+/**
+ * Access to JDK 21 virtual threads from Java 1.8 code.
+ * 
+ * JDK 21+ version of the multi-release class, packaged in
+ * META-INF/versions/21 of je-javase jar.
+ */
+public class VirtualThreads {
+
+	private VirtualThreads() {
+		
+	}
+
+	public static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Creates a new unstarted virtual thread.
+	 * 
+	 * @return the thread or <code>null</code> if virtual threads are not
+	 *         supported by this runtime
+	 */
+	public static Thread unstarted(String name, Runnable task) {
+		return Thread.ofVirtual().name(name).unstarted(task);
+	}
+
+}
@@ -0,0 +1,180 @@
+package org.je.app.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.je.MIDletBridge;
+import org.je.MIDletContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MIDletTimerTest {
+
+	private MIDletContext context;
+
+	private final List runs = new ArrayList();
+
+	private class Task extends MIDletTimerTask {
+
+		final int id;
+
+		final CountDownLatch done;
+
+		Task(int id, CountDownLatch done) {
+			this.id = id;
+			this.done = done;
+		}
+
+		public void run() {
+			synchronized (runs) {
+				runs.add(Integer.valueOf(id));
+			}
+			done.countDown();
+		}
+	}
+
+	private static MIDletTimerTask queued(long deadline) {
+		MIDletTimerTask task = new MIDletTimerTask() {
+			public void run() {
+			}
+		};
+		task.deadline = deadline;
+		return task;
+	}
+
+	private static long[] drain(MIDletTimer.TaskQueue queue) {
+		List deadlines = new ArrayList();
+		MIDletTimerTask task;
+		while ((task = queue.peek()) != null) {
+			assertTrue(queue.remove(task));
+			assertEquals(-1, task.heapIndex);
+			deadlines.add(Long.valueOf(task.deadline));
+		}
+		long[] result = new long[deadlines.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ((Long) deadlines.get(i)).longValue();
+		}
+		return result;
+	}
+
+	@BeforeClass
+	public static void setUpBridge() {
+		// Creates the thread MIDlet contexts, no emulator is needed
+		MIDletBridge.setMicroEmulator(null);
+	}
+
+	@Before
+	public void setUp() {
+		context = new MIDletContext();
+		MIDletBridge.setThreadMIDletContext(context);
+	}
+
+	@After
+	public void tearDown() {
+		MIDletTimer.contextDestroyed(context);
+		MIDletBridge.setThreadMIDletContext(null);
+	}
+
+	@Test
+	public void queueReturnsEarliestDeadlineFirst() {
+		MIDletTimer.TaskQueue queue = new MIDletTimer.TaskQueue();
+		Random random = new Random(3);
+		long[] expected = new long[100];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = random.nextInt(1000);
+			queue.add(queued(expected[i]));
+		}
+		Arrays.sort(expected);
+		assertArrayEquals(expected, drain(queue));
+		assertNull(queue.peek());
+	}
+
+	@Test
+	public void queueKeepsOrderOnRemoveAndReschedule() {
+		MIDletTimer.TaskQueue queue = new MIDletTimer.TaskQueue();
+		MIDletTimerTask[] tasks = new MIDletTimerTask[20];
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = queued(i * 10);
+			queue.add(tasks[i]);
+		}
+		assertTrue(queue.remove(tasks[7]));
+		assertFalse(queue.remove(tasks[7]));
+		tasks[0].deadline = 155;
+		queue.reschedule(tasks[0]);
+		tasks[19].deadline = 5;
+		queue.reschedule(tasks[19]);
+		assertSame(tasks[19], queue.peek());
+		assertArrayEquals(new long[] { 5, 10, 20, 30, 40, 50, 60, 80, 90, 100, 110, 120, 130, 140, 150, 155, 160,
+				170, 180 }, drain(queue));
+	}
+
+	@Test
+	public void queueOrdersDeadlinesAcrossNanoTimeOverflow() {
+		MIDletTimer.TaskQueue queue = new MIDletTimer.TaskQueue();
+		queue.add(queued(Long.MAX_VALUE + 20));
+		queue.add(queued(Long.MAX_VALUE - 20));
+		queue.add(queued(Long.MAX_VALUE));
+		assertArrayEquals(new long[] { Long.MAX_VALUE - 20, Long.MAX_VALUE, Long.MAX_VALUE + 20 }, drain(queue));
+	}
+
+	@Test
+	public void tasksRunInDeadlineOrder() throws Exception {
+		CountDownLatch done = new CountDownLatch(3);
+		MIDletTimer timer = new MIDletTimer();
+		timer.schedule(new Task(3, done), 150);
+		timer.schedule(new Task(1, done), 50);
+		timer.schedule(new Task(2, done), 100);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("[1, 2, 3]", runs.toString());
+		timer.cancel();
+	}
+
+	@Test
+	public void cancelledTaskDoesNotRun() throws Exception {
+		CountDownLatch done = new CountDownLatch(1);
+		MIDletTimer timer = new MIDletTimer();
+		Task cancelled = new Task(1, new CountDownLatch(1));
+		timer.schedule(cancelled, 50);
+		timer.schedule(new Task(2, done), 100);
+		assertTrue(cancelled.cancel());
+		assertFalse(cancelled.cancel());
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("[2]", runs.toString());
+		timer.cancel();
+	}
+
+	@Test
+	public void fixedRateTaskRepeatsUntilTimerCancel() throws Exception {
+		CountDownLatch done = new CountDownLatch(5);
+		MIDletTimer timer = new MIDletTimer();
+		Task task = new Task(1, done);
+		long start = System.currentTimeMillis();
+		timer.scheduleAtFixedRate(task, 0, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		timer.cancel();
+		// Fixed rate executions are scheduled from the first one
+		assertTrue(task.scheduledExecutionTime() - start >= 80);
+		int count;
+		synchronized (runs) {
+			count = runs.size();
+		}
+		Thread.sleep(100);
+		synchronized (runs) {
+			assertTrue(runs.size() <= count + 1);
+		}
+	}
+
+}
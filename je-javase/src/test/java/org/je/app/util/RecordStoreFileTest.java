@@ -0,0 +1,180 @@
+package org.je.app.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.microedition.rms.InvalidRecordIDException;
+import javax.microedition.rms.RecordStore;
+
+import org.je.util.RecordStoreImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordStoreFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String durability;
+
+	private File suite;
+
+	private class Manager extends FileRecordStoreManager {
+
+		Manager() {
+			init(null);
+		}
+
+		protected File getSuiteFolder() {
+			return suite;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		durability = FileRecordStoreManager.durability;
+		suite = folder.newFolder("suite");
+	}
+
+	@After
+	public void tearDown() {
+		FileRecordStoreManager.durability = durability;
+	}
+
+	private static byte[] data(String s) {
+		return s.getBytes();
+	}
+
+	private File storeFile(String name) {
+		return new File(suite, FileRecordStoreManager.recordStoreName2FileName(name));
+	}
+
+	@Test
+	public void changesAreReadBackByAnotherManager() throws Exception {
+		FileRecordStoreManager.durability = FileRecordStoreManager.DURABILITY_ON_CLOSE;
+		RecordStore rs = new Manager().openRecordStore("scores", true);
+		rs.addRecord(data("one"), 0, 3);
+		rs.addRecord(data("two"), 0, 3);
+		rs.addRecord(data("three"), 0, 5);
+		rs.setRecord(2, data("TWO!"), 0, 4);
+		rs.deleteRecord(1);
+		int version = rs.getVersion();
+		rs.closeRecordStore();
+
+		rs = new Manager().openRecordStore("scores", false);
+		assertEquals(2, rs.getNumRecords());
+		assertEquals(version, rs.getVersion());
+		assertEquals(4, rs.getNextRecordID());
+		assertArrayEquals(data("TWO!"), rs.getRecord(2));
+		assertArrayEquals(data("three"), rs.getRecord(3));
+		try {
+			rs.getRecord(1);
+			fail("deleted record");
+		} catch (InvalidRecordIDException e) {
+		}
+		rs.closeRecordStore();
+	}
+
+	@Test
+	public void changesAppendLogEntries() throws Exception {
+		FileRecordStoreManager.durability = FileRecordStoreManager.DURABILITY_FSYNC_EACH;
+		RecordStore rs = new Manager().openRecordStore("log", true);
+		rs.addRecord(new byte[1000], 0, 1000);
+		long before = storeFile("log").length();
+		rs.setRecord(1, data("x"), 0, 1);
+		long after = storeFile("log").length();
+		rs.closeRecordStore();
+
+		// A small change does not rewrite the record data
+		assertTrue(after > before);
+		assertTrue(after - before < 100);
+	}
+
+	@Test
+	public void tornLogEntryIsDiscarded() throws Exception {
+		FileRecordStoreManager.durability = FileRecordStoreManager.DURABILITY_ON_CLOSE;
+		RecordStore rs = new Manager().openRecordStore("torn", true);
+		rs.addRecord(data("kept"), 0, 4);
+		rs.closeRecordStore();
+
+		// Crash while appending the next entry
+		RandomAccessFile raf = new RandomAccessFile(storeFile("torn"), "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[] { 1, 0, 0 });
+		raf.close();
+
+		rs = new Manager().openRecordStore("torn", false);
+		assertEquals(1, rs.getNumRecords());
+		assertArrayEquals(data("kept"), rs.getRecord(1));
+		rs.addRecord(data("next"), 0, 4);
+		rs.closeRecordStore();
+
+		rs = new Manager().openRecordStore("torn", false);
+		assertEquals(2, rs.getNumRecords());
+		assertArrayEquals(data("kept"), rs.getRecord(1));
+		assertArrayEquals(data("next"), rs.getRecord(2));
+		rs.closeRecordStore();
+	}
+
+	@Test
+	public void compactionDropsSupersededData() throws Exception {
+		FileRecordStoreManager.durability = FileRecordStoreManager.DURABILITY_ON_CLOSE;
+		Manager manager = new Manager();
+		RecordStoreImpl rs = (RecordStoreImpl) manager.openRecordStore("compact", true);
+		for (int i = 0; i < 10; i++) {
+			rs.addRecord(new byte[10000], 0, 10000);
+		}
+		rs.closeRecordStore();
+		rs = (RecordStoreImpl) manager.openRecordStore("compact", false);
+		for (int i = 1; i <= 10; i++) {
+			rs.setRecord(i, data("small" + i), 0, ("small" + i).length());
+		}
+		rs.closeRecordStore();
+
+		File file = storeFile("compact");
+		RecordStoreFile storeFile = new RecordStoreFile(manager, file);
+		RecordStoreImpl loaded = storeFile.load();
+		loaded.setOpen(true);
+		long logged = file.length();
+		assertTrue(storeFile.needsCompaction(loaded));
+
+		storeFile.compact(loaded, false);
+		assertTrue(file.length() < logged / 10);
+		assertFalse(storeFile.needsCompaction(loaded));
+		assertFalse(new File(suite, file.getName() + ".tmp").exists());
+
+		rs = (RecordStoreImpl) new Manager().openRecordStore("compact", false);
+		assertEquals(10, rs.getNumRecords());
+		for (int i = 1; i <= 10; i++) {
+			assertArrayEquals(data("small" + i), rs.getRecord(i));
+		}
+		rs.closeRecordStore();
+	}
+
+	@Test
+	public void exitFlushWritesClosedStore() throws Exception {
+		FileRecordStoreManager.durability = FileRecordStoreManager.DURABILITY_ON_CLOSE;
+		Manager manager = new Manager();
+		RecordStoreImpl rs = (RecordStoreImpl) manager.openRecordStore("exit", true);
+		rs.addRecord(data("pending"), 0, 7);
+		// Closed without its changes written, as after a failed close flush
+		rs.setOpen(false);
+		manager.flush();
+
+		RecordStore reopened = new Manager().openRecordStore("exit", false);
+		assertEquals(1, reopened.getNumRecords());
+		assertArrayEquals(data("pending"), reopened.getRecord(1));
+		reopened.closeRecordStore();
+	}
+
+}
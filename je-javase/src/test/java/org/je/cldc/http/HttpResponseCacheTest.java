@@ -0,0 +1,173 @@
+package org.je.cldc.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.je.util.net.NetConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpResponseCacheTest {
+
+	private static final String ETAG = "\"v1\"";
+
+	private static final String LAST_MODIFIED = "Mon, 05 Oct 2026 10:00:00 GMT";
+
+	private String cacheMode;
+
+	private HttpServer server;
+
+	private String base;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final AtomicInteger notModified = new AtomicInteger();
+
+	private void respond(HttpExchange exchange, String body, String[] fields) throws IOException {
+		for (int i = 0; i < fields.length; i += 2) {
+			exchange.getResponseHeaders().add(fields[i], fields[i + 1]);
+		}
+		byte[] data = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(200, data.length);
+		exchange.getResponseBody().write(data);
+		exchange.close();
+	}
+
+	private void notModified(HttpExchange exchange) throws IOException {
+		notModified.incrementAndGet();
+		exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(304, -1);
+		exchange.close();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		cacheMode = NetConfig.Http.cacheMode;
+		NetConfig.Http.cacheMode = NetConfig.Http.CACHE_MEMORY;
+		HttpResponseCache.clear();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fresh", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				respond(exchange, "fresh", new String[] { "Cache-Control", "max-age=60" });
+			}
+		});
+		server.createContext("/etag", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					notModified(exchange);
+				} else {
+					respond(exchange, "tagged", new String[] { "Cache-Control", "no-cache", "ETag", ETAG });
+				}
+			}
+		});
+		server.createContext("/modified", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				if (LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) {
+					notModified(exchange);
+				} else {
+					respond(exchange, "dated", new String[] { "Cache-Control", "no-cache", "Last-Modified",
+							LAST_MODIFIED });
+				}
+			}
+		});
+		server.createContext("/vary", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				respond(exchange, "lang=" + exchange.getRequestHeaders().getFirst("Accept-Language"), new String[] {
+						"Cache-Control", "max-age=60", "Vary", "Accept-Language" });
+			}
+		});
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		HttpResponseCache.clear();
+		NetConfig.Http.cacheMode = cacheMode;
+	}
+
+	private String get(String path, String language) throws IOException {
+		Connection connection = new Connection();
+		connection.openConnection(base + path, 3, false);
+		if (language != null) {
+			connection.setRequestProperty("Accept-Language", language);
+		}
+		try {
+			assertEquals(200, connection.getResponseCode());
+			// Validators added for revalidation are not request properties of the MIDlet
+			assertNull(connection.getRequestProperty("If-None-Match"));
+			assertNull(connection.getRequestProperty("If-Modified-Since"));
+			DataInputStream in = connection.openDataInputStream();
+			byte[] body = new byte[(int) connection.getLength()];
+			in.readFully(body);
+			in.close();
+			return new String(body, "UTF-8");
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void freshResponseIsServedFromCache() throws IOException {
+		assertEquals("fresh", get("/fresh", null));
+		assertEquals("fresh", get("/fresh", null));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void staleResponseIsRevalidatedWithETag() throws IOException {
+		assertEquals("tagged", get("/etag", null));
+		assertEquals("tagged", get("/etag", null));
+		assertEquals("tagged", get("/etag", null));
+		assertEquals(3, requests.get());
+		assertEquals(2, notModified.get());
+	}
+
+	@Test
+	public void staleResponseIsRevalidatedWithLastModified() throws IOException {
+		assertEquals("dated", get("/modified", null));
+		assertEquals("dated", get("/modified", null));
+		assertEquals(2, requests.get());
+		assertEquals(1, notModified.get());
+	}
+
+	@Test
+	public void responseVariesByRequestHeader() throws IOException {
+		assertEquals("lang=en", get("/vary", "en"));
+		assertEquals("lang=de", get("/vary", "de"));
+		assertEquals("lang=de", get("/vary", "de"));
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void unsafeMethodInvalidatesEntry() throws IOException {
+		assertEquals("fresh", get("/fresh", null));
+		URL url = new URL(base + "/fresh");
+		List<String> keys = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		assertNotNull(HttpResponseCache.lookup("GET", url, null, keys, values));
+		assertNull(HttpResponseCache.lookup("POST", url, null, keys, values));
+		assertNull(HttpResponseCache.lookup("GET", url, null, keys, values));
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.je.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import javax.microedition.rms.RecordComparator;
+import javax.microedition.rms.RecordEnumeration;
+import javax.microedition.rms.RecordFilter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordEnumerationImplTest {
+
+	/**
+	 * Orders records by their first byte, empty records first
+	 */
+	private static final RecordComparator BY_VALUE = new RecordComparator() {
+		public int compare(byte[] rec1, byte[] rec2) {
+			int a = (rec1 == null) ? -1 : rec1[0];
+			int b = (rec2 == null) ? -1 : rec2[0];
+			if (a < b) {
+				return PRECEDES;
+			}
+			return (a > b) ? FOLLOWS : EQUIVALENT;
+		}
+	};
+
+	private static final RecordFilter ODD = new RecordFilter() {
+		public boolean matches(byte[] candidate) {
+			return (candidate != null) && (candidate[0] % 2 != 0);
+		}
+	};
+
+	private RecordStoreImpl store;
+
+	@Before
+	public void setUp() {
+		store = new RecordStoreImpl(new MemoryRecordStoreManager(), "enumeration");
+		store.setOpen(true);
+	}
+
+	private int add(int value) throws Exception {
+		return store.addRecord(new byte[] { (byte) value }, 0, 1);
+	}
+
+	private void set(int recordId, int value) throws Exception {
+		store.setRecord(recordId, new byte[] { (byte) value }, 0, 1);
+	}
+
+	private static int[] ids(RecordEnumeration e) throws Exception {
+		e.reset();
+		int[] ids = new int[e.numRecords()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = e.nextRecordId();
+		}
+		return ids;
+	}
+
+	@Test
+	public void idsAscendWithoutComparator() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			add(9 - i);
+		}
+		RecordEnumeration e = store.enumerateRecords(null, null, true);
+		store.deleteRecord(2);
+		add(0);
+		assertArrayEquals(new int[] { 1, 3, 4, 5, 6 }, ids(e));
+	}
+
+	@Test
+	public void equivalentRecordsStayInIdOrder() throws Exception {
+		add(5);
+		add(3);
+		add(5);
+		add(3);
+		RecordEnumeration e = store.enumerateRecords(null, BY_VALUE, true);
+		assertArrayEquals(new int[] { 2, 4, 1, 3 }, ids(e));
+
+		add(3);
+		set(1, 3);
+		assertArrayEquals(new int[] { 1, 2, 4, 5, 3 }, ids(e));
+	}
+
+	@Test
+	public void changedRecordMovesToItsNewPosition() throws Exception {
+		add(1);
+		add(2);
+		add(3);
+		RecordEnumeration e = store.enumerateRecords(null, BY_VALUE, true);
+		set(1, 7);
+		assertArrayEquals(new int[] { 2, 3, 1 }, ids(e));
+		set(3, 0);
+		assertArrayEquals(new int[] { 3, 2, 1 }, ids(e));
+	}
+
+	@Test
+	public void filterAppliesToChanges() throws Exception {
+		add(1);
+		add(2);
+		add(3);
+		RecordEnumeration e = store.enumerateRecords(ODD, BY_VALUE, true);
+		assertArrayEquals(new int[] { 1, 3 }, ids(e));
+		set(2, 5);
+		set(1, 4);
+		add(9);
+		add(8);
+		assertArrayEquals(new int[] { 3, 2, 4 }, ids(e));
+	}
+
+	@Test
+	public void positionIsKeptOnInsertBefore() throws Exception {
+		add(10);
+		add(20);
+		add(30);
+		RecordEnumeration e = store.enumerateRecords(null, BY_VALUE, true);
+		assertEquals(1, e.nextRecordId());
+		add(5);
+		assertEquals(2, e.nextRecordId());
+		store.deleteRecord(1);
+		assertEquals(3, e.nextRecordId());
+		assertEquals(3, e.previousRecordId());
+		assertEquals(2, e.previousRecordId());
+		assertEquals(4, e.previousRecordId());
+	}
+
+	@Test
+	public void updatedEnumerationMatchesRebuild() throws Exception {
+		Random random = new Random(7);
+		for (int i = 0; i < 200; i++) {
+			add(random.nextInt(20));
+		}
+		RecordFilter[] filters = { null, ODD, null, ODD };
+		RecordComparator[] comparators = { null, null, BY_VALUE, BY_VALUE };
+		RecordEnumeration[] updated = new RecordEnumeration[filters.length];
+		for (int k = 0; k < updated.length; k++) {
+			updated[k] = store.enumerateRecords(filters[k], comparators[k], true);
+		}
+		for (int i = 0; i < 1000; i++) {
+			int[] existing = store.getRecordIds();
+			int op = random.nextInt(3);
+			if ((op == 0) || (existing.length == 0)) {
+				add(random.nextInt(20));
+			} else if (op == 1) {
+				store.deleteRecord(existing[random.nextInt(existing.length)]);
+			} else {
+				set(existing[random.nextInt(existing.length)], random.nextInt(20));
+			}
+			if (i % 50 == 0) {
+				for (int k = 0; k < updated.length; k++) {
+					RecordEnumeration rebuilt = store.enumerateRecords(filters[k], comparators[k], false);
+					assertArrayEquals("enumeration " + k + " after " + i, ids(rebuilt), ids(updated[k]));
+				}
+			}
+		}
+	}
+
+}
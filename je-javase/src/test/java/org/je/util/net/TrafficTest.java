@@ -0,0 +1,118 @@
+package org.je.util.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrafficTest {
+
+    private static final long MS = 1_000_000L;
+
+    private int bandwidthKbps;
+    private int uplinkKbps;
+    private int latencyMs;
+    private int jitterMs;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        bandwidthKbps = NetConfig.Traffic.bandwidthKbps;
+        uplinkKbps = NetConfig.Traffic.uplinkKbps;
+        latencyMs = NetConfig.Traffic.latencyMs;
+        jitterMs = NetConfig.Traffic.jitterMs;
+        NetConfig.Traffic.bandwidthKbps = 0;
+        NetConfig.Traffic.uplinkKbps = 0;
+        NetConfig.Traffic.latencyMs = 0;
+        NetConfig.Traffic.jitterMs = 0;
+        // Links are shared, let transfers of other tests drain and the burst refill
+        Thread.sleep(400);
+    }
+
+    @After
+    public void tearDown() {
+        NetConfig.Traffic.bandwidthKbps = bandwidthKbps;
+        NetConfig.Traffic.uplinkKbps = uplinkKbps;
+        NetConfig.Traffic.latencyMs = latencyMs;
+        NetConfig.Traffic.jitterMs = jitterMs;
+    }
+
+    @Test
+    public void idleLinkSendsOnePacketAtOnce() {
+        NetConfig.Traffic.bandwidthKbps = 80;
+        long end = new NetConfig.Traffic.Flow().read(1500);
+        assertTrue(end - System.nanoTime() <= 0);
+    }
+
+    @Test
+    public void transferBeyondBurstIsPaced() {
+        NetConfig.Traffic.bandwidthKbps = 80; // 10 bytes per ms
+        NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+        flow.read(1500);
+        long now = System.nanoTime();
+        long end = flow.read(1000);
+        assertTrue(end - now > 95 * MS);
+        assertTrue(end - now <= 100 * MS);
+    }
+
+    @Test
+    public void connectionsShareTheLink() {
+        NetConfig.Traffic.bandwidthKbps = 80;
+        NetConfig.Traffic.Flow first = new NetConfig.Traffic.Flow();
+        NetConfig.Traffic.Flow second = new NetConfig.Traffic.Flow();
+        first.read(1500);
+        long firstEnd = first.read(1000);
+        long secondEnd = second.read(1000);
+        assertEquals(100 * MS, secondEnd - firstEnd);
+    }
+
+    @Test
+    public void uplinkIsShapedSeparately() {
+        NetConfig.Traffic.uplinkKbps = 80;
+        NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+        flow.written(1500);
+        long now = System.nanoTime();
+        long sent = flow.written(1000);
+        assertTrue(sent - now > 95 * MS);
+        // Unlimited downlink, the response arrives as soon as the request did
+        assertEquals(sent, flow.read(1000));
+    }
+
+    @Test
+    public void latencyIsPaidOncePerResponse() {
+        NetConfig.Traffic.latencyMs = 50;
+        NetConfig.Traffic.Flow flow = new NetConfig.Traffic.Flow();
+        long start = System.nanoTime();
+        flow.written(10);
+        long first = flow.read(100);
+        assertTrue(first - start >= 100 * MS);
+        assertEquals(first, flow.read(100));
+
+        start = System.nanoTime();
+        flow.written(10);
+        assertTrue(flow.read(100) - start >= 100 * MS);
+    }
+
+    @Test
+    public void streamReadsTakeTheShapedTime() throws Exception {
+        NetConfig.Traffic.bandwidthKbps = 400; // 50 bytes per ms
+        InputStream in = NetConfig.Traffic.wrapInput(new ByteArrayInputStream(new byte[6500]));
+        byte[] buffer = new byte[1000];
+        long start = System.nanoTime();
+        int total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(6500, total);
+        // One burst of 1500 bytes, 5000 bytes at 50 bytes per ms
+        assertTrue("elapsed " + elapsed / MS + " ms", elapsed >= 95 * MS);
+        assertTrue("elapsed " + elapsed / MS + " ms", elapsed < 500 * MS);
+    }
+
+}
@@ -1,5 +1,8 @@
 package org.je;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import javax.microedition.midlet.MIDlet;
 
 import org.je.app.launcher.Launcher;
@@ -19,6 +22,8 @@ public class MIDletContext {
 
 	private MIDletAccess midletAccess;
 	
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	
 	public MIDletContext() {
 		
 	}
@@ -41,4 +46,32 @@ public class MIDletContext {
 	public boolean isLauncher() {
 		return (getMIDlet() instanceof Launcher);
 	}
+	
+	/**
+	 * Called by emulator when MIDlet has been destroyed, all its threads ended
+	 * and all its timers cancelled.
+	 */
+	public void notifyTerminated() {
+		terminated.countDown();
+	}
+	
+	public boolean isTerminated() {
+		return (terminated.getCount() == 0);
+	}
+	
+	/**
+	 * Blocks until the context is terminated.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+	
+	/**
+	 * Blocks until the context is terminated or the timeout elapses.
+	 * 
+	 * @return true if the context is terminated
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
 }
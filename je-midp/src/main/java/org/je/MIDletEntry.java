@@ -7,25 +7,57 @@ public class MIDletEntry
 {
 
   private String name;
-  private Class midletClass;
+  private String className;
+  private ClassLoader classLoader;
+  private volatile Class midletClass;
   
   
   public MIDletEntry(String name, Class midletClass)
   {
     this.name = name;
+    this.className = midletClass.getName();
     this.midletClass = midletClass;
   }
   
   
+  /**
+   * MIDlet class is loaded by classLoader on first getMIDletClass() call
+   */
+  public MIDletEntry(String name, String className, ClassLoader classLoader)
+  {
+    this.name = name;
+    this.className = className;
+    this.classLoader = classLoader;
+  }
+  
+  
   public String getName()
   {
     return name;
   }
   
   
-  public Class getMIDletClass()
+  public String getClassName()
+  {
+    return className;
+  }
+  
+  
+  public boolean isLoaded()
+  {
+    return midletClass != null;
+  }
+  
+  
+  public Class getMIDletClass() throws ClassNotFoundException
   {
-    return midletClass;
+    Class c = midletClass;
+    if (c == null) {
+      // Class loader serializes concurrent loads of the same name
+      c = classLoader.loadClass(className);
+      midletClass = c;
+    }
+    return c;
   }
 
 }
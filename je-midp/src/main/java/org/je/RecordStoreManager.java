@@ -32,6 +32,13 @@ public interface RecordStoreManager {
 
 	int getSizeAvailable(RecordStoreImpl recordStoreImpl);
 
+	/**
+	 * Write changes not stored yet, called by the last close before the
+	 * store records are released
+	 */
+	void closeRecordStore(RecordStoreImpl recordStoreImpl) 
+			throws RecordStoreException;
+
 	/**
 	 * Initialize RMS Manager before starting MIDlet 
 	 */
@@ -1,8 +1,6 @@
 package org.je.util;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Vector;
+import java.util.Arrays;
 
 import javax.microedition.rms.InvalidRecordIDException;
 import javax.microedition.rms.RecordComparator;
@@ -14,6 +12,14 @@ import javax.microedition.rms.RecordStoreException;
 import javax.microedition.rms.RecordStoreNotOpenException;
 
 
+/**
+ * Enumeration holds only record ids, in comparator order or ascending when
+ * there is no comparator. Filter and comparator run on stored record data,
+ * returned records are read when requested.
+ *
+ * With keepUpdated record changes insert or remove single ids, the order is
+ * kept by binary search.
+ */
 public class RecordEnumerationImpl implements RecordEnumeration
 {
 	private RecordStoreImpl recordStoreImpl;
@@ -21,24 +27,28 @@ public class RecordEnumerationImpl implements RecordEnumeration
 	private RecordComparator comparator;
 	private boolean keepUpdated;
 
-	private Vector enumerationRecords = new Vector();
-	private int currentRecord;    
-    
-	private RecordListener recordListener = new RecordListener() 
+	private int[] recordIds = new int[0];
+	private int numRecords;
+	private int currentRecord;
+
+	private RecordListener recordListener = new RecordListener()
     {
 
 		public void recordAdded(RecordStore recordStore, int recordId) {
-			rebuild();
+			added(recordId);
 		}
 
 		public void recordChanged(RecordStore recordStore, int recordId) {
-			rebuild();
+			synchronized (RecordEnumerationImpl.this) {
+				removed(recordId);
+				added(recordId);
+			}
 		}
 
 		public void recordDeleted(RecordStore recordStore, int recordId) {
-			rebuild();
+			removed(recordId);
 		}
-		
+
     };
 
 
@@ -57,155 +67,274 @@ public class RecordEnumerationImpl implements RecordEnumeration
     }
 
 
-    public int numRecords()
+    public synchronized int numRecords()
     {
-        return enumerationRecords.size();
+        return numRecords;
     }
 
 
-    public byte[] nextRecord() 
+    public byte[] nextRecord()
     		throws InvalidRecordIDException, RecordStoreNotOpenException, RecordStoreException
     {
         if (!recordStoreImpl.isOpen()) {
             throw new RecordStoreNotOpenException();
         }
 
-        if (currentRecord >= numRecords()) {
-            throw new InvalidRecordIDException();
-        }
-
-        byte[] result = ((EnumerationRecord) enumerationRecords.elementAt(currentRecord)).value;
-        currentRecord++;
-
-        return result;
+        return recordStoreImpl.getRecord(nextRecordId());
     }
 
 
-    public int nextRecordId() 
+    public synchronized int nextRecordId()
     		throws InvalidRecordIDException
     {
-        if (currentRecord >= numRecords()) {
+        if (currentRecord >= numRecords) {
             throw new InvalidRecordIDException();
         }
 
-        int result = ((EnumerationRecord) enumerationRecords.elementAt(currentRecord)).recordId;
+        int result = recordIds[currentRecord];
         currentRecord++;
 
         return result;
     }
 
 
-    public byte[] previousRecord() 
+    public byte[] previousRecord()
     		throws InvalidRecordIDException, RecordStoreNotOpenException, RecordStoreException
     {
         if (!recordStoreImpl.isOpen()) {
             throw new RecordStoreNotOpenException();
         }
-        if (currentRecord < 0) {
-            throw new InvalidRecordIDException();
-        }
 
-        currentRecord--;
-        byte[] result = ((EnumerationRecord) enumerationRecords .elementAt(currentRecord)).value;
-
-        return result;
+        return recordStoreImpl.getRecord(previousRecordId());
     }
 
 
-    public int previousRecordId() 
+    public synchronized int previousRecordId()
     		throws InvalidRecordIDException
     {
-        if (currentRecord < 0) {
+        if (currentRecord <= 0) {
             throw new InvalidRecordIDException();
         }
 
         currentRecord--;
-        int result = ((EnumerationRecord) enumerationRecords.elementAt(currentRecord)).recordId;
+        int result = recordIds[currentRecord];
 
         return result;
     }
 
 
-    public boolean hasNextElement()
+    public synchronized boolean hasNextElement()
     {
-        if (currentRecord == numRecords()) {
-            return false;
-        } else {
-            return true;
-        }
+        return currentRecord < numRecords;
     }
 
 
-    public boolean hasPreviousElement()
+    public synchronized boolean hasPreviousElement()
     {
-        if (currentRecord == 0) {
-            return false;
-        } else {
-            return true;
-        }
+        return currentRecord > 0;
     }
 
 
-    public void reset()
+    public synchronized void reset()
     {
         currentRecord = 0;
     }
 
 
-    public void rebuild()
+    public synchronized void rebuild()
     {
-        enumerationRecords.removeAllElements();
+        numRecords = 0;
+        currentRecord = 0;
+        if (!recordStoreImpl.isOpen()) {
+        	recordIds = new int[0];
+        	return;
+        }
 
-        //
-        // filter
-        //
         synchronized (recordStoreImpl) {
-			try {
-				int recordId = 1;
-				int i = 0;
-				while (i < recordStoreImpl.getNumRecords()) {
-					try {
-			            byte[] data = recordStoreImpl.getRecord(recordId);
-			            i++;
-			            if (filter != null && !filter.matches(data)) {
-			            	recordId++;
-			                continue;
-			            }
-			            enumerationRecords.add(new EnumerationRecord(recordId, data));
-					} catch (InvalidRecordIDException e) {
-					}
-					recordId++;
-		        }
-			} catch (RecordStoreException e) {
-				e.printStackTrace();
-			}
+        	int[] ids = recordStoreImpl.getRecordIds();
+        	// Equivalent records stay in id order
+        	Arrays.sort(ids);
+
+        	//
+        	// filter, without filter and comparator no record is read
+        	//
+        	byte[][] data = null;
+        	if ((filter != null) || (comparator != null)) {
+        		data = new byte[ids.length][];
+        	}
+        	for (int i = 0; i < ids.length; i++) {
+        		if (data != null) {
+        			byte[] value;
+        			try {
+        				value = getRecordData(ids[i]);
+        			} catch (RecordStoreException e) {
+        				// Unreadable record is left out as by added, the manager logged the cause
+        				continue;
+        			}
+        			if ((filter != null) && !filter.matches(value)) {
+        				continue;
+        			}
+        			data[numRecords] = value;
+        		}
+        		ids[numRecords++] = ids[i];
+        	}
+        	recordIds = ids;
+
+        	//
+        	// sort
+        	//
+        	if (comparator != null) {
+        		// Stable merge sort of ids by data, as Collections.sort did
+        		int[] tmpIds = new int[numRecords];
+        		byte[][] tmpData = new byte[numRecords][];
+        		mergeSort(recordIds, data, tmpIds, tmpData, 0, numRecords);
+        	}
         }
+    }
 
-        // 
-        // sort
-        //
-		if (comparator != null) {
-			Collections.sort(enumerationRecords, new Comparator() {
 
-				public int compare(Object lhs, Object rhs) {
+    private void mergeSort(int[] ids, byte[][] data, int[] tmpIds, byte[][] tmpData, int from, int to)
+    {
+    	if (to - from < 2) {
+    		return;
+    	}
+    	int middle = (from + to) >>> 1;
+    	mergeSort(ids, data, tmpIds, tmpData, from, middle);
+    	mergeSort(ids, data, tmpIds, tmpData, middle, to);
+    	if (compare(data[middle - 1], data[middle]) <= 0) {
+    		return;
+    	}
+    	System.arraycopy(ids, from, tmpIds, from, to - from);
+    	System.arraycopy(data, from, tmpData, from, to - from);
+    	int i = from;
+    	int j = middle;
+    	for (int k = from; k < to; k++) {
+    		if ((j >= to) || ((i < middle) && (compare(tmpData[i], tmpData[j]) <= 0))) {
+    			ids[k] = tmpIds[i];
+    			data[k] = tmpData[i++];
+    		} else {
+    			ids[k] = tmpIds[j];
+    			data[k] = tmpData[j++];
+    		}
+    	}
+    }
 
-					int compare = comparator.compare(((EnumerationRecord) lhs).value,
-					                                 ((EnumerationRecord) rhs).value);
-					if (compare == RecordComparator.EQUIVALENT)
-						return 0;
-					else if (compare == RecordComparator.FOLLOWS)
-						return 1;
-					else
-						return -1;
 
-				}
+    private int compare(byte[] lhs, byte[] rhs)
+    {
+    	int compare = comparator.compare(lhs, rhs);
+    	if (compare == RecordComparator.EQUIVALENT) {
+    		return 0;
+    	} else if (compare == RecordComparator.FOLLOWS) {
+    		return 1;
+    	} else {
+    		return -1;
+    	}
+    }
 
-			});
-		}
+
+    /**
+     * Stored data for filter and comparator, null for empty record as
+     * RecordStore.getRecord returns
+     */
+    private byte[] getRecordData(int recordId)
+    		throws RecordStoreException
+    {
+    	byte[] data = recordStoreImpl.getRecordData(recordId);
+    	return (data.length < 1) ? null : data;
+    }
+
+
+    /**
+     * Insert record if it matches the filter, equivalent records are ordered
+     * by id
+     */
+    private synchronized void added(int recordId)
+    {
+    	int index;
+    	synchronized (recordStoreImpl) {
+    		byte[] data = null;
+    		if ((filter != null) || (comparator != null)) {
+    			try {
+    				data = getRecordData(recordId);
+    			} catch (RecordStoreException e) {
+    				// Deleted meanwhile, delete event follows
+    				return;
+    			}
+    			if ((filter != null) && !filter.matches(data)) {
+    				return;
+    			}
+    		}
+    		int low = 0;
+    		int high = numRecords;
+    		while (low < high) {
+    			int middle = (low + high) >>> 1;
+    			int compare;
+    			if (comparator == null) {
+    				compare = (recordIds[middle] < recordId) ? -1 : 1;
+    			} else {
+    				try {
+    					compare = compare(getRecordData(recordIds[middle]), data);
+    				} catch (RecordStoreException e) {
+    					// Unreadable record is left out as by rebuild, search again
+    					removed(recordIds[middle]);
+    					low = 0;
+    					high = numRecords;
+    					continue;
+    				}
+    				if (compare == 0) {
+    					compare = (recordIds[middle] < recordId) ? -1 : 1;
+    				}
+    			}
+    			if (compare <= 0) {
+    				low = middle + 1;
+    			} else {
+    				high = middle;
+    			}
+    		}
+    		index = low;
+    	}
+    	if (numRecords == recordIds.length) {
+    		int[] newIds = new int[Math.max(8, numRecords * 2)];
+    		System.arraycopy(recordIds, 0, newIds, 0, numRecords);
+    		recordIds = newIds;
+    	}
+    	System.arraycopy(recordIds, index, recordIds, index + 1, numRecords - index);
+    	recordIds[index] = recordId;
+    	numRecords++;
+    	if (index < currentRecord) {
+    		// Keep position on the same record
+    		currentRecord++;
+    	}
+    }
+
+
+    private synchronized void removed(int recordId)
+    {
+    	int index = -1;
+    	if (comparator == null) {
+    		index = Arrays.binarySearch(recordIds, 0, numRecords, recordId);
+    	} else {
+    		// Changed record is no longer at its sorted position
+    		for (int i = 0; i < numRecords; i++) {
+    			if (recordIds[i] == recordId) {
+    				index = i;
+    				break;
+    			}
+    		}
+    	}
+    	if (index < 0) {
+    		return;
+    	}
+    	System.arraycopy(recordIds, index + 1, recordIds, index, numRecords - index - 1);
+    	numRecords--;
+    	if (index < currentRecord) {
+    		currentRecord--;
+    	}
     }
 
 
-    public void keepUpdated(boolean keepUpdated)
+    public synchronized void keepUpdated(boolean keepUpdated)
     {
         if (keepUpdated) {
             if (!this.keepUpdated) {
@@ -220,29 +349,21 @@ public class RecordEnumerationImpl implements RecordEnumeration
     }
 
 
-    public boolean isKeptUpdated()
+    public synchronized boolean isKeptUpdated()
     {
         return keepUpdated;
     }
 
 
-    public void destroy()
+    public synchronized void destroy()
     {
+    	if (keepUpdated) {
+    		recordStoreImpl.removeRecordListener(recordListener);
+    		keepUpdated = false;
+    	}
+    	recordIds = new int[0];
+    	numRecords = 0;
+    	currentRecord = 0;
     }
 
-
-    class EnumerationRecord
-    {
-        int recordId;
-
-        byte[] value;
-
-        
-        EnumerationRecord(int recordId, byte[] value)
-        {
-            this.recordId = recordId;
-            this.value = value;
-        }
-    }    
-
 }
@@ -0,0 +1,163 @@
+package org.je.util;
+
+import org.je.util.RecordStoreImpl.Record;
+
+
+/**
+ * Records of RecordStoreImpl keyed by record id. Open addressing with linear
+ * probing, removal shifts following entries back so no deleted markers are
+ * needed. Total length of records is kept up to date for getSize.
+ *
+ * Not synchronized, accessed with RecordStoreImpl locked.
+ */
+final class RecordMap
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Record[] table = new Record[INITIAL_CAPACITY];
+
+	private int size;
+
+	private int totalLength;
+
+
+	private static int hash(int recordId, int mask)
+	{
+		// Record ids are sequential, spread them over the table
+		int h = recordId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+
+	int size()
+	{
+		return size;
+	}
+
+
+	int getTotalLength()
+	{
+		return totalLength;
+	}
+
+
+	Record get(int recordId)
+	{
+		Record[] tab = table;
+		int mask = tab.length - 1;
+		for (int i = hash(recordId, mask); tab[i] != null; i = (i + 1) & mask) {
+			if (tab[i].id == recordId) {
+				return tab[i];
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * @return replaced record with the same id or null
+	 */
+	Record put(Record record)
+	{
+		int mask = table.length - 1;
+		int i = hash(record.id, mask);
+		for (; table[i] != null; i = (i + 1) & mask) {
+			if (table[i].id == record.id) {
+				Record previous = table[i];
+				table[i] = record;
+				totalLength += record.length - previous.length;
+				return previous;
+			}
+		}
+		table[i] = record;
+		size++;
+		totalLength += record.length;
+		if (size * 2 > table.length) {
+			resize(table.length * 2);
+		}
+		return null;
+	}
+
+
+	Record remove(int recordId)
+	{
+		Record[] tab = table;
+		int mask = tab.length - 1;
+		int i = hash(recordId, mask);
+		for (; tab[i] != null; i = (i + 1) & mask) {
+			if (tab[i].id == recordId) {
+				break;
+			}
+		}
+		Record removed = tab[i];
+		if (removed == null) {
+			return null;
+		}
+		tab[i] = null;
+		size--;
+		totalLength -= removed.length;
+
+		// Move back entries that would not be found past the hole
+		for (int j = (i + 1) & mask; tab[j] != null; j = (j + 1) & mask) {
+			int home = hash(tab[j].id, mask);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				tab[i] = tab[j];
+				tab[j] = null;
+				i = j;
+			}
+		}
+		return removed;
+	}
+
+
+	/**
+	 * Called before length of a record in the map is changed
+	 */
+	void lengthChanged(Record record, int newLength)
+	{
+		totalLength += newLength - record.length;
+	}
+
+
+	/**
+	 * @return ids of all records in no particular order
+	 */
+	int[] ids()
+	{
+		int[] ids = new int[size];
+		int n = 0;
+		for (int i = 0; i < table.length; i++) {
+			if (table[i] != null) {
+				ids[n++] = table[i].id;
+			}
+		}
+		return ids;
+	}
+
+
+	void clear()
+	{
+		table = new Record[INITIAL_CAPACITY];
+		size = 0;
+		totalLength = 0;
+	}
+
+
+	private void resize(int capacity)
+	{
+		Record[] old = table;
+		Record[] tab = new Record[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] != null) {
+				int j = hash(old[i].id, mask);
+				while (tab[j] != null) {
+					j = (j + 1) & mask;
+				}
+				tab[j] = old[i];
+			}
+		}
+		table = tab;
+	}
+
+}
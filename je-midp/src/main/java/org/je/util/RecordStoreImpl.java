@@ -4,7 +4,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Vector;
 
 import javax.microedition.rms.InvalidRecordIDException;
@@ -28,11 +27,22 @@ public class RecordStoreImpl extends RecordStore
 	
 	private static final byte versionMinor = 0x00;
 	
+	/**
+	 * Loaded records that can be reloaded by RecordStoreManager are kept up
+	 * to this size, least recently used are released first
+	 */
+	private static final int LOADED_RECORDS_CAPACITY = 256 * 1024;
+	
 	private int lastRecordId = 0;
 	
-	private int size = 0;
+	private RecordMap records = new RecordMap();
+	
+	/**
+	 * Head of the LRU list of loaded records with storage location
+	 */
+	private final Record loadedRecords = new Record(0);
 	
-	private Hashtable records = new Hashtable();
+	private int loadedRecordsSize = 0;
 	
 	private String recordStoreName;
 
@@ -41,12 +51,54 @@ public class RecordStoreImpl extends RecordStore
 	private long lastModified = 0;
 	
 	private transient boolean open;
+	
+	/**
+	 * Number of openRecordStore calls not matched by closeRecordStore
+	 */
+	private transient int openCount;
+	
+	private transient int headerVersion;
 
 	private transient RecordStoreManager recordStoreManager;
 
 	private transient Vector recordListeners = new Vector();
 
 
+	/**
+	 * Record entry. Data may be left in storage, RecordStoreManager.loadRecord
+	 * is called to read it when accessed.
+	 */
+	static final class Record
+	{
+		final int id;
+		
+		int length;
+		
+		/**
+		 * null when not loaded
+		 */
+		byte[] data;
+		
+		/**
+		 * Storage location owned by RecordStoreManager, null when data is
+		 * not in storage and can't be released
+		 */
+		Object location;
+		
+		Record prev;
+		
+		Record next;
+		
+		
+		Record(int id)
+		{
+			this.id = id;
+			this.prev = this;
+			this.next = this;
+		}
+	}
+
+
 	public RecordStoreImpl(RecordStoreManager recordStoreManager, String recordStoreName) 
 	{
 		this.recordStoreManager = recordStoreManager;
@@ -74,7 +126,7 @@ public class RecordStoreImpl extends RecordStore
 				throw new IOException();
 			}
 		}
-		dis.read(); // Major version number
+		headerVersion = dis.read(); // Major version number
 		dis.read(); // Minor version number
 		dis.read(); // Encrypted flag
 		
@@ -83,9 +135,9 @@ public class RecordStoreImpl extends RecordStore
 		version = dis.readInt();
 		dis.readInt(); // TODO AuthMode
 		dis.readByte(); // TODO Writable
-		size = dis.readInt();
 		
-		return size;
+		// Number of records following the header
+		return dis.readInt();
 	}
 	
 	
@@ -98,16 +150,242 @@ public class RecordStoreImpl extends RecordStore
 		}
 		dis.readInt(); // TODO Tag
 		byte[] data = new byte[dis.readInt()];
-		dis.read(data, 0, data.length);
-		this.records.put(new Integer(recordId), data);
+		dis.readFully(data);
+		Record record = new Record(recordId);
+		record.length = data.length;
+		record.data = data;
+		this.records.put(record);
+	}
+	
+	
+	/**
+	 * Register record whose data stays in storage. Used by RecordStoreManager
+	 * when opening store after readHeader.
+	 */
+	public void addStoredRecord(int recordId, int length, Object location)
+	{
+		Record record = new Record(recordId);
+		record.length = length;
+		record.location = location;
+		synchronized (this) {
+			if (recordId > lastRecordId) {
+				lastRecordId = recordId;
+			}
+			Record previous = records.put(record);
+			if ((previous != null) && (previous.next != previous)) {
+				unlinkLoaded(previous);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Used by RecordStoreManager replaying stored changes on open
+	 */
+	public synchronized void removeStoredRecord(int recordId)
+	{
+		Record record = records.remove(recordId);
+		if ((record != null) && (record.next != record)) {
+			unlinkLoaded(record);
+		}
+	}
+	
+	
+	/**
+	 * Used by RecordStoreManager replaying stored changes on open
+	 */
+	public synchronized void setVersion(int version, long lastModified)
+	{
+		this.version = version;
+		this.lastModified = lastModified;
+	}
+	
+	
+	/**
+	 * Used by RecordStoreManager writing changes, also after the store was
+	 * closed
+	 */
+	public synchronized int getStoredVersion()
+	{
+		return version;
+	}
+	
+	
+	/**
+	 * Used by RecordStoreManager writing changes, also after the store was
+	 * closed
+	 */
+	public synchronized long getStoredLastModified()
+	{
+		return lastModified;
+	}
+	
+	
+	/**
+	 * @return storage location of record or null when the record data is
+	 *         only in memory
+	 */
+	public synchronized Object getRecordLocation(int recordId)
+	{
+		Record record = records.get(recordId);
+		return (record == null) ? null : record.location;
+	}
+	
+	
+	/**
+	 * Called by RecordStoreManager after record data is stored. Loaded data
+	 * becomes releasable.
+	 * 
+	 * @param storedData
+	 *            data obtained by getRecordData and stored, location is not
+	 *            updated when the record was changed meanwhile
+	 */
+	public synchronized void setRecordLocation(int recordId, byte[] storedData, Object location)
+	{
+		Record record = records.get(recordId);
+		if (record == null) {
+			return;
+		}
+		// Released data was unchanged since it was in storage
+		boolean released = (record.data == null) && (record.location != null);
+		if ((record.data != storedData) && !released) {
+			return;
+		}
+		record.location = location;
+		if ((record.data != null) && (record.next == record)) {
+			linkLoaded(record);
+		}
+	}
+	
+	
+	/**
+	 * Called by RecordStoreManager from loadRecord
+	 */
+	public synchronized void recordLoaded(int recordId, byte[] data)
+	{
+		Record record = records.get(recordId);
+		if ((record == null) || (record.data != null)) {
+			return;
+		}
+		records.lengthChanged(record, data.length);
+		record.data = data;
+		record.length = data.length;
+		if (record.location != null) {
+			linkLoaded(record);
+		}
+	}
+	
+	
+	/**
+	 * @return ids of all records in no particular order
+	 */
+	public synchronized int[] getRecordIds()
+	{
+		return records.ids();
+	}
+	
+	
+	/**
+	 * Record data loaded on demand, not copied. Caller must not modify it.
+	 */
+	public synchronized byte[] getRecordData(int recordId)
+			throws InvalidRecordIDException, RecordStoreException
+	{
+		Record record = getRecordEntry(recordId);
+		if (record.data == null) {
+			recordStoreManager.loadRecord(this, recordId);
+			if (record.data == null) {
+				throw new RecordStoreException("Unable to load record " + recordId);
+			}
+		} else if (record.next != record) {
+			// Most recently used
+			unlinkLoaded(record);
+			linkLoaded(record);
+		}
+		return record.data;
+	}
+	
+	
+	private Record getRecordEntry(int recordId)
+			throws InvalidRecordIDException, RecordStoreException
+	{
+		Record record = records.get(recordId);
+		if (record == null) {
+			recordStoreManager.loadRecord(this, recordId);
+			record = records.get(recordId);
+			if (record == null) {
+				throw new InvalidRecordIDException();
+			}
+		}
+		return record;
+	}
+	
+	
+	private void linkLoaded(Record record)
+	{
+		record.prev = loadedRecords.prev;
+		record.next = loadedRecords;
+		loadedRecords.prev.next = record;
+		loadedRecords.prev = record;
+		loadedRecordsSize += record.data.length;
+		while ((loadedRecordsSize > LOADED_RECORDS_CAPACITY) && (loadedRecords.next != record)) {
+			Record eldest = loadedRecords.next;
+			unlinkLoaded(eldest);
+			eldest.data = null;
+		}
+	}
+	
+	
+	private void unlinkLoaded(Record record)
+	{
+		record.prev.next = record.next;
+		record.next.prev = record.prev;
+		record.prev = record;
+		record.next = record;
+		loadedRecordsSize -= record.data.length;
+	}
+	
+	
+	/**
+	 * Record becomes in-memory only until RecordStoreManager stores it
+	 */
+	private void setRecordData(Record record, byte[] data)
+	{
+		if (record.next != record) {
+			unlinkLoaded(record);
+		}
+		records.lengthChanged(record, data.length);
+		record.data = data;
+		record.length = data.length;
+		record.location = null;
+	}
+	
+	
+	/**
+	 * @return major version of the header read by readHeader
+	 */
+	public int getHeaderVersion()
+	{
+		return headerVersion;
 	}
 	
 	
 	public void writeHeader(DataOutputStream dos) 
 			throws IOException
+	{
+		writeHeader(dos, versionMajor);
+	}
+	
+	
+	/**
+	 * Header of RecordStoreManager specific format, records following the
+	 * header are written by the manager
+	 */
+	public void writeHeader(DataOutputStream dos, int headerVersion) 
+			throws IOException
 	{
 		dos.write(fileIdentifier);
-		dos.write(versionMajor);
+		dos.write(headerVersion);
 		dos.write(versionMinor);
 		dos.write(0); // Encrypted flag
 		
@@ -116,7 +394,7 @@ public class RecordStoreImpl extends RecordStore
 		dos.writeInt(version);
 		dos.writeInt(0); // TODO AuthMode
 		dos.writeByte(0); // TODO Writable
-		dos.writeInt(size);		
+		dos.writeInt(records.size());		
 	}
 
 
@@ -126,13 +404,9 @@ public class RecordStoreImpl extends RecordStore
 		dos.writeInt(recordId);
 		dos.writeInt(0); // TODO Tag
 		try {
-			byte[] data = getRecord(recordId);
-			if (data == null) {
-				dos.writeInt(0);
-			} else {
-				dos.writeInt(data.length);
-				dos.write(data);
-			}
+			byte[] data = getRecordData(recordId);
+			dos.writeInt(data.length);
+			dos.write(data);
 		} catch (RecordStoreException e) {
 			throw new IOException();
 		}
@@ -145,8 +419,17 @@ public class RecordStoreImpl extends RecordStore
 	}
 
 
-	public void setOpen(boolean open) 
+	/**
+	 * Called by RecordStoreManager on every open, the store stays open until
+	 * closeRecordStore is called as many times
+	 */
+	public synchronized void setOpen(boolean open) 
 	{
+		if (open) {
+			openCount++;
+		} else {
+			openCount = 0;
+		}
 		this.open = open;
 	}
 	
@@ -154,18 +437,34 @@ public class RecordStoreImpl extends RecordStore
     public void closeRecordStore() 
 			throws RecordStoreNotOpenException, RecordStoreException
 	{
-		if (!open) {
-		    throw new RecordStoreNotOpenException();
+		synchronized (this) {
+			if (!open) {
+			    throw new RecordStoreNotOpenException();
+			}
+			if (openCount > 1) {
+				openCount--;
+				return;
+			}
 		}
 		
+		// Store stays open when its changes can not be written
+		recordStoreManager.closeRecordStore(this);
+
 		if (recordListeners != null) {
 			recordListeners.removeAllElements();
 		}	
-		recordStoreManager.fireRecordStoreListener(ExtendedRecordListener.RECORDSTORE_CLOSE, this.getName());
+		recordStoreManager.fireRecordStoreListener(ExtendedRecordListener.RECORDSTORE_CLOSE, recordStoreName);
 
-		records.clear();
-		
-		open = false;		
+		synchronized (this) {
+			// Index is kept for next open, data in storage is released
+			while (loadedRecords.next != loadedRecords) {
+				Record record = loadedRecords.next;
+				unlinkLoaded(record);
+				record.data = null;
+			}
+			openCount = 0;
+			open = false;
+		}
 	}
 
     
@@ -200,7 +499,7 @@ public class RecordStoreImpl extends RecordStore
 		    throw new RecordStoreNotOpenException();
 		}
 		
-		return size;
+		return records.size();
 	}
 
 
@@ -213,23 +512,10 @@ public class RecordStoreImpl extends RecordStore
 		
 		// TODO include size overhead such as the data structures used to hold the state of the record store
 		
-		// Preload all records
-		enumerateRecords(null, null, false);
-		
-		int result = 0;
-		Enumeration keys = records.keys();
-		while (keys.hasMoreElements()) {
-			int key = ((Integer) keys.nextElement()).intValue();
-			try {
-			    byte[] data = getRecord(key);
-			    if (data != null) {
-			        result += data.length;
-			    }
-			} catch (RecordStoreException e) {
-				e.printStackTrace();
-			}
+		// Record lengths are known without loading data
+		synchronized (this) {
+			return records.getTotalLength();
 		}
-		return result;
 	}
 
 
@@ -278,9 +564,7 @@ public class RecordStoreImpl extends RecordStore
 		    throw new RecordStoreNotOpenException();
 		}
 		
-		// lastRecordId needs to hold correct number, all records have to be preloaded
-		enumerateRecords(null, null, false);
-
+		// RecordStoreManager registers all record ids on open, lastRecordId is correct
 		synchronized (this) {
 		    return lastRecordId + 1;
 		}
@@ -300,21 +584,20 @@ public class RecordStoreImpl extends RecordStore
 			throw new RecordStoreFullException();
 		}		
 		
-		// lastRecordId needs to hold correct number, all records have to be preloaded
-		enumerateRecords(null, null, false);
-		
 		byte[] recordData = new byte[numBytes];
 		if (data != null) {
 		    System.arraycopy(data, offset, recordData, 0, numBytes);
 		}
 		
-		int nextRecordID = getNextRecordID();
+		int nextRecordID;
 		synchronized (this) {
-		    records.put(new Integer(nextRecordID), recordData);
+		    nextRecordID = getNextRecordID();
+		    Record record = new Record(nextRecordID);
+		    records.put(record);
+		    setRecordData(record, recordData);
 		    version++;
 		    lastModified = System.currentTimeMillis();
 		    lastRecordId++;
-		    size++;
 		}
 		
         recordStoreManager.saveRecord(this, nextRecordID);
@@ -334,11 +617,13 @@ public class RecordStoreImpl extends RecordStore
 		
 		synchronized (this) {
 			// throws InvalidRecordIDException when no record found
-			getRecord(recordId);
-		    records.remove(new Integer(recordId));
+			Record record = getRecordEntry(recordId);
+			if (record.next != record) {
+				unlinkLoaded(record);
+			}
+		    records.remove(recordId);
 		    version++;
 		    lastModified = System.currentTimeMillis();
-		    size--;
 		}
 		
         recordStoreManager.deleteRecord(this, recordId);
@@ -355,16 +640,7 @@ public class RecordStoreImpl extends RecordStore
 		}
 		
 		synchronized (this) {
-		    byte[] data = (byte[]) records.get(new Integer(recordId));
-		    if (data == null) {
-		    	recordStoreManager.loadRecord(this, recordId);
-		    	data = (byte[]) records.get(new Integer(recordId));
-		    	if (data == null) {
-		    		throw new InvalidRecordIDException();
-		    	}
-		    }
-		
-		    return data.length;
+		    return getRecordEntry(recordId).length;
 		}
 	}
 
@@ -372,10 +648,15 @@ public class RecordStoreImpl extends RecordStore
     public int getRecord(int recordId, byte[] buffer, int offset)
     		throws RecordStoreNotOpenException, InvalidRecordIDException, RecordStoreException
 	{
+		if (!open) {
+		    throw new RecordStoreNotOpenException();
+		}
+		
 		int recordSize;
 		synchronized (this) {
-		    recordSize = getRecordSize(recordId);
-		    System.arraycopy(records.get(new Integer(recordId)), 0, buffer, offset, recordSize);
+		    byte[] data = getRecordData(recordId);
+		    recordSize = data.length;
+		    System.arraycopy(data, 0, buffer, offset, recordSize);
 		}
 		
 		fireRecordListener(ExtendedRecordListener.RECORD_READ, recordId);
@@ -394,10 +675,11 @@ public class RecordStoreImpl extends RecordStore
 		byte[] data;
 		
 		synchronized (this) {
-		    data = new byte[getRecordSize(recordId)];
-		    getRecord(recordId, data, 0);
+		    data = (byte[]) getRecordData(recordId).clone();
 		}
 		
+		fireRecordListener(ExtendedRecordListener.RECORD_READ, recordId);
+		
 		return data.length < 1 ? null : data;
 	}
 
@@ -419,8 +701,7 @@ public class RecordStoreImpl extends RecordStore
 		
 		synchronized (this) {
 			// throws InvalidRecordIDException when no record found
-			getRecord(recordId);
-		    records.put(new Integer(recordId), recordData);
+			setRecordData(getRecordEntry(recordId), recordData);
 		    version++;
 		    lastModified = System.currentTimeMillis();
 		}